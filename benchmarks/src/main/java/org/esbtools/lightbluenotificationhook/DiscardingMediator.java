@@ -0,0 +1,19 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.mediator.Mediator;
+
+/**
+ * Accepts and drops every insert, so benchmarks measure the hook rather than a datastore.
+ */
+class DiscardingMediator extends Mediator {
+    DiscardingMediator() {
+        super(null, null);
+    }
+
+    @Override
+    public Response insert(InsertionRequest req) {
+        return new Response();
+    }
+}
@@ -0,0 +1,72 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.hooks.HookDoc;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.JsonDoc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert of a "user" with {@link #sites} copies of its first site, watching everything. Every
+ * leaf ends up in the notification's entity data, so time per insert should grow linearly with
+ * the number of sites.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlattenBenchmark {
+    /** Each site has 23 leaves. */
+    @Param({"100", "1000", "5000"})
+    public int sites;
+
+    private EntityMetadata metadata;
+    private NotificationHook hook;
+    private List<HookDoc> hookDocs;
+
+    @Setup
+    public void setUp() {
+        metadata = UserEntity.metadata();
+        hook = new NotificationHook("benchmark", new DiscardingMediator());
+
+        JsonNode user = UserEntity.data();
+        ArrayNode userSites = (ArrayNode) user.get("sites");
+        ObjectNode site = (ObjectNode) userSites.get(0);
+        userSites.removeAll();
+
+        for (int i = 0; i < sites; i++) {
+            ObjectNode copy = site.deepCopy();
+            copy.put("siteId", Integer.toString(i));
+            userSites.add(copy);
+        }
+
+        hookDocs = Collections.singletonList(
+                new HookDoc(metadata, null, new JsonDoc(user), CRUDOperation.INSERT, "benchmark"));
+    }
+
+    @Benchmark
+    public void processHook() {
+        hook.processHook(metadata,
+                NotificationHookConfiguration.watchingEverythingAndIncludingNothing(), hookDocs);
+    }
+}
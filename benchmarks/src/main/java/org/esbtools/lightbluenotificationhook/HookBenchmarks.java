@@ -0,0 +1,27 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks like JMH's own main, accepting the same arguments, but always profiling
+ * allocation and writing results to {@code jmh-result.json} so runs can be compared between
+ * releases.
+ */
+public final class HookBenchmarks {
+    private HookBenchmarks() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,78 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a notification with {@link #entries} entity data entries to the JSON which is inserted.
+ * Run with {@code -prof gc} to compare allocation per write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationWriteBenchmark {
+    @Param({"10", "1000"})
+    public int entries;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final NotificationEntityWriter writer =
+            new NotificationEntityWriter(JsonNodeFactory.withExactBigDecimals(true));
+
+    private NotificationEntity notification;
+
+    @Setup
+    public void setUp() {
+        List<PathAndValue> entityData = new ArrayList<>(entries);
+        List<String> updatedPaths = new ArrayList<>(entries);
+
+        for (int i = 0; i < entries; i++) {
+            String path = "sites." + i + ".streetAddress.city";
+            entityData.add(new PathAndValue(path, "Denver"));
+            updatedPaths.add(path);
+        }
+
+        notification = new NotificationEntity();
+        notification.setEntityName("user");
+        notification.setEntityVersion("5.0.0");
+        notification.setStatus(NotificationEntity.Status.unprocessed);
+        notification.setOperation(NotificationEntity.Operation.update);
+        notification.setClientRequestPrincipal("benchmark");
+        notification.setClientRequestDate(new Date());
+        notification.setEntityData(entityData);
+        notification.setUpdatedPaths(updatedPaths);
+        notification.setRemovedEntityData(new ArrayList<PathAndValue>());
+        notification.setRemovedPaths(new ArrayList<String>());
+    }
+
+    @Benchmark
+    public JsonNode valueToTree() {
+        return objectMapper.valueToTree(notification);
+    }
+
+    @Benchmark
+    public JsonNode writeDirectly() {
+        return writer.write(notification);
+    }
+}
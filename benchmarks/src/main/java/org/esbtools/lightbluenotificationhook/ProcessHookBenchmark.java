@@ -0,0 +1,162 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.hooks.HookDoc;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link NotificationHook#processHook} end to end for typical kinds of "user" writes, with a
+ * mediator which discards inserts.
+ *
+ * <p>Throughput and sampled latency (with percentiles) are reported for each. {@link
+ * HookBenchmarks} also adds allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessHookBenchmark {
+    /** Number of sites added, removed, or reordered in the array benchmarks. */
+    @Param({"100"})
+    public int sites;
+
+    private final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.withExactBigDecimals(true);
+
+    private EntityMetadata metadata;
+    private NotificationHook hook;
+
+    private NotificationHookConfiguration watchingPersonalInfo;
+    private NotificationHookConfiguration watchingSites;
+    private NotificationHookConfiguration watchingSitesInOrder;
+
+    private List<HookDoc> insert;
+    private List<HookDoc> noOpUpdate;
+    private List<HookDoc> smallFieldChange;
+    private List<HookDoc> largeArrayAddition;
+    private List<HookDoc> largeArrayRemoval;
+    private List<HookDoc> arrayReorder;
+
+    @Setup
+    public void setUp() {
+        metadata = UserEntity.metadata();
+        hook = new NotificationHook("benchmark", new DiscardingMediator());
+
+        watchingPersonalInfo = new NotificationHookConfiguration(
+                UserEntity.projection("{'field':'personalInfo','recursive':1}"),
+                UserEntity.projection("{'field':'login'}"),
+                false);
+        watchingSites = new NotificationHookConfiguration(
+                UserEntity.projection("{'field':'sites','recursive':1}"),
+                null,
+                false);
+        watchingSitesInOrder = new NotificationHookConfiguration(
+                UserEntity.projection("{'field':'sites','recursive':1}"),
+                null,
+                true);
+
+        JsonNode user = UserEntity.data();
+
+        insert = update(null, user);
+        noOpUpdate = update(user, UserEntity.data());
+
+        JsonNode changedCompany = UserEntity.data();
+        JsonDoc.modify(changedCompany, new Path("personalInfo.company"),
+                jsonNodeFactory.textNode("Blah"), true);
+        smallFieldChange = update(user, changedCompany);
+
+        JsonNode manySites = withSites(sites);
+        largeArrayAddition = update(user, manySites);
+        largeArrayRemoval = update(manySites, user);
+
+        JsonNode reversedSites = withSites(sites);
+        ArrayNode reversed = (ArrayNode) reversedSites.get("sites");
+        for (int i = 0, j = reversed.size() - 1; i < j; i++, j--) {
+            JsonNode first = reversed.get(i);
+            reversed.set(i, reversed.get(j));
+            reversed.set(j, first);
+        }
+        arrayReorder = update(manySites, reversedSites);
+    }
+
+    @Benchmark
+    public void insert() {
+        hook.processHook(metadata, watchingPersonalInfo, insert);
+    }
+
+    @Benchmark
+    public void noOpUpdate() {
+        hook.processHook(metadata, watchingPersonalInfo, noOpUpdate);
+    }
+
+    @Benchmark
+    public void smallFieldChange() {
+        hook.processHook(metadata, watchingPersonalInfo, smallFieldChange);
+    }
+
+    @Benchmark
+    public void largeArrayAddition() {
+        hook.processHook(metadata, watchingSites, largeArrayAddition);
+    }
+
+    @Benchmark
+    public void largeArrayRemoval() {
+        hook.processHook(metadata, watchingSites, largeArrayRemoval);
+    }
+
+    @Benchmark
+    public void arrayReorder() {
+        hook.processHook(metadata, watchingSites, arrayReorder);
+    }
+
+    @Benchmark
+    public void arrayReorderWithOrderingSignificant() {
+        hook.processHook(metadata, watchingSitesInOrder, arrayReorder);
+    }
+
+    private List<HookDoc> update(JsonNode pre, JsonNode post) {
+        CRUDOperation operation = pre == null ? CRUDOperation.INSERT : CRUDOperation.UPDATE;
+        return Collections.singletonList(new HookDoc(metadata,
+                pre == null ? null : new JsonDoc(pre), new JsonDoc(post), operation, "benchmark"));
+    }
+
+    /**
+     * The user, plus {@code additional} copies of its first site with new ids.
+     */
+    private static JsonNode withSites(int additional) {
+        JsonNode user = UserEntity.data();
+        ArrayNode userSites = (ArrayNode) user.get("sites");
+        ObjectNode site = (ObjectNode) userSites.get(0);
+
+        for (int i = 0; i < additional; i++) {
+            ObjectNode copy = site.deepCopy();
+            copy.put("siteId", "added" + i);
+            userSites.add(copy);
+        }
+
+        return user;
+    }
+}
@@ -0,0 +1,99 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.hooks.HookDoc;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.DocComparator;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An update to a "user" which only changes fields outside of those watched.
+ *
+ * <p>{@link #projectAndDiff()} is what the hook did for every update before {@link
+ * WatchedFieldsPrecheck}; {@link #precheck()} is what it does now when nothing watched changed.
+ * {@link #processHook()} measures the whole hook for the same update.
+ *
+ * <p>Watch projections range from a whole subtree, to one field deep within array elements, to
+ * a subtree with an exclusion, since each shape exercises a different part of the {@link
+ * WatchPathTrie}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnwatchedUpdateBenchmark {
+    private final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.withExactBigDecimals(true);
+
+    @Param({
+            "{'field':'personalInfo','recursive':1}",
+            "{'field':'sites.*.streetAddress.city'}",
+            "[{'field':'sites','recursive':1},{'field':'sites.*.notes','include':false}]"})
+    public String watchProjection;
+
+    private EntityMetadata metadata;
+    private NotificationHookConfiguration configuration;
+    private CompiledConfiguration compiled;
+    private NotificationHook hook;
+    private JsonDoc preDoc;
+    private JsonDoc postDoc;
+    private List<HookDoc> hookDocs;
+
+    @Setup
+    public void setUp() {
+        metadata = UserEntity.metadata();
+        configuration = new NotificationHookConfiguration(
+                UserEntity.projection(watchProjection),
+                UserEntity.projection("{'field':'login'}"),
+                false);
+        compiled = new CompiledConfiguration(metadata, configuration);
+        hook = new NotificationHook("benchmark", new DiscardingMediator());
+
+        JsonNode post = UserEntity.data();
+        JsonDoc.modify(post, new Path("login"), jsonNodeFactory.textNode("bserdar2"), true);
+        JsonDoc.modify(post, new Path("sites.0.notes"), jsonNodeFactory.textNode("Moved"), true);
+        JsonDoc.modify(post, new Path("password.salt"), jsonNodeFactory.textNode("00"), true);
+
+        preDoc = new JsonDoc(UserEntity.data());
+        postDoc = new JsonDoc(post);
+        hookDocs = Collections.singletonList(
+                new HookDoc(metadata, preDoc, postDoc, CRUDOperation.UPDATE, "benchmark"));
+    }
+
+    @Benchmark
+    public DocComparator.Difference<ProjectedNode> projectAndDiff() throws Exception {
+        return compiled.docComparator().compareNodes(
+                compiled.watched(preDoc, jsonNodeFactory),
+                compiled.watched(postDoc, jsonNodeFactory));
+    }
+
+    @Benchmark
+    public boolean precheck() {
+        return compiled.watchedFieldsPrecheck().mayDiffer(preDoc.getRoot(), postDoc.getRoot());
+    }
+
+    @Benchmark
+    public void processHook() {
+        hook.processHook(metadata, configuration, hookDocs);
+    }
+}
@@ -0,0 +1,77 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.metadata.DataStore;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.parser.DataStoreParser;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.parser.MetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.JsonUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * The "user" entity and document the hook's unit tests use, loaded for benchmarks.
+ */
+final class UserEntity {
+    private UserEntity() {}
+
+    static EntityMetadata metadata() {
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new FakeMongoDataStoreParser());
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, new DefaultTypes(),
+                JsonNodeFactory.instance);
+        EntityMetadata md = parser.parseEntityMetadata(load("usermd.json"));
+        PredefinedFields.ensurePredefinedFields(md);
+        return md;
+    }
+
+    static JsonNode data() {
+        return load("userdata.json");
+    }
+
+    static Projection projection(String json) {
+        try {
+            return Projection.fromJson(JsonUtils.json(json.replaceAll("'", "\"")));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static JsonNode load(String resource) {
+        try (InputStream in = UserEntity.class.getClassLoader().getResourceAsStream(resource)) {
+            return JsonUtils.json(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class FakeMongoDataStoreParser implements DataStoreParser<JsonNode> {
+        @Override
+        public DataStore parse(String name, MetadataParser<JsonNode> p, JsonNode node) {
+            return new DataStore() {
+                public String getBackend() {
+                    return "mongo";
+                }
+            };
+        }
+
+        @Override
+        public void convert(MetadataParser<JsonNode> p, JsonNode emptyNode, DataStore object) {
+        }
+
+        @Override
+        public String getDefaultName() {
+            return "mongo";
+        }
+    }
+}
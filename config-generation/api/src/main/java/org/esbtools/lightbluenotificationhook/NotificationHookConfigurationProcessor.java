@@ -0,0 +1,155 @@
+package org.esbtools.lightbluenotificationhook;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Finds fields annotated with {@link GeneratesNotificationHookConfiguration} as they are
+ * compiled, and writes an index of them, so configuration can be generated without naming every
+ * notification class.
+ *
+ * <p>The index is written to {@link #INDEX_RESOURCE} in the class output, one {@code
+ * binary.class.Name#field} per line. The configuration generator reads it from the classpath to
+ * find notification classes when none are named, and writes their JSON as it does for any other.
+ *
+ * <p>Fields are checked as the generator would check them, so misplaced annotations fail the
+ * build instead of the generator.
+ */
+@SupportedAnnotationTypes("org.esbtools.lightbluenotificationhook.GeneratesNotificationHookConfiguration")
+public class NotificationHookConfigurationProcessor extends AbstractProcessor {
+    public static final String INDEX_RESOURCE =
+            "META-INF/lightblue-notification-hook/notification-hook-configurations";
+
+    /** Binary class name to annotated field, of classes compiled in this run. */
+    private final Map<String, String> indexed = new TreeMap<>();
+
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        filer = processingEnv.getFiler();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element :
+                roundEnv.getElementsAnnotatedWith(GeneratesNotificationHookConfiguration.class)) {
+            if (!isConfigurationField(element)) {
+                continue;
+            }
+
+            VariableElement field = (VariableElement) element;
+            String className = elements.getBinaryName(
+                    (TypeElement) field.getEnclosingElement()).toString();
+            String previous = indexed.put(className, field.getSimpleName().toString());
+
+            if (previous != null) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Only one static field may be " +
+                        "annotated with " + GeneratesNotificationHookConfiguration.class + ", but " +
+                        className + " also has " + previous, field);
+            }
+        }
+
+        if (roundEnv.processingOver() && !indexed.isEmpty()) {
+            writeIndex();
+        }
+
+        return true;
+    }
+
+    private boolean isConfigurationField(Element element) {
+        if (element.getKind() != ElementKind.FIELD ||
+                !element.getModifiers().contains(Modifier.STATIC)) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Only static fields may be annotated " +
+                    "with " + GeneratesNotificationHookConfiguration.class, element);
+            return false;
+        }
+
+        TypeElement configType = elements.getTypeElement(
+                EntityNotificationHookConfiguration.class.getCanonicalName());
+
+        if (!types.isAssignable(element.asType(), configType.asType())) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Static field annotated with " +
+                    GeneratesNotificationHookConfiguration.class + " does not implement " +
+                    EntityNotificationHookConfiguration.class, element);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds this run's classes to those already in the index, so only recompiling some classes
+     * keeps the rest. Classes which no longer exist are dropped.
+     */
+    private void writeIndex() {
+        Map<String, String> index = new TreeMap<>();
+
+        try {
+            FileObject existing = filer.getResource(StandardLocation.CLASS_OUTPUT, "",
+                    INDEX_RESOURCE);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    existing.openInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    int hash = line.indexOf('#');
+                    if (hash > 0 && elements.getTypeElement(
+                            line.substring(0, hash).replace('$', '.')) != null) {
+                        index.put(line.substring(0, hash), line.substring(hash + 1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // No index yet.
+        }
+
+        index.putAll(indexed);
+
+        try {
+            FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "",
+                    INDEX_RESOURCE);
+            try (Writer writer = file.openWriter()) {
+                for (Map.Entry<String, String> entry : index.entrySet()) {
+                    writer.write(entry.getKey() + "#" + entry.getValue() + "\n");
+                }
+            }
+        } catch (IOException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Unable to write notification hook " +
+                    "configuration index: " + e);
+        }
+    }
+}
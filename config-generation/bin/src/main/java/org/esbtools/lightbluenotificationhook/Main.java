@@ -1,10 +1,12 @@
 package org.esbtools.lightbluenotificationhook;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.redhat.lightblue.metadata.parser.Extensions;
@@ -14,14 +16,31 @@ import com.redhat.lightblue.query.Projection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class Main {
     private final JSONMetadataParser parser;
@@ -56,45 +75,130 @@ public class Main {
         return new Main(parser, prettyWriter, factory, generator);
     }
 
-    public void writeHookConfigurationForClass(String classFqn, ClassLoader classLoader,
+    /**
+     * Writes the configuration of one notification class, unless the file already has exactly
+     * that content.
+     *
+     * @param outputPath A directory to write {@code <entityName>NotificationHookConfiguration.json}
+     *                   in, or the file to write.
+     * @return Whether the file was written, as opposed to already up to date.
+     */
+    public boolean writeHookConfigurationForClass(String classFqn, ClassLoader classLoader,
             Path outputPath) throws ClassNotFoundException, IllegalAccessException,
             IOException {
-        log.info("Looking up hook configuration for class: {}", classFqn);
+        Rendered rendered = render(classFqn, classLoader);
 
-        Class notificationClass = Class.forName(classFqn, true, classLoader);
+        Path jsonResultPath = Files.isDirectory(outputPath)
+                ? outputPath.resolve(rendered.entityName + JSON_CONFIG_FILE_SUFFIX)
+                : outputPath;
 
-        log.info("Found class: {}", classFqn);
+        return writeIfChanged(rendered, jsonResultPath);
+    }
 
-        EntityNotificationHookConfiguration entityConfig =
-                hookConfigReader.readConfiguration(notificationClass);
+    /**
+     * Generates configuration for each class into the directory, reading classes in parallel.
+     *
+     * <p>Files whose content would not change are not touched, so their timestamps stay as they
+     * are. A class which fails does not stop the others: all outcomes are in the returned summary.
+     *
+     * @param parallelism How many classes to read at once.
+     */
+    public Summary generate(List<String> classFqns, final ClassLoader classLoader,
+            Path outputDir, int parallelism) throws InterruptedException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive but was: " +
+                    parallelism);
+        }
 
-        log.info("Got configuration for entity: {}", entityConfig.entityName());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, classFqns.size())),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "notification-hook-config-generation");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
 
-        Projection watch = Projection.fromJson(entityConfig.watchProjection().toJson());
-        Projection include = Projection.fromJson(entityConfig.includeProjection().toJson());
-        boolean arrayOrderingSignificant = entityConfig.arrayOrderingSignificant();
+        List<Future<Rendered>> renders = new ArrayList<>(classFqns.size());
 
-        NotificationHookConfiguration config =
-                new NotificationHookConfiguration(watch, include, arrayOrderingSignificant);
+        try {
+            for (final String classFqn : classFqns) {
+                renders.add(executor.submit(new Callable<Rendered>() {
+                    @Override
+                    public Rendered call() throws Exception {
+                        return render(classFqn, classLoader);
+                    }
+                }));
+            }
 
-        ObjectNode configAsJson = jsonNodeFactory.objectNode();
-        config.toMetadata(parser, configAsJson);
+            // Written one at a time, so classes configuring the same entity can be caught.
+            List<Generated> results = new ArrayList<>(classFqns.size());
+            Map<String, String> classesByEntity = new HashMap<>();
 
-        Path jsonResultPath = Files.isDirectory(outputPath)
-                ? outputPath.resolve(entityConfig.entityName() + JSON_CONFIG_FILE_SUFFIX)
-                : outputPath;
+            for (int i = 0; i < classFqns.size(); i++) {
+                String classFqn = classFqns.get(i);
 
-        log.info("Writing json configuration to: {}", jsonResultPath.toAbsolutePath());
+                try {
+                    Rendered rendered = getRendered(renders.get(i));
+                    String otherClass = classesByEntity.put(rendered.entityName, classFqn);
 
-        jsonWriter.writeValue(Files.newBufferedWriter(jsonResultPath, UTF_8), configAsJson);
+                    if (otherClass != null) {
+                        throw new IllegalArgumentException("Entity " + rendered.entityName +
+                                " is already configured by " + otherClass);
+                    }
 
-        log.info("Wrote json configuration: {}", jsonResultPath);
+                    Path jsonResultPath =
+                            outputDir.resolve(rendered.entityName + JSON_CONFIG_FILE_SUFFIX);
+                    boolean written = writeIfChanged(rendered, jsonResultPath);
+
+                    results.add(new Generated(classFqn, rendered.entityName, jsonResultPath,
+                            written ? Status.WRITTEN : Status.UNCHANGED, rendered.sha256, null));
+                } catch (Exception e) {
+                    log.error("Failed to generate hook configuration for class: " + classFqn, e);
+                    results.add(new Generated(classFqn, null, null, Status.FAILED, null, e));
+                }
+            }
+
+            return new Summary(results);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds notification classes from the indexes {@link NotificationHookConfigurationProcessor}
+     * writes as they are compiled, in every classpath entry which has one.
+     */
+    public static List<String> findIndexedClasses(ClassLoader classLoader) throws IOException {
+        List<String> classFqns = new ArrayList<>();
+        Enumeration<URL> indexes =
+                classLoader.getResources(NotificationHookConfigurationProcessor.INDEX_RESOURCE);
+
+        while (indexes.hasMoreElements()) {
+            URL index = indexes.nextElement();
+
+            log.info("Reading notification classes from index: {}", index);
+
+            try (BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(index.openStream(), UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    int hash = line.indexOf('#');
+                    if (hash > 0) {
+                        classFqns.add(line.substring(0, hash));
+                    }
+                }
+            }
+        }
+
+        return classFqns;
     }
 
     public static void main(String[] args) throws FileNotFoundException {
         List<String> helpArgs = Arrays.asList("-h", "h", "?", "-?", "help", "-help", "--help");
 
-        if (args.length < 2) {
+        if (args.length < 1) {
             println("Not enough arguments provided, see usage:");
             printUsageAndExit();
         } else if (helpArgs.contains(args[0].toLowerCase())) {
@@ -109,16 +213,97 @@ public class Main {
             throw new FileNotFoundException("Provided result directory does not exist.");
         }
 
-        try {
+        Summary summary;
 
-            for (int i = 1; i < args.length; i++) {
-                String className = args[i];
+        try {
+            List<String> classNames = args.length > 1
+                    ? Arrays.asList(args).subList(1, args.length)
+                    : findIndexedClasses(mainClassLoader);
 
-                main.writeHookConfigurationForClass(className, mainClassLoader, resultDir);
-            }
+            summary = main.generate(classNames, mainClassLoader, resultDir,
+                    Runtime.getRuntime().availableProcessors());
         } catch (Exception e) {
             e.printStackTrace();
             printUsageAndExit();
+            return;
+        }
+
+        try {
+            println(new ObjectMapper().writeValueAsString(
+                    summary.toJson(JsonNodeFactory.instance)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (summary.hasFailures()) {
+            System.exit(1);
+        }
+    }
+
+    private Rendered render(String classFqn, ClassLoader classLoader)
+            throws ClassNotFoundException, IllegalAccessException, IOException {
+        log.info("Looking up hook configuration for class: {}", classFqn);
+
+        Class notificationClass = Class.forName(classFqn, true, classLoader);
+
+        log.info("Found class: {}", classFqn);
+
+        EntityNotificationHookConfiguration entityConfig =
+                hookConfigReader.readConfiguration(notificationClass);
+
+        log.info("Got configuration for entity: {}", entityConfig.entityName());
+
+        Projection watch = Projection.fromJson(entityConfig.watchProjection().toJson());
+        Projection include = Projection.fromJson(entityConfig.includeProjection().toJson());
+        boolean arrayOrderingSignificant = entityConfig.arrayOrderingSignificant();
+
+        NotificationHookConfiguration config =
+                new NotificationHookConfiguration(watch, include, arrayOrderingSignificant);
+
+        ObjectNode configAsJson = jsonNodeFactory.objectNode();
+        config.toMetadata(parser, configAsJson);
+
+        return new Rendered(entityConfig.entityName(), jsonWriter.writeValueAsBytes(configAsJson));
+    }
+
+    private static boolean writeIfChanged(Rendered rendered, Path jsonResultPath)
+            throws IOException {
+        if (Files.isRegularFile(jsonResultPath) &&
+                rendered.sha256.equals(sha256(Files.readAllBytes(jsonResultPath)))) {
+            log.info("Json configuration is up to date: {}", jsonResultPath);
+            return false;
+        }
+
+        log.info("Writing json configuration to: {}", jsonResultPath.toAbsolutePath());
+
+        Files.write(jsonResultPath, rendered.json);
+
+        log.info("Wrote json configuration: {}", jsonResultPath);
+
+        return true;
+    }
+
+    private static Rendered getRendered(Future<Rendered> render) throws Exception {
+        try {
+            return render.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM must support SHA-256", e);
         }
     }
 
@@ -127,6 +312,12 @@ public class Main {
         println("Expects notifications to have a static field which is an instance of ");
         println(EntityNotificationHookConfiguration.class + ". This will be output as config.");
         println("");
+        println("If no notifications are given, those found by ");
+        println(NotificationHookConfigurationProcessor.class + " when compiling are used.");
+        println("");
+        println("Files already up to date are left untouched. A JSON summary of every class is");
+        println("printed when done, and the exit status is 1 if any failed.");
+        println("");
         println("Also expects classpath to already contain these classes and these dependencies.");
         println("This is most natural to do by running from the maven project using the exec maven");
         println("plugin: http://www.mojohaus.org/exec-maven-plugin/examples/example-exec-using-plugin-dependencies.html");
@@ -136,4 +327,160 @@ public class Main {
     private static void println(Object line) {
         System.out.println(line);
     }
+
+    public enum Status {
+        /** The file did not exist or had different content, and was written. */
+        WRITTEN,
+        /** The file already had exactly the generated content, and was not touched. */
+        UNCHANGED,
+        FAILED
+    }
+
+    /**
+     * The outcome of generating configuration for one class.
+     */
+    public static final class Generated {
+        private final String className;
+        private final @Nullable String entityName;
+        private final @Nullable Path path;
+        private final Status status;
+        private final @Nullable String sha256;
+        private final @Nullable Exception failure;
+
+        Generated(String className, @Nullable String entityName, @Nullable Path path,
+                Status status, @Nullable String sha256, @Nullable Exception failure) {
+            this.className = className;
+            this.entityName = entityName;
+            this.path = path;
+            this.status = status;
+            this.sha256 = sha256;
+            this.failure = failure;
+        }
+
+        public String className() {
+            return className;
+        }
+
+        /** Null if the class failed. */
+        @Nullable
+        public String entityName() {
+            return entityName;
+        }
+
+        /** Null if the class failed. */
+        @Nullable
+        public Path path() {
+            return path;
+        }
+
+        public Status status() {
+            return status;
+        }
+
+        /** Hex SHA-256 of the generated JSON, or null if the class failed. */
+        @Nullable
+        public String sha256() {
+            return sha256;
+        }
+
+        /** Null unless the class failed. */
+        @Nullable
+        public Exception failure() {
+            return failure;
+        }
+
+        ObjectNode toJson(JsonNodeFactory factory) {
+            ObjectNode json = factory.objectNode();
+            json.put("class", className);
+            json.put("status", status.name());
+            if (entityName != null) {
+                json.put("entityName", entityName);
+            }
+            if (path != null) {
+                json.put("path", path.toString());
+            }
+            if (sha256 != null) {
+                json.put("sha256", sha256);
+            }
+            if (failure != null) {
+                json.put("error", failure.toString());
+            }
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return "Generated{" +
+                    "className='" + className + '\'' +
+                    ", entityName='" + entityName + '\'' +
+                    ", path=" + path +
+                    ", status=" + status +
+                    ", failure=" + failure +
+                    '}';
+        }
+    }
+
+    /**
+     * Outcomes of a {@link #generate(List, ClassLoader, Path, int) run}, in the order classes
+     * were given.
+     */
+    public static final class Summary {
+        private final List<Generated> results;
+
+        Summary(List<Generated> results) {
+            this.results = Collections.unmodifiableList(results);
+        }
+
+        public List<Generated> results() {
+            return results;
+        }
+
+        public boolean hasFailures() {
+            return count(Status.FAILED) > 0;
+        }
+
+        public int count(Status status) {
+            int count = 0;
+            for (Generated result : results) {
+                if (result.status == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return Counts by status, and each class's outcome under {@code "results"}.
+         */
+        public ObjectNode toJson(JsonNodeFactory factory) {
+            ObjectNode json = factory.objectNode();
+            for (Status status : Status.values()) {
+                json.put(status.name().toLowerCase(), count(status));
+            }
+            ArrayNode resultsJson = json.putArray("results");
+            for (Generated result : results) {
+                resultsJson.add(result.toJson(factory));
+            }
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{" +
+                    "results=" + results +
+                    '}';
+        }
+    }
+
+    private static final class Rendered {
+        final String entityName;
+        final byte[] json;
+        final String sha256;
+
+        Rendered(String entityName, byte[] json) {
+            this.entityName = entityName;
+            this.json = json;
+            this.sha256 = sha256(json);
+        }
+    }
 }
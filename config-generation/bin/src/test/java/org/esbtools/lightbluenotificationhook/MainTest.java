@@ -6,6 +6,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.common.jimfs.Jimfs;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -15,6 +16,9 @@ import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
 
 @RunWith(JUnit4.class)
 public class MainTest {
@@ -57,6 +61,56 @@ public class MainTest {
         assertFalse(jsonConfig.get("arrayOrderingSignificant").booleanValue());
     }
 
+    @Test
+    public void shouldFindAnnotatedClassesFromCompileTimeIndex() throws Exception {
+        assertEquals(
+                Arrays.asList(ExampleNotification.class.getName(),
+                        HasEmptyHookConfiguration.class.getName()),
+                Main.findIndexedClasses(MainTest.class.getClassLoader()));
+    }
+
+    @Test
+    public void shouldNotRewriteUnchangedHookConfiguration() throws Exception {
+        Path outputDir = Files.createDirectory(fileSystem.getPath("test/"));
+        Path expectedResult = outputDir.resolve("exampleNotificationHookConfiguration.json");
+        List<String> classNames = Arrays.asList(ExampleNotification.class.getName());
+
+        Main.Summary first = main.generate(classNames, MainTest.class.getClassLoader(),
+                outputDir, 2);
+        Files.setLastModifiedTime(expectedResult, FileTime.fromMillis(0));
+        Main.Summary second = main.generate(classNames, MainTest.class.getClassLoader(),
+                outputDir, 2);
+
+        assertEquals(Main.Status.WRITTEN, first.results().get(0).status());
+        assertEquals(Main.Status.UNCHANGED, second.results().get(0).status());
+        assertEquals(first.results().get(0).sha256(), second.results().get(0).sha256());
+        assertEquals(FileTime.fromMillis(0), Files.getLastModifiedTime(expectedResult));
+    }
+
+    @Test
+    public void shouldGenerateRemainingClassesAndSummarizeEveryFailure() throws Exception {
+        Path outputDir = Files.createDirectory(fileSystem.getPath("test/"));
+
+        Main.Summary summary = main.generate(
+                Arrays.asList("does.not.Exist", ExampleNotification.class.getName(),
+                        HasEmptyHookConfiguration.class.getName(), MainTest.class.getName()),
+                MainTest.class.getClassLoader(), outputDir, 4);
+
+        assertTrue(summary.hasFailures());
+        assertEquals(2, summary.count(Main.Status.WRITTEN));
+        assertEquals(2, summary.count(Main.Status.FAILED));
+        assertTrue(Files.exists(outputDir.resolve("exampleNotificationHookConfiguration.json")));
+        assertTrue(Files.exists(outputDir.resolve("testNotificationHookConfiguration.json")));
+
+        JsonNode json = summary.toJson(JsonNodeFactory.instance);
+
+        assertEquals(2, json.get("failed").intValue());
+        assertEquals("does.not.Exist", json.get("results").get(0).get("class").textValue());
+        assertEquals("FAILED", json.get("results").get(0).get("status").textValue());
+        assertEquals("example", json.get("results").get(1).get("entityName").textValue());
+        assertEquals("FAILED", json.get("results").get(3).get("status").textValue());
+    }
+
     static class HasEmptyHookConfiguration {
         @GeneratesNotificationHookConfiguration
         static EntityNotificationHookConfiguration emptyConfig = EntityNotificationHookConfiguration
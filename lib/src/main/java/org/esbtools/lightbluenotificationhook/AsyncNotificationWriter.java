@@ -0,0 +1,307 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes notifications off of the client request thread.
+ *
+ * <p>Notifications are put on a bounded in-memory queue and a pool of flusher threads drains it,
+ * inserting up to {@link Settings#batchSize()} notifications per request. What happens when the
+ * queue is full is decided by the {@link BackPressure} policy.
+ *
+ * <p>Because inserts happen after the client request has returned, insert failures cannot fail
+ * that request; they are logged instead. Notifications still queued are lost unless the writer
+ * is {@link #shutdown() shut down}, which drains the queue. Nothing does this automatically:
+ * whatever owns the hook must call {@link NotificationHook#shutdown()} before discarding it, such
+ * as when the application is undeployed.
+ */
+public class AsyncNotificationWriter {
+    private final Settings settings;
+    private final NotificationInserter inserter;
+    private final BlockingQueue<NotificationEntity> queue;
+    private final ExecutorService flushers;
+
+    private volatile boolean accepting = true;
+
+    /**
+     * Held shared by submits while they queue, and exclusively by shutdown once it stops
+     * accepting, so nothing is queued after shutdown has drained what is left.
+     */
+    private final ReadWriteLock submitting = new ReentrantReadWriteLock();
+
+    /**
+     * How often a submit waiting for room on the queue checks whether the writer was shut down.
+     */
+    private static final long SHUTDOWN_CHECK_MILLIS = 100;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncNotificationWriter.class);
+
+    public enum BackPressure {
+        /** Wait for room on the queue, holding up the client request. */
+        BLOCK,
+        /** Fail the client request with a {@link NotificationProcessingError}. */
+        FAIL,
+        /** Insert the notification on the client request thread, as if writes were synchronous. */
+        WRITE_SYNCHRONOUSLY
+    }
+
+    AsyncNotificationWriter(Settings settings, NotificationInserter inserter) {
+        this.settings = settings;
+        this.inserter = inserter;
+        this.queue = new ArrayBlockingQueue<>(settings.capacity());
+        this.flushers = Executors.newFixedThreadPool(settings.flusherThreads(),
+                new FlusherThreadFactory());
+
+        for (int i = 0; i < settings.flusherThreads(); i++) {
+            flushers.execute(new Flusher());
+        }
+    }
+
+    /**
+     * Queues the notification to be written.
+     *
+     * @return false if the notification was not queued and must be written synchronously by the
+     * caller. This happens if the queue is full and the back pressure policy is {@link
+     * BackPressure#WRITE_SYNCHRONOUSLY}, or if the writer has been shut down, including while
+     * waiting for room on the queue.
+     * @throws NotificationProcessingError if the queue is full and the back pressure policy is
+     * {@link BackPressure#FAIL}, or if interrupted while waiting for room on the queue.
+     */
+    boolean submit(NotificationEntity notification) {
+        submitting.readLock().lock();
+        try {
+            if (!accepting) {
+                return false;
+            }
+
+            switch (settings.backPressure()) {
+                case BLOCK:
+                    try {
+                        while (!queue.offer(notification, SHUTDOWN_CHECK_MILLIS,
+                                TimeUnit.MILLISECONDS)) {
+                            if (!accepting) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new NotificationProcessingError(e);
+                    }
+                case FAIL:
+                    if (!queue.offer(notification)) {
+                        throw new NotificationProcessingError("Notification queue is full " +
+                                "(capacity " + settings.capacity() + "); rejecting notification: " +
+                                notification);
+                    }
+                    return true;
+                default:
+                    return queue.offer(notification);
+            }
+        } finally {
+            submitting.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of notifications waiting to be written.
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting notifications and waits up to {@link Settings#shutdownTimeoutMillis()}
+     * for those already queued to be written. Anything the flushers did not get to in time is
+     * written on the calling thread. Submits still waiting for room on the queue give up, leaving
+     * their notifications to their callers.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (!accepting) {
+                return;
+            }
+            accepting = false;
+        }
+
+        // Waits for submits which saw the writer accepting to finish queueing.
+        submitting.writeLock().lock();
+        submitting.writeLock().unlock();
+
+        flushers.shutdown();
+
+        try {
+            if (!flushers.awaitTermination(settings.shutdownTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Notification flushers did not finish within {}ms",
+                        settings.shutdownTimeoutMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Catches anything the flushers did not get to in time.
+        List<NotificationEntity> remaining = new ArrayList<>();
+        while (queue.drainTo(remaining, settings.batchSize()) > 0) {
+            write(remaining);
+            remaining.clear();
+        }
+    }
+
+    private void write(List<NotificationEntity> batch) {
+        try {
+            inserter.insert(batch);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to write " + batch.size() + " queued notification(s): " + batch, e);
+        }
+    }
+
+    private class Flusher implements Runnable {
+        @Override
+        public void run() {
+            List<NotificationEntity> batch = new ArrayList<>(settings.batchSize());
+
+            while (true) {
+                NotificationEntity next;
+
+                try {
+                    next = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                if (next == null) {
+                    if (!accepting) {
+                        return;
+                    }
+                    continue;
+                }
+
+                batch.add(next);
+                queue.drainTo(batch, settings.batchSize() - 1);
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private static class FlusherThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "notification-flusher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Immutable settings for an {@link AsyncNotificationWriter}. Start from {@link #defaults()}.
+     */
+    public static final class Settings {
+        private final int capacity;
+        private final int flusherThreads;
+        private final int batchSize;
+        private final BackPressure backPressure;
+        private final long shutdownTimeoutMillis;
+
+        private static final Settings DEFAULTS =
+                new Settings(10000, 2, 100, BackPressure.WRITE_SYNCHRONOUSLY, 30000);
+
+        private Settings(int capacity, int flusherThreads, int batchSize,
+                BackPressure backPressure, long shutdownTimeoutMillis) {
+            if (capacity < 1 || flusherThreads < 1 || batchSize < 1) {
+                throw new IllegalArgumentException("capacity, flusherThreads, and batchSize " +
+                        "must all be at least 1 but were: " + capacity + ", " + flusherThreads +
+                        ", " + batchSize);
+            }
+            if (backPressure == null) {
+                throw new NullPointerException("backPressure");
+            }
+
+            this.capacity = capacity;
+            this.flusherThreads = flusherThreads;
+            this.batchSize = batchSize;
+            this.backPressure = backPressure;
+            this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        }
+
+        /**
+         * A queue of 10,000 notifications drained by 2 flushers in batches of up to 100, falling
+         * back to synchronous writes when full, and waiting up to 30 seconds to drain on shutdown.
+         */
+        public static Settings defaults() {
+            return DEFAULTS;
+        }
+
+        public Settings withCapacity(int capacity) {
+            return new Settings(capacity, flusherThreads, batchSize, backPressure,
+                    shutdownTimeoutMillis);
+        }
+
+        public Settings withFlusherThreads(int flusherThreads) {
+            return new Settings(capacity, flusherThreads, batchSize, backPressure,
+                    shutdownTimeoutMillis);
+        }
+
+        public Settings withBatchSize(int batchSize) {
+            return new Settings(capacity, flusherThreads, batchSize, backPressure,
+                    shutdownTimeoutMillis);
+        }
+
+        public Settings withBackPressure(BackPressure backPressure) {
+            return new Settings(capacity, flusherThreads, batchSize, backPressure,
+                    shutdownTimeoutMillis);
+        }
+
+        public Settings withShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+            return new Settings(capacity, flusherThreads, batchSize, backPressure,
+                    shutdownTimeoutMillis);
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+
+        public int flusherThreads() {
+            return flusherThreads;
+        }
+
+        public int batchSize() {
+            return batchSize;
+        }
+
+        public BackPressure backPressure() {
+            return backPressure;
+        }
+
+        public long shutdownTimeoutMillis() {
+            return shutdownTimeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "capacity=" + capacity +
+                    ", flusherThreads=" + flusherThreads +
+                    ", batchSize=" + batchSize +
+                    ", backPressure=" + backPressure +
+                    ", shutdownTimeoutMillis=" + shutdownTimeoutMillis +
+                    '}';
+        }
+    }
+}
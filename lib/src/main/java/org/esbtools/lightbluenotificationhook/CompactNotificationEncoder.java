@@ -0,0 +1,127 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a notification document's {@code entityData} and {@code removedEntityData} in the
+ * compact form {@link NotificationEntity} reads back through the same accessors.
+ *
+ * <p>Paths are stored once, in {@code pathDictionary}, with array indexes replaced by '*'. So
+ * {@code sites.3.address.street} becomes a reference to {@code sites.*.address.street} plus the
+ * index 3, and every element of the {@code sites} array shares the dictionary entry.
+ */
+class CompactNotificationEncoder {
+    private final JsonNodeFactory jsonNodeFactory;
+
+    CompactNotificationEncoder(JsonNodeFactory jsonNodeFactory) {
+        this.jsonNodeFactory = jsonNodeFactory;
+    }
+
+    /**
+     * Replaces the document's entity data and removed entity data with their compact form.
+     *
+     * @param doc The notification, as written to JSON.
+     * @param notification The same notification, to read entity data from without parsing it
+     * back out of the document.
+     */
+    void encode(ObjectNode doc, NotificationEntity notification) {
+        Map<String, Integer> dictionaryPositions = new HashMap<>();
+        ArrayNode dictionary = jsonNodeFactory.arrayNode();
+
+        JsonNode entityData = encode(notification.getEntityData(), dictionary, dictionaryPositions);
+        JsonNode removedEntityData =
+                encode(notification.getRemovedEntityData(), dictionary, dictionaryPositions);
+
+        doc.remove("entityData");
+        doc.remove("removedEntityData");
+        doc.set("pathDictionary", dictionary);
+        doc.set("compactEntityData", entityData);
+        doc.set("compactRemovedEntityData", removedEntityData);
+    }
+
+    private JsonNode encode(@Nullable List<PathAndValue> pathAndValues, ArrayNode dictionary,
+            Map<String, Integer> dictionaryPositions) {
+        if (pathAndValues == null) {
+            return jsonNodeFactory.nullNode();
+        }
+
+        ArrayNode encoded = jsonNodeFactory.arrayNode();
+        StringBuilder template = new StringBuilder();
+
+        for (PathAndValue pathAndValue : pathAndValues) {
+            ObjectNode element = encoded.addObject();
+            String path = pathAndValue.getPath();
+            ArrayNode indexes = null;
+
+            template.setLength(0);
+            int segmentStart = 0;
+
+            while (segmentStart <= path.length()) {
+                int segmentEnd = path.indexOf('.', segmentStart);
+                if (segmentEnd == -1) {
+                    segmentEnd = path.length();
+                }
+
+                if (segmentStart > 0) {
+                    template.append('.');
+                }
+
+                // Field names cannot be all digits, so such segments are always array indexes.
+                if (isIndex(path, segmentStart, segmentEnd)) {
+                    if (indexes == null) {
+                        indexes = jsonNodeFactory.arrayNode();
+                    }
+                    indexes.add(Integer.parseInt(path.substring(segmentStart, segmentEnd)));
+                    template.append('*');
+                } else {
+                    template.append(path, segmentStart, segmentEnd);
+                }
+
+                segmentStart = segmentEnd + 1;
+            }
+
+            String key = template.toString();
+            Integer position = dictionaryPositions.get(key);
+
+            if (position == null) {
+                position = dictionary.size();
+                dictionaryPositions.put(key, position);
+                dictionary.add(key);
+            }
+
+            element.put("path", position);
+            if (indexes != null) {
+                element.set("indexes", indexes);
+            }
+            element.put("value", pathAndValue.getValue());
+        }
+
+        return encoded;
+    }
+
+    private static boolean isIndex(String path, int start, int end) {
+        // Anything longer could overflow an int, and arrays are not that large.
+        if (end == start || end - start > 9) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
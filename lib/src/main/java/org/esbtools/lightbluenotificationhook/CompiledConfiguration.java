@@ -0,0 +1,223 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.eval.Projector;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.ProjectionList;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Everything the hook derives from an entity's metadata and its {@link
+ * NotificationHookConfiguration} before it can look at any documents.
+ *
+ * <p>None of this changes for a given metadata version, so it is built once and reused via
+ * {@link CompiledConfigurationCache}.
+ *
+ * <p>Documents are projected as {@link ProjectedNode views} wherever the projection can be
+ * compiled into a {@link WatchPathTrie}, and by a projector otherwise. Projectors are not safe to
+ * use from several threads at once (a {@code ListProjector} remembers the nested projector of its
+ * last evaluated field), so each projection borrows one from a pool and returns it after. The pool
+ * grows to as many projectors as threads ever project at once, and any thread reuses those
+ * already built, including by {@link NotificationHook#warmUp(com.redhat.lightblue.metadata.Metadata,
+ * int) warming up}.
+ */
+class CompiledConfiguration {
+    private final String entityName;
+    private final NotificationHookConfiguration configuration;
+    private final Projection watchProjection;
+    private final List<Path> identityPaths;
+    private final ProjectedNodeComparator docComparator;
+    private final @Nullable WatchPathTrie watchPathTrie;
+    private final @Nullable WatchPathTrie includePathTrie;
+    private final WatchedFieldsPrecheck watchedFieldsPrecheck;
+    private final WatchedFieldsFingerprint watchedFieldsFingerprint;
+    private final ProjectorPool watchProjectors;
+    private final ProjectorPool includeProjectors;
+    private final PathStrings pathStrings = new PathStrings(MAX_CACHED_PATH_SEGMENTS);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompiledConfiguration.class);
+
+    /**
+     * Enough for every path of an entity with a few hundred fields, and of arrays of some tens
+     * of elements of those.
+     */
+    private static final int MAX_CACHED_PATH_SEGMENTS = 10000;
+
+    CompiledConfiguration(final EntityMetadata metadata,
+            final NotificationHookConfiguration configuration) {
+        this.entityName = metadata.getName();
+        this.configuration = configuration;
+        this.watchProjection = addArrayIdentities(configuration.watchProjection(), metadata);
+        this.identityPaths = identityPaths(metadata);
+        this.docComparator = new ProjectedNodeComparator(metadata.getDocComparator());
+        this.watchPathTrie = WatchPathTrie.compile(watchProjection, metadata);
+        this.includePathTrie = WatchPathTrie.compile(configuration.includeProjection(), metadata);
+        this.watchedFieldsPrecheck = new WatchedFieldsPrecheck(watchPathTrie);
+        this.watchedFieldsFingerprint = new WatchedFieldsFingerprint(watchPathTrie);
+        this.watchProjectors = new ProjectorPool(watchProjection, metadata);
+        this.includeProjectors = new ProjectorPool(configuration.includeProjection(), metadata);
+    }
+
+    String entityName() {
+        return entityName;
+    }
+
+    NotificationHookConfiguration configuration() {
+        return configuration;
+    }
+
+    /**
+     * The configured watch projection, plus the identities of any watched arrays.
+     */
+    Projection watchProjection() {
+        return watchProjection;
+    }
+
+    /**
+     * @return The document as the watch projection projects it.
+     */
+    ProjectedNode watched(JsonDoc doc, JsonNodeFactory jsonNodeFactory) {
+        return project(watchPathTrie, watchProjectors, doc, jsonNodeFactory);
+    }
+
+    /**
+     * @return The document as the include projection projects it.
+     */
+    ProjectedNode included(JsonDoc doc, JsonNodeFactory jsonNodeFactory) {
+        return project(includePathTrie, includeProjectors, doc, jsonNodeFactory);
+    }
+
+    /**
+     * Tells whether watched fields may have changed without projecting or copying documents.
+     * Thread-safe.
+     */
+    WatchedFieldsPrecheck watchedFieldsPrecheck() {
+        return watchedFieldsPrecheck;
+    }
+
+    /**
+     * Tells whether watched fields may have changed other than by reordering arrays, for when
+     * that is not significant. Thread-safe.
+     */
+    WatchedFieldsFingerprint watchedFieldsFingerprint() {
+        return watchedFieldsFingerprint;
+    }
+
+    /**
+     * Strings of paths notifications of this entity refer to. Thread-safe.
+     */
+    PathStrings pathStrings() {
+        return pathStrings;
+    }
+
+    /**
+     * Full paths of the entity's identity fields, in the order they are added to entity data.
+     */
+    List<Path> identityPaths() {
+        return identityPaths;
+    }
+
+    /**
+     * Comparator of projected documents aware of the entity's array identities. It holds no
+     * state across comparisons, so it is shared by all threads.
+     */
+    ProjectedNodeComparator docComparator() {
+        return docComparator;
+    }
+
+    private static ProjectedNode project(@Nullable WatchPathTrie trie,
+            ProjectorPool projectors, JsonDoc doc, JsonNodeFactory jsonNodeFactory) {
+        if (trie != null) {
+            return ProjectedNode.root(trie, doc.getRoot());
+        }
+
+        Projector projector = projectors.borrow();
+        try {
+            return ProjectedNode.of(projector.project(doc, jsonNodeFactory).getRoot());
+        } finally {
+            projectors.release(projector);
+        }
+    }
+
+    private static List<Path> identityPaths(EntityMetadata metadata) {
+        List<Path> paths = new ArrayList<>();
+        for (Field identityField : metadata.getEntitySchema().getIdentityFields()) {
+            paths.add(identityField.getFullPath());
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    private static boolean isProjected(Path field,Projection p) {
+        switch(p.getFieldInclusion(field)) {
+        case explicit_inclusion:
+        case implicit_inclusion:return true;
+        default: return false;
+        }
+    }
+
+    private static Projection addArrayIdentities(Projection p,EntityMetadata md) {
+        // If an array is included in the projection, make sure its identity is also included
+        Map<Path,List<Path>> arrayIdentities=md.getEntitySchema().getArrayIdentities();
+        List<Projection> addFields=new ArrayList<>();
+        for(Map.Entry<Path,List<Path>> entry:arrayIdentities.entrySet()) {
+            Path array=entry.getKey();
+            List<Path> identities=new ArrayList<>();
+            for(Path x:entry.getValue())
+                identities.add(new Path(array,new Path(Path.ANYPATH,x)));
+
+            if(isProjected(array,p)) {
+                for(Path id:identities) {
+                    if(!isProjected(id,p)) {
+                        addFields.add(new FieldProjection(id,true,true));
+                    }
+                }
+            }
+        }
+        if(!addFields.isEmpty()) {
+            LOGGER.debug("Excluded array identities are added to projection:{}",addFields);
+            // Need to first add the original projection, then the included fields.
+            // This is order sensitive
+            return Projection.add(p,new ProjectionList(addFields));
+        } else
+            return p;
+    }
+
+    /**
+     * Projectors of one projection not currently in use, built on demand.
+     */
+    private static final class ProjectorPool {
+        private final Projection projection;
+        private final EntityMetadata metadata;
+        private final Queue<Projector> idle = new ConcurrentLinkedQueue<>();
+
+        ProjectorPool(Projection projection, EntityMetadata metadata) {
+            this.projection = projection;
+            this.metadata = metadata;
+        }
+
+        Projector borrow() {
+            Projector projector = idle.poll();
+            return projector != null ? projector : Projector.getInstance(projection, metadata);
+        }
+
+        void release(Projector projector) {
+            idle.add(projector);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe cache of {@link CompiledConfiguration}s keyed by entity name, entity
+ * version, and the {@link NotificationHookConfiguration#structure() structure} of the hook
+ * configuration, so configurations parsed separately from the same metadata share an entry.
+ *
+ * <p>When a version of an entity is seen which is not yet cached, entries for older versions of
+ * that entity are evicted, since metadata is typically only replaced going forward. Entries for
+ * newer versions are kept, as both may be in use while a new version rolls out. Beyond that, the
+ * oldest entries are evicted once more than {@code maximumSize} are cached.
+ */
+public class CompiledConfigurationCache {
+    private final int maximumSize;
+    private final ConcurrentMap<Key, CompiledConfiguration> cache = new ConcurrentHashMap<>();
+    private final Queue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompiledConfigurationCache.class);
+
+    public CompiledConfigurationCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public CompiledConfigurationCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1 but was: " +
+                    maximumSize);
+        }
+
+        this.maximumSize = maximumSize;
+    }
+
+    CompiledConfiguration get(EntityMetadata metadata,
+            NotificationHookConfiguration configuration) {
+        Key key = new Key(metadata.getName(), metadata.getVersion().getValue(),
+                configuration.structure());
+        CompiledConfiguration compiled = cache.get(key);
+
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+
+        misses.incrementAndGet();
+        evictOlderVersionsOf(key);
+
+        // Compiling twice in a race is harmless; only one result is kept.
+        compiled = new CompiledConfiguration(metadata, configuration);
+        CompiledConfiguration existing = cache.putIfAbsent(key, compiled);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        LOGGER.debug("Compiled notification hook configuration for {}", key);
+
+        insertionOrder.add(key);
+        evictOldestWhileOverSize();
+
+        return compiled;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+        insertionOrder.clear();
+    }
+
+    private void evictOlderVersionsOf(Key key) {
+        Iterator<Key> keys = cache.keySet().iterator();
+
+        while (keys.hasNext()) {
+            Key cached = keys.next();
+
+            if (cached.entityName.equals(key.entityName) &&
+                    compareVersions(cached.entityVersion, key.entityVersion) < 0) {
+                LOGGER.debug("Evicting {} now that version {} is in use", cached, key.entityVersion);
+                keys.remove();
+                insertionOrder.remove(cached);
+            }
+        }
+    }
+
+    /**
+     * Compares dot separated versions such as {@code 1.10.0-SNAPSHOT} part by part, numerically by
+     * each part's leading digits, then by the rest of the part as text. A part with text after its
+     * digits is older than one without, as with {@code -SNAPSHOT}.
+     */
+    private static int compareVersions(String first, String second) {
+        String[] firstParts = first.split("\\.");
+        String[] secondParts = second.split("\\.");
+
+        for (int i = 0; i < Math.max(firstParts.length, secondParts.length); i++) {
+            String firstPart = i < firstParts.length ? firstParts[i] : "0";
+            String secondPart = i < secondParts.length ? secondParts[i] : "0";
+            int firstDigits = leadingDigits(firstPart);
+            int secondDigits = leadingDigits(secondPart);
+
+            int comparison = new BigInteger("0" + firstPart.substring(0, firstDigits))
+                    .compareTo(new BigInteger("0" + secondPart.substring(0, secondDigits)));
+
+            if (comparison == 0) {
+                String firstRest = firstPart.substring(firstDigits);
+                String secondRest = secondPart.substring(secondDigits);
+                comparison = firstRest.isEmpty() == secondRest.isEmpty()
+                        ? firstRest.compareTo(secondRest)
+                        : firstRest.isEmpty() ? 1 : -1;
+            }
+
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+
+        return 0;
+    }
+
+    private static int leadingDigits(String part) {
+        int digits = 0;
+        while (digits < part.length() && Character.isDigit(part.charAt(digits))) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private void evictOldestWhileOverSize() {
+        while (cache.size() > maximumSize) {
+            Key oldest = insertionOrder.poll();
+
+            if (oldest == null) {
+                return;
+            }
+
+            cache.remove(oldest);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledConfigurationCache{" +
+                "size=" + size() +
+                ", hits=" + hits() +
+                ", misses=" + misses() +
+                '}';
+    }
+
+    private static final class Key {
+        final String entityName;
+        final String entityVersion;
+        final String configuration;
+
+        Key(String entityName, String entityVersion, String configuration) {
+            this.entityName = entityName;
+            this.entityVersion = entityVersion;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(entityName, key.entityName) &&
+                    Objects.equals(entityVersion, key.entityVersion) &&
+                    Objects.equals(configuration, key.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entityName, entityVersion, configuration);
+        }
+
+        @Override
+        public String toString() {
+            return entityName + ":" + entityVersion;
+        }
+    }
+}
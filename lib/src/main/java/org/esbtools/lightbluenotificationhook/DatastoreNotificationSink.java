@@ -0,0 +1,71 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.util.Error;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes notifications straight to the collection the notification entity is stored in, with a
+ * single unordered bulk insert, instead of through a {@link com.redhat.lightblue.mediator.Mediator}.
+ *
+ * <p>This skips everything lightblue does around an insert: metadata lookup, access checks,
+ * constraint validation, value generation, hooks on the notification entity, and building a
+ * response. Notifications are made by the hook, so checking them is mostly wasted work, but
+ * anything relying on those steps for the notification entity will not see these inserts.
+ *
+ * <p>Documents which fail to insert do not stop the others, and are reported as data errors.
+ */
+public class DatastoreNotificationSink implements NotificationSink {
+    private final Collection collection;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatastoreNotificationSink.class);
+
+    /**
+     * A collection of notification documents, such as the mongo collection lightblue keeps them
+     * in. Must be thread-safe.
+     */
+    public interface Collection {
+        /**
+         * Inserts the documents in any order, carrying on past those which fail.
+         *
+         * @return Errors of the documents which failed, by index in {@code docs}. Empty if all
+         * were inserted.
+         * @throws Exception if the insert could not be attempted, or failed as a whole
+         */
+        Map<Integer, Error> insertUnordered(List<JsonNode> docs) throws Exception;
+    }
+
+    public DatastoreNotificationSink(Collection collection) {
+        if (collection == null) {
+            throw new NullPointerException("collection");
+        }
+
+        this.collection = collection;
+    }
+
+    @Override
+    public Result write(List<JsonNode> notifications) throws Exception {
+        LOGGER.debug("Bulk inserting {} notification(s)", notifications.size());
+        Map<Integer, Error> failures = collection.insertUnordered(notifications);
+
+        if (failures.isEmpty()) {
+            return Result.written();
+        }
+
+        List<DataError> dataErrors = new ArrayList<>(failures.size());
+        for (Map.Entry<Integer, Error> failure : failures.entrySet()) {
+            dataErrors.add(new DataError(notifications.get(failure.getKey()),
+                    Collections.singletonList(failure.getValue())));
+        }
+
+        return new Result(Collections.<Error>emptyList(), dataErrors);
+    }
+}
@@ -0,0 +1,71 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects {@link PathAndValue}s for a notification in the order they are added, with a hash
+ * index so checking for an existing value is constant time regardless of how many are collected.
+ * Also keeps a running estimate of their size in JSON.
+ */
+class EntityDataAccumulator {
+    private final List<PathAndValue> data = new ArrayList<>();
+    private final Set<PathAndValue> index = new HashSet<>();
+    private long estimatedBytes;
+
+    /**
+     * Characters of {@code {"path":"","value":""},} around each path and value.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 23;
+
+    /**
+     * Adds the value even if an equal one was already added.
+     */
+    void add(PathAndValue pathAndValue) {
+        data.add(pathAndValue);
+        index.add(pathAndValue);
+        estimatedBytes += estimateBytes(pathAndValue);
+    }
+
+    /**
+     * @return true if the value was added, false if an equal one was already added.
+     */
+    boolean addIfAbsent(PathAndValue pathAndValue) {
+        if (!index.add(pathAndValue)) {
+            return false;
+        }
+
+        data.add(pathAndValue);
+        estimatedBytes += estimateBytes(pathAndValue);
+        return true;
+    }
+
+    int size() {
+        return data.size();
+    }
+
+    /**
+     * @return Roughly how many characters the collected values take up in JSON.
+     */
+    long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private static long estimateBytes(PathAndValue pathAndValue) {
+        String value = pathAndValue.getValue();
+        return ENTRY_OVERHEAD_BYTES + pathAndValue.getPath().length() +
+                (value == null ? 4 : value.length());
+    }
+
+    /**
+     * @return The collected values in the order they were added. The list is live; it should
+     * only be handed off once accumulation is complete.
+     */
+    List<PathAndValue> toList() {
+        return data;
+    }
+}
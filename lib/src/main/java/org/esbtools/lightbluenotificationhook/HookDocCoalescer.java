@@ -0,0 +1,109 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.hooks.HookDoc;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges documents of one request which have the same identity into a single document, going
+ * from the earliest pre-document to the latest post-document.
+ *
+ * <p>The merged document takes the place of the latest of those it replaces, and has its time
+ * and principal. It is an insert if the earliest was. Documents without a post-document, without
+ * all identity fields, or for finds are left alone.
+ */
+class HookDocCoalescer {
+    private HookDocCoalescer() {}
+
+    static List<HookDoc> coalesce(List<HookDoc> hookDocs, List<Path> identityPaths) {
+        if (hookDocs.size() < 2 || identityPaths.isEmpty()) {
+            return hookDocs;
+        }
+
+        List<HookDoc> docs = new ArrayList<>(hookDocs);
+        Map<List<String>, Integer> latestIndexByIdentity = new HashMap<>();
+        boolean coalesced = false;
+
+        for (int i = 0; i < docs.size(); i++) {
+            HookDoc doc = docs.get(i);
+            List<String> identity = identityOf(doc, identityPaths);
+
+            if (identity == null) {
+                continue;
+            }
+
+            Integer earlierIndex = latestIndexByIdentity.put(identity, i);
+
+            if (earlierIndex != null) {
+                HookDoc earlier = docs.get(earlierIndex);
+                docs.set(earlierIndex, null);
+                docs.set(i, new CoalescedHookDoc(earlier, doc));
+                coalesced = true;
+            }
+        }
+
+        if (!coalesced) {
+            return hookDocs;
+        }
+
+        List<HookDoc> result = new ArrayList<>(docs.size());
+        for (HookDoc doc : docs) {
+            if (doc != null) {
+                result.add(doc);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Identity values as JSON, or null if the document should not be coalesced.
+     */
+    @Nullable
+    private static List<String> identityOf(HookDoc doc, List<Path> identityPaths) {
+        JsonDoc postDoc = doc.getPostDoc();
+
+        if (postDoc == null || CRUDOperation.FIND.equals(doc.getCRUDOperation())) {
+            return null;
+        }
+
+        List<String> identity = new ArrayList<>(identityPaths.size());
+
+        for (Path identityPath : identityPaths) {
+            JsonNode value = postDoc.get(identityPath);
+
+            if (value == null || value.isNull()) {
+                return null;
+            }
+
+            identity.add(value.toString());
+        }
+
+        return identity;
+    }
+
+    private static class CoalescedHookDoc extends HookDoc {
+        private final Date when;
+
+        CoalescedHookDoc(HookDoc earliest, HookDoc latest) {
+            super(latest.getEntityMetadata(), earliest.getPreDoc(), latest.getPostDoc(),
+                    earliest.getPreDoc() == null ? CRUDOperation.INSERT : latest.getCRUDOperation(),
+                    latest.getWho());
+            this.when = latest.getWhen();
+        }
+
+        @Override
+        public Date getWhen() {
+            return when;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.util.Error;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Errors and data errors a sink reported for a notification it could not insert.
+ */
+class InsertFailure {
+    /** Null if the errors could not be tied to a particular notification. */
+    final @Nullable NotificationEntity entity;
+    final List<Error> errors;
+    final List<DataError> dataErrors;
+
+    InsertFailure(@Nullable NotificationEntity entity, List<Error> errors,
+            List<DataError> dataErrors) {
+        this.entity = entity;
+        this.errors = errors;
+        this.dataErrors = dataErrors;
+    }
+}
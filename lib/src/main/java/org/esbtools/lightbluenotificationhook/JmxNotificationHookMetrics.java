@@ -0,0 +1,196 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps {@link NotificationHookMetrics} in memory and publishes them as one MXBean per entity,
+ * named {@code org.esbtools.lightbluenotificationhook:type=NotificationHook,hook=<hook
+ * name>,entity=<entity name>}.
+ *
+ * <p>Latencies are in nanoseconds. An entity's MXBean is registered the first time something is
+ * recorded for it.
+ */
+public class JmxNotificationHookMetrics implements NotificationHookMetrics {
+    private final String hookName;
+    private final MBeanServer mBeanServer;
+    private final ConcurrentMap<String, EntityMetrics> entities = new ConcurrentHashMap<>();
+
+    public static final String DOMAIN = "org.esbtools.lightbluenotificationhook";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JmxNotificationHookMetrics.class);
+
+    public JmxNotificationHookMetrics(String hookName) {
+        this(hookName, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxNotificationHookMetrics(String hookName, MBeanServer mBeanServer) {
+        this.hookName = hookName;
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    public void recordStage(String entityName, Stage stage, long nanos) {
+        entity(entityName).stages.get(stage).record(nanos);
+    }
+
+    @Override
+    public void recordOutcome(String entityName, Outcome outcome, int count) {
+        entity(entityName).outcomes.get(outcome).add(count);
+    }
+
+    @Override
+    public void recordPayloadSize(String entityName, int entries) {
+        entity(entityName).payloadSize.record(entries);
+    }
+
+    /**
+     * @return The metrics recorded for the entity so far, or null if none have been.
+     */
+    public EntityMetricsMXBean forEntity(String entityName) {
+        return entities.get(entityName);
+    }
+
+    public ObjectName objectNameFor(String entityName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=NotificationHook,hook=" + ObjectName.quote(hookName) +
+                ",entity=" + ObjectName.quote(entityName));
+    }
+
+    /**
+     * Unregisters all MXBeans registered so far.
+     */
+    public void unregister() {
+        for (String entityName : entities.keySet()) {
+            try {
+                mBeanServer.unregisterMBean(objectNameFor(entityName));
+            } catch (JMException e) {
+                LOGGER.warn("Unable to unregister notification hook metrics for " + entityName, e);
+            }
+        }
+    }
+
+    private EntityMetrics entity(String entityName) {
+        EntityMetrics metrics = entities.get(entityName);
+
+        if (metrics != null) {
+            return metrics;
+        }
+
+        metrics = new EntityMetrics();
+        EntityMetrics existing = entities.putIfAbsent(entityName, metrics);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            mBeanServer.registerMBean(metrics, objectNameFor(entityName));
+        } catch (JMException e) {
+            // Keep recording; they are still available from forEntity.
+            LOGGER.warn("Unable to register notification hook metrics for " + entityName, e);
+        }
+
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "JmxNotificationHookMetrics{" +
+                "hookName='" + hookName + '\'' +
+                ", entities=" + entities.keySet() +
+                '}';
+    }
+
+    public interface EntityMetricsMXBean {
+        long getAbortedNotifications();
+        long getGeneratedNotifications();
+        long getFailedNotifications();
+        long getSuppressedNotifications();
+
+        LogHistogram.Snapshot getProjectionNanos();
+        LogHistogram.Snapshot getDiffNanos();
+        LogHistogram.Snapshot getBuildNanos();
+        LogHistogram.Snapshot getSerializationNanos();
+        LogHistogram.Snapshot getInsertNanos();
+
+        /**
+         * Entity data and removed entity data entries per notification.
+         */
+        LogHistogram.Snapshot getPayloadSize();
+    }
+
+    private static class EntityMetrics implements EntityMetricsMXBean {
+        final Map<Stage, LogHistogram> stages = new EnumMap<>(Stage.class);
+        final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+        final LogHistogram payloadSize = new LogHistogram();
+
+        EntityMetrics() {
+            for (Stage stage : Stage.values()) {
+                stages.put(stage, new LogHistogram());
+            }
+            for (Outcome outcome : Outcome.values()) {
+                outcomes.put(outcome, new LongAdder());
+            }
+        }
+
+        @Override
+        public long getAbortedNotifications() {
+            return outcomes.get(Outcome.ABORTED).sum();
+        }
+
+        @Override
+        public long getGeneratedNotifications() {
+            return outcomes.get(Outcome.GENERATED).sum();
+        }
+
+        @Override
+        public long getFailedNotifications() {
+            return outcomes.get(Outcome.FAILED).sum();
+        }
+
+        @Override
+        public long getSuppressedNotifications() {
+            return outcomes.get(Outcome.SUPPRESSED).sum();
+        }
+
+        @Override
+        public LogHistogram.Snapshot getProjectionNanos() {
+            return stages.get(Stage.PROJECTION).snapshot();
+        }
+
+        @Override
+        public LogHistogram.Snapshot getDiffNanos() {
+            return stages.get(Stage.DIFF).snapshot();
+        }
+
+        @Override
+        public LogHistogram.Snapshot getBuildNanos() {
+            return stages.get(Stage.BUILD).snapshot();
+        }
+
+        @Override
+        public LogHistogram.Snapshot getSerializationNanos() {
+            return stages.get(Stage.SERIALIZATION).snapshot();
+        }
+
+        @Override
+        public LogHistogram.Snapshot getInsertNanos() {
+            return stages.get(Stage.INSERT).snapshot();
+        }
+
+        @Override
+        public LogHistogram.Snapshot getPayloadSize() {
+            return payloadSize.snapshot();
+        }
+    }
+}
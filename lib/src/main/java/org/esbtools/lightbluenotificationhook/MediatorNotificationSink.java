@@ -0,0 +1,58 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.ClientIdentification;
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.mediator.Mediator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Writes notifications with a single insert request through a {@link Mediator}, so they are
+ * validated, hooked, and stored like any other entity's documents. This is the hook's default
+ * sink.
+ */
+public class MediatorNotificationSink implements NotificationSink {
+    private final Supplier<Mediator> mediator;
+    private final ClientIdentification clientId;
+    private final JsonNodeFactory jsonNodeFactory;
+
+    /**
+     * @param mediator Asked for the mediator on every write, so it may be looked up lazily.
+     * @param clientId Notifications are inserted as if by this client.
+     */
+    public MediatorNotificationSink(Supplier<Mediator> mediator, ClientIdentification clientId,
+            JsonNodeFactory jsonNodeFactory) {
+        this.mediator = mediator;
+        this.clientId = clientId;
+        this.jsonNodeFactory = jsonNodeFactory;
+    }
+
+    @Override
+    public Result write(List<JsonNode> notifications) {
+        EntityVersion notificationVersion = new EntityVersion(NotificationEntity.ENTITY_NAME,
+                                                              NotificationEntity.ENTITY_VERSION);
+
+        InsertionRequest newNotifications = new InsertionRequest();
+        newNotifications.setClientId(clientId);
+        newNotifications.setEntityVersion(notificationVersion);
+
+        if (notifications.size() == 1) {
+            newNotifications.setEntityData(notifications.get(0));
+        } else {
+            ArrayNode entityData = jsonNodeFactory.arrayNode();
+            entityData.addAll(notifications);
+            newNotifications.setEntityData(entityData);
+        }
+
+        Response response = mediator.get().insert(newNotifications);
+
+        return new Result(response.getErrors(), response.getDataErrors());
+    }
+}
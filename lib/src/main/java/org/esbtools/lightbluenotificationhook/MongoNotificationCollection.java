@@ -0,0 +1,152 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.config.LightblueFactory;
+import com.redhat.lightblue.crud.CRUDController;
+import com.redhat.lightblue.crud.MetadataResolver;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.mongo.common.MongoDataStore;
+import com.redhat.lightblue.mongo.crud.DocTranslator;
+import com.redhat.lightblue.mongo.crud.DocVerUtil;
+import com.redhat.lightblue.mongo.crud.MongoCRUDController;
+import com.redhat.lightblue.mongo.crud.MongoCrudConstants;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonDoc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The mongo collection lightblue stores the notification entity in, found through lightblue's
+ * mongo {@link CRUDController} the first time it is written to.
+ *
+ * <p>Documents are given the predefined fields the mediator would set, then translated and
+ * given lightblue's hidden fields as that controller would for an insert, and the driver
+ * generates their ids.
+ */
+class MongoNotificationCollection implements DatastoreNotificationSink.Collection {
+    private final Supplier<LightblueFactory> lightblueFactory;
+
+    private @Nullable volatile Resolved resolved;
+
+    MongoNotificationCollection(Supplier<LightblueFactory> lightblueFactory) {
+        this.lightblueFactory = lightblueFactory;
+    }
+
+    @Override
+    public Map<Integer, Error> insertUnordered(List<JsonNode> docs) throws Exception {
+        Resolved resolved = resolve();
+        BulkWriteOperation bulkInsert = resolved.collection.initializeUnorderedBulkOperation();
+        ObjectId docVer = new ObjectId();
+
+        for (JsonNode doc : docs) {
+            DBObject bson = toBson(doc, resolved.metadata, resolved.translator,
+                    resolved.jsonNodeFactory);
+            DocVerUtil.overwriteDocVer(bson, docVer);
+            bulkInsert.insert(bson);
+        }
+
+        try {
+            bulkInsert.execute();
+            return Collections.emptyMap();
+        } catch (BulkWriteException e) {
+            if (e.getWriteErrors().isEmpty()) {
+                // Only the write concern failed, which says nothing of particular documents.
+                throw e;
+            }
+
+            Map<Integer, Error> failures = new HashMap<>();
+            for (BulkWriteError writeError : e.getWriteErrors()) {
+                failures.put(writeError.getIndex(), Error.get("insert",
+                        MongoCrudConstants.isDuplicate(writeError.getCode())
+                                ? "mongo-crud:Duplicate"
+                                : "mongo-crud:SaveError",
+                        writeError.getMessage()));
+            }
+            return failures;
+        }
+    }
+
+    /**
+     * Translates a notification as lightblue would insert it: with the {@code objectType} and
+     * array count fields the mediator sets, which translation requires, and hidden fields. The
+     * notification itself is left as is, as it is reported back if it fails to insert.
+     */
+    static DBObject toBson(JsonNode notification, EntityMetadata metadata,
+            DocTranslator translator, JsonNodeFactory jsonNodeFactory) {
+        JsonDoc doc = new JsonDoc(notification.deepCopy());
+        doc.modify(PredefinedFields.OBJECTTYPE_PATH, jsonNodeFactory.textNode(metadata.getName()),
+                true);
+        PredefinedFields.updateArraySizes(metadata, jsonNodeFactory, doc);
+
+        DBObject bson = translator.toBson(doc).doc;
+        DocTranslator.populateDocHiddenFields(bson, metadata);
+        return bson;
+    }
+
+    static DocTranslator translatorFor(final EntityMetadata metadata,
+            JsonNodeFactory jsonNodeFactory) {
+        return new DocTranslator(new MetadataResolver() {
+            @Override
+            public EntityMetadata getEntityMetadata(String entityName) {
+                return metadata.getName().equals(entityName) ? metadata : null;
+            }
+        }, jsonNodeFactory);
+    }
+
+    private Resolved resolve() throws Exception {
+        Resolved resolved = this.resolved;
+
+        if (resolved == null) {
+            synchronized (this) {
+                resolved = this.resolved;
+                if (resolved == null) {
+                    resolved = new Resolved(lightblueFactory.get());
+                    this.resolved = resolved;
+                }
+            }
+        }
+
+        return resolved;
+    }
+
+    private static final class Resolved {
+        final EntityMetadata metadata;
+        final DBCollection collection;
+        final DocTranslator translator;
+        final JsonNodeFactory jsonNodeFactory;
+
+        Resolved(LightblueFactory lightblueFactory) throws Exception {
+            EntityMetadata metadata = lightblueFactory.getMetadata().getEntityMetadata(
+                    NotificationEntity.ENTITY_NAME, NotificationEntity.ENTITY_VERSION);
+            CRUDController controller = lightblueFactory.getFactory().getCRUDController(metadata);
+
+            if (!(controller instanceof MongoCRUDController) ||
+                    !(metadata.getDataStore() instanceof MongoDataStore)) {
+                throw new IllegalStateException("Notifications can only be written directly to " +
+                        "mongo, but are stored in: " + metadata.getDataStore());
+            }
+
+            MongoDataStore store = (MongoDataStore) metadata.getDataStore();
+
+            this.metadata = metadata;
+            this.collection = ((MongoCRUDController) controller).getDbResolver().get(store)
+                    .getCollection(store.getCollectionName());
+            this.jsonNodeFactory = lightblueFactory.getFactory().getNodeFactory();
+            this.translator = translatorFor(metadata, jsonNodeFactory);
+        }
+    }
+}
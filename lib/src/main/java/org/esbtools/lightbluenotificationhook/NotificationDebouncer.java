@@ -0,0 +1,366 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Holds back notifications for a short window so that further changes to the same entity
+ * instance can be merged into them, producing one notification instead of many.
+ *
+ * <p>A window starts with the first notification for an entity name and identity and is not
+ * extended by later ones, so no notification is delayed by more than {@link
+ * Settings#windowMillis()}. When it ends, the merged notification is inserted by a background
+ * thread; failures are logged.
+ *
+ * <p>At most {@link Settings#maximumPending()} notifications are held. Past that, notifications
+ * for entity instances not already pending are not held and are written as usual.
+ *
+ * <p>Held notifications are lost unless the debouncer is {@link #shutdown() shut down}, which
+ * writes them. Nothing does this automatically: whatever owns the hook must call {@link
+ * NotificationHook#shutdown()} before discarding it, such as when the application is undeployed.
+ */
+public class NotificationDebouncer {
+    private final Settings settings;
+    private final NotificationInserter inserter;
+    private final ConcurrentMap<List<Object>, NotificationEntity> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean accepting = true;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationDebouncer.class);
+
+    NotificationDebouncer(Settings settings, NotificationInserter inserter) {
+        this.settings = settings;
+        this.inserter = inserter;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "notification-debouncer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Holds the notification, merging it into one already held for the same entity instance.
+     *
+     * @param identityFields The number of entries at the start of the notification's entity data
+     * which identify the entity instance. The hook always adds identities first.
+     * @param budget The budget of the notification's configuration, which a merged notification
+     * must also fit.
+     * @return false if the notification was not held and must be written by the caller. This
+     * happens if too many notifications are already held, or if the debouncer has been shut down.
+     */
+    boolean submit(final NotificationEntity notification, final int identityFields,
+            final NotificationHookConfiguration.PayloadBudget budget) {
+        if (!accepting) {
+            return false;
+        }
+
+        final List<Object> key = keyOf(notification, identityFields);
+
+        if (pending.size() >= settings.maximumPending() && !pending.containsKey(key)) {
+            return false;
+        }
+
+        final boolean[] opened = new boolean[1];
+
+        pending.compute(key,
+                new BiFunction<List<Object>, NotificationEntity, NotificationEntity>() {
+                    @Override
+                    public NotificationEntity apply(List<Object> identity, NotificationEntity earlier) {
+                        if (earlier == null) {
+                            opened[0] = true;
+                            return notification;
+                        }
+                        return merge(earlier, notification, identityFields, budget);
+                    }
+                });
+
+        // Only the first notification for a key opens a window. Once it is flushed, the next
+        // notification for that key opens a new one.
+        if (opened[0]) {
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(key);
+                    }
+                }, settings.windowMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Raced with shutdown, which may already have flushed everything else.
+                flush(key);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of notifications currently held.
+     */
+    public int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Stops holding notifications and writes those currently held on the calling thread.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (!accepting) {
+                return;
+            }
+            accepting = false;
+        }
+
+        scheduler.shutdownNow();
+
+        for (List<Object> key : new ArrayList<>(pending.keySet())) {
+            flush(key);
+        }
+    }
+
+    private void flush(List<Object> key) {
+        NotificationEntity notification = pending.remove(key);
+
+        if (notification == null) {
+            return;
+        }
+
+        try {
+            inserter.insert(Collections.singletonList(notification));
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to write debounced notification: " + notification, e);
+        }
+    }
+
+    private static List<Object> keyOf(NotificationEntity notification, int identityFields) {
+        List<Object> key = new ArrayList<>(identityFields + 1);
+        key.add(notification.getEntityName());
+        key.addAll(notification.getEntityData().subList(0, identityFields));
+        return key;
+    }
+
+    /**
+     * Combines two notifications for the same entity instance into one describing both changes.
+     *
+     * <p>Entity data has the latest value for each path, without paths the later notification
+     * removed. Removed entity data has the earliest, without paths the later notification added
+     * back or the earlier one added in the first place. An insert has no removed entity data or
+     * paths. Updated paths are the union of both, as are removed paths less those the later
+     * notification added back. The result is an insert if the earlier notification was, and
+     * otherwise takes the later notification's operation. Principal and date are the later
+     * notification's. It is truncated if either was, or if it no longer fits the budget, in which
+     * case it is degraded as the hook degrades any other notification over budget.
+     *
+     * @param identityFields The number of entries at the start of both notifications' entity data
+     * which identify the entity instance. These are always kept.
+     */
+    static NotificationEntity merge(NotificationEntity earlier, NotificationEntity later,
+            int identityFields, NotificationHookConfiguration.PayloadBudget budget) {
+        NotificationEntity merged = new NotificationEntity();
+        boolean insert = earlier.getOperation() == NotificationEntity.Operation.insert;
+        merged.setEntityName(later.getEntityName());
+        merged.setEntityVersion(later.getEntityVersion());
+        merged.setStatus(later.getStatus());
+        merged.setOperation(insert ? NotificationEntity.Operation.insert : later.getOperation());
+        merged.setClientRequestPrincipal(later.getClientRequestPrincipal());
+        merged.setClientRequestDate(later.getClientRequestDate());
+
+        Set<String> earlierPaths = pathsOf(earlier.getEntityData());
+        Set<String> earlierRemovedPaths = pathsOf(earlier.getRemovedEntityData());
+        Set<String> laterPaths = pathsOf(later.getEntityData());
+        Set<String> laterRemovedPaths = pathsOf(later.getRemovedEntityData());
+
+        EntityDataAccumulator entityData = new EntityDataAccumulator();
+        List<PathAndValue> latest = latestByPath(earlier.getEntityData(), later.getEntityData());
+
+        for (int i = 0; i < latest.size(); i++) {
+            String path = latest.get(i).getPath();
+            boolean removedByLater = !laterPaths.contains(path) &&
+                    (laterRemovedPaths.contains(path) || isUnder(path, later.getRemovedPaths()));
+
+            if (i < identityFields || !removedByLater) {
+                entityData.add(latest.get(i));
+            }
+        }
+
+        EntityDataAccumulator removedEntityData = new EntityDataAccumulator();
+        List<String> removedPaths = new ArrayList<>();
+
+        if (!insert) {
+            for (PathAndValue pathAndValue :
+                    latestByPath(later.getRemovedEntityData(), earlier.getRemovedEntityData())) {
+                String path = pathAndValue.getPath();
+                boolean addedBackByLater = earlierRemovedPaths.contains(path) &&
+                        !earlierPaths.contains(path) &&
+                        laterPaths.contains(path) && !laterRemovedPaths.contains(path);
+                boolean addedByEarlier = !earlierRemovedPaths.contains(path) &&
+                        earlierPaths.contains(path) && isUnder(path, earlier.getUpdatedPaths());
+
+                if (!addedBackByLater && !addedByEarlier) {
+                    removedEntityData.add(pathAndValue);
+                }
+            }
+
+            for (String path : earlier.getRemovedPaths()) {
+                if (!later.getUpdatedPaths().contains(path)) {
+                    removedPaths.add(path);
+                }
+            }
+            removedPaths = union(removedPaths, later.getRemovedPaths());
+        }
+
+        List<String> updatedPaths = union(earlier.getUpdatedPaths(), later.getUpdatedPaths());
+
+        if (budget.isExceededBy(entityData.size() + removedEntityData.size(),
+                entityData.estimatedBytes() + removedEntityData.estimatedBytes() +
+                        NotificationHook.estimateBytes(updatedPaths) +
+                        NotificationHook.estimateBytes(removedPaths))) {
+            NotificationHook.degrade(merged, identityFields, budget, entityData, updatedPaths,
+                    removedPaths);
+            return merged;
+        }
+
+        merged.setEntityData(entityData.toList());
+        merged.setRemovedEntityData(removedEntityData.toList());
+        merged.setUpdatedPaths(updatedPaths);
+        merged.setRemovedPaths(removedPaths);
+        if (Boolean.TRUE.equals(earlier.getTruncated()) ||
+                Boolean.TRUE.equals(later.getTruncated())) {
+            merged.setTruncated(true);
+        }
+        return merged;
+    }
+
+    private static Set<String> pathsOf(List<PathAndValue> data) {
+        Set<String> paths = new HashSet<>();
+        for (PathAndValue pathAndValue : data) {
+            paths.add(pathAndValue.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * @return true if the path is one of the others or beneath one of them.
+     */
+    private static boolean isUnder(String path, List<String> others) {
+        for (String other : others) {
+            if (path.equals(other) || path.startsWith(other + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Entries in the order of {@code older} then any new in {@code newer}, with {@code newer}'s
+     * values where both have a path.
+     */
+    private static List<PathAndValue> latestByPath(List<PathAndValue> older,
+            List<PathAndValue> newer) {
+        Map<String, String> newerValues = new HashMap<>();
+        for (PathAndValue pathAndValue : newer) {
+            if (!newerValues.containsKey(pathAndValue.getPath())) {
+                newerValues.put(pathAndValue.getPath(), pathAndValue.getValue());
+            }
+        }
+
+        EntityDataAccumulator result = new EntityDataAccumulator();
+        Set<String> olderPaths = new HashSet<>();
+
+        for (PathAndValue pathAndValue : older) {
+            String path = pathAndValue.getPath();
+            olderPaths.add(path);
+            result.addIfAbsent(newerValues.containsKey(path)
+                    ? new PathAndValue(path, newerValues.get(path))
+                    : pathAndValue);
+        }
+
+        for (PathAndValue pathAndValue : newer) {
+            if (!olderPaths.contains(pathAndValue.getPath())) {
+                result.addIfAbsent(pathAndValue);
+            }
+        }
+
+        return result.toList();
+    }
+
+    private static List<String> union(List<String> first, List<String> second) {
+        Set<String> union = new LinkedHashSet<>(first);
+        union.addAll(second);
+        return new ArrayList<>(union);
+    }
+
+    /**
+     * Immutable settings for a {@link NotificationDebouncer}. Start from {@link #defaults()}.
+     */
+    public static final class Settings {
+        private final long windowMillis;
+        private final int maximumPending;
+
+        private static final Settings DEFAULTS = new Settings(500, 10000);
+
+        private Settings(long windowMillis, int maximumPending) {
+            if (windowMillis < 1 || maximumPending < 1) {
+                throw new IllegalArgumentException("windowMillis and maximumPending must both " +
+                        "be at least 1 but were: " + windowMillis + ", " + maximumPending);
+            }
+
+            this.windowMillis = windowMillis;
+            this.maximumPending = maximumPending;
+        }
+
+        /**
+         * Windows of 500 milliseconds, holding up to 10,000 notifications.
+         */
+        public static Settings defaults() {
+            return DEFAULTS;
+        }
+
+        public Settings withWindowMillis(long windowMillis) {
+            return new Settings(windowMillis, maximumPending);
+        }
+
+        public Settings withMaximumPending(int maximumPending) {
+            return new Settings(windowMillis, maximumPending);
+        }
+
+        public long windowMillis() {
+            return windowMillis;
+        }
+
+        public int maximumPending() {
+            return maximumPending;
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "windowMillis=" + windowMillis +
+                    ", maximumPending=" + maximumPending +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nullable;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes a {@link NotificationEntity} straight into an {@link ObjectNode}.
+ *
+ * <p>Produces exactly what a default {@code ObjectMapper#valueToTree} does, down to field order
+ * and date format, without going through bean introspection and an intermediate token buffer.
+ * A differently configured {@code ObjectMapper} may produce something else, so this is only used
+ * when the hook created its own.
+ */
+class NotificationEntityWriter {
+    private final JsonNodeFactory jsonNodeFactory;
+
+    /**
+     * Same pattern as the {@code @JsonFormat} on {@link NotificationEntity}'s dates, in the same
+     * time zone and locale Jackson uses by default. Formats are not thread-safe.
+     */
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss.SSSZ", Locale.getDefault());
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    NotificationEntityWriter(JsonNodeFactory jsonNodeFactory) {
+        this.jsonNodeFactory = jsonNodeFactory;
+    }
+
+    ObjectNode write(NotificationEntity notification) {
+        ObjectNode node = jsonNodeFactory.objectNode();
+
+        // Same order as the fields are declared, which is the order Jackson uses.
+        node.put("_id", notification.get_id());
+        node.put("entityName", notification.getEntityName());
+        node.put("entityVersion", notification.getEntityVersion());
+        node.set("status", enumValue(notification.getStatus()));
+        node.set("operation", enumValue(notification.getOperation()));
+        node.put("clientRequestPrincipal", notification.getClientRequestPrincipal());
+        node.set("clientRequestDate", dateValue(notification.getClientRequestDate()));
+        node.set("processingDate", dateValue(notification.getProcessingDate()));
+        node.set("processedDate", dateValue(notification.getProcessedDate()));
+        node.set("entityData", pathAndValues(notification.getEntityData()));
+        node.set("updatedPaths", paths(notification.getUpdatedPaths()));
+        node.set("removedEntityData", pathAndValues(notification.getRemovedEntityData()));
+        node.set("removedPaths", paths(notification.getRemovedPaths()));
+
+        // Omitted unless set, as Jackson does.
+        if (notification.getTruncated() != null) {
+            node.put("truncated", notification.getTruncated());
+        }
+
+        return node;
+    }
+
+    private JsonNode enumValue(@Nullable Enum<?> value) {
+        return value == null ? jsonNodeFactory.nullNode() : jsonNodeFactory.textNode(value.name());
+    }
+
+    private JsonNode dateValue(@Nullable Date date) {
+        return date == null
+                ? jsonNodeFactory.nullNode()
+                : jsonNodeFactory.textNode(DATE_FORMAT.get().format(date));
+    }
+
+    private JsonNode pathAndValues(@Nullable List<PathAndValue> pathAndValues) {
+        if (pathAndValues == null) {
+            return jsonNodeFactory.nullNode();
+        }
+
+        ArrayNode array = jsonNodeFactory.arrayNode();
+
+        for (PathAndValue pathAndValue : pathAndValues) {
+            ObjectNode element = array.addObject();
+            element.put("path", pathAndValue.getPath());
+            element.put("value", pathAndValue.getValue());
+        }
+
+        return array;
+    }
+
+    private JsonNode paths(@Nullable List<String> paths) {
+        if (paths == null) {
+            return jsonNodeFactory.nullNode();
+        }
+
+        ArrayNode array = jsonNodeFactory.arrayNode();
+
+        for (String path : paths) {
+            array.add(path);
+        }
+
+        return array;
+    }
+}
@@ -1,31 +1,22 @@
 package org.esbtools.lightbluenotificationhook;
 
 import com.redhat.lightblue.ClientIdentification;
-import com.redhat.lightblue.DataError;
-import com.redhat.lightblue.EntityVersion;
-import com.redhat.lightblue.Response;
 import com.redhat.lightblue.config.LightblueFactory;
 import com.redhat.lightblue.config.LightblueFactoryAware;
 import com.redhat.lightblue.crud.CRUDOperation;
-import com.redhat.lightblue.crud.InsertionRequest;
-import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.hooks.CRUDHook;
 import com.redhat.lightblue.hooks.HookDoc;
 import com.redhat.lightblue.mediator.Mediator;
+import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
-import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.Hook;
 import com.redhat.lightblue.metadata.HookConfiguration;
-import com.redhat.lightblue.query.FieldProjection;
-import com.redhat.lightblue.query.Projection;
-import com.redhat.lightblue.query.ProjectionList;
+import com.redhat.lightblue.metadata.Metadata;
+import com.redhat.lightblue.metadata.MetadataStatus;
 import com.redhat.lightblue.util.DocComparator;
-import com.redhat.lightblue.util.Error;
-import com.redhat.lightblue.util.JsonCompare;
 import com.redhat.lightblue.util.JsonDoc;
-import com.redhat.lightblue.util.JsonNodeCursor;
 import com.redhat.lightblue.util.Path;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
@@ -33,18 +24,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
 
 public class NotificationHook implements CRUDHook, LightblueFactoryAware {
     private final String name;
     private final JsonNodeFactory jsonNodeFactory;
     private final ObjectMapper objectMapper;
+    private final CompiledConfigurationCache compiledConfigurations = new CompiledConfigurationCache();
+    private final NotificationInserter inserter;
+    private final NotificationRateLimiters rateLimiters;
 
     private @Nullable LightblueFactory lightblueFactory;
     private @Nullable volatile Mediator mediator;
+    private @Nullable volatile AsyncNotificationWriter asyncWriter;
+    private @Nullable volatile NotificationDebouncer debouncer;
+    private @Nullable volatile NotificationSpool spool;
+    private @Nullable volatile NotificationLog log;
+    private volatile NotificationHookMetrics metrics = NotificationHookMetrics.NONE;
+    private @Nullable volatile Parallelism parallelism;
+    private @Nullable Integer warmUpOnStartupDiffs;
+    private boolean warmUpStarted;
 
     private static final Logger LOGGER=LoggerFactory.getLogger(NotificationHook.class);
 
@@ -65,21 +76,39 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
     }
 
     public NotificationHook(String name, Mediator mediator) {
-        this(name, new ObjectMapper(), JsonNodeFactory.withExactBigDecimals(true), mediator);
+        // Our own default ObjectMapper: notifications can be written to JSON without it.
+        this(name, new ObjectMapper(), JsonNodeFactory.withExactBigDecimals(true), mediator, true);
     }
 
+    /**
+     * Notifications are written to JSON using the provided {@code objectMapper}.
+     */
     public NotificationHook(String name, ObjectMapper objectMapper,
             JsonNodeFactory jsonNodeFactory, Mediator mediator) {
+        this(name, objectMapper, jsonNodeFactory, mediator, false);
+    }
+
+    private NotificationHook(String name, ObjectMapper objectMapper,
+            JsonNodeFactory jsonNodeFactory, Mediator mediator, boolean writeNotificationsDirectly) {
         this.name = name;
         this.jsonNodeFactory = jsonNodeFactory;
         this.objectMapper = objectMapper;
         this.mediator = mediator;
+        this.inserter = new NotificationInserter(objectMapper,
+                writeNotificationsDirectly ? new NotificationEntityWriter(jsonNodeFactory) : null,
+                new MediatorNotificationSink(mediatorSupplier(), notificationHookClientId,
+                        jsonNodeFactory));
+        this.rateLimiters = new NotificationRateLimiters(name, inserter);
     }
 
     @Override
     public void setLightblueFactory(LightblueFactory lightblueFactory) {
         synchronized (this) {
             this.lightblueFactory = lightblueFactory;
+
+            if (warmUpOnStartupDiffs != null && !warmUpStarted) {
+                startWarmUp(warmUpOnStartupDiffs);
+            }
         }
     }
 
@@ -88,6 +117,384 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
         return name;
     }
 
+    /**
+     * Opts in to writing notifications asynchronously: notifications are queued and inserted by
+     * background flushers instead of on the client request thread. Insert failures can then no
+     * longer fail the client request, and are logged instead.
+     *
+     * <p>{@link #shutdown()} must be called to drain queued notifications before discarding the
+     * hook, such as when the application is undeployed. Nothing calls it automatically, and
+     * notifications still queued are otherwise lost.
+     *
+     * @return The writer now used by this hook.
+     * @throws IllegalStateException if asynchronous writes were already enabled
+     */
+    public AsyncNotificationWriter writeAsynchronously(AsyncNotificationWriter.Settings settings) {
+        synchronized (this) {
+            if (asyncWriter != null) {
+                throw new IllegalStateException("Asynchronous writes already enabled.");
+            }
+
+            asyncWriter = new AsyncNotificationWriter(settings, inserter);
+
+            return asyncWriter;
+        }
+    }
+
+    /**
+     * Opts in to debouncing notifications: a notification is held for a short window, and any
+     * further notifications for the same entity instance made in that window are merged into it,
+     * so that a burst of changes results in one notification. Notifications are inserted by a
+     * background thread when their window ends, so insert failures are logged rather than
+     * failing the client request.
+     *
+     * <p>{@link #shutdown()} must be called to write held notifications before discarding the
+     * hook, such as when the application is undeployed. Nothing calls it automatically, and
+     * notifications still held are otherwise lost.
+     *
+     * @return The debouncer now used by this hook.
+     * @throws IllegalStateException if debouncing was already enabled
+     */
+    public NotificationDebouncer debounce(NotificationDebouncer.Settings settings) {
+        synchronized (this) {
+            if (debouncer != null) {
+                throw new IllegalStateException("Debouncing already enabled.");
+            }
+
+            debouncer = new NotificationDebouncer(settings, inserter);
+
+            return debouncer;
+        }
+    }
+
+    /**
+     * Opts in to spooling notifications which fail to insert to local disk, rather than losing
+     * them and failing the client request. Spooled notifications are inserted again in the
+     * background once inserts succeed.
+     *
+     * @return The spool now used by this hook.
+     * @throws IllegalStateException if a spool was already configured
+     * @throws UncheckedIOException if the spool directory could not be prepared
+     */
+    public NotificationSpool spoolFailedInserts(NotificationSpool.Settings settings) {
+        synchronized (this) {
+            if (spool != null) {
+                throw new IllegalStateException("Failed inserts are already spooled to: " +
+                        spool);
+            }
+
+            try {
+                spool = new NotificationSpool(settings, objectMapper, inserter);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to create notification spool with " +
+                        "settings: " + settings, e);
+            }
+
+            inserter.spoolFailuresTo(spool);
+
+            return spool;
+        }
+    }
+
+    /**
+     * Opts in to writing notifications in compact form: entity data and removed entity data
+     * paths are stored once in a path dictionary, with array indexes factored out, instead of in
+     * full for every field. This makes notifications for large arrays much smaller.
+     *
+     * <p>{@link NotificationEntity} expands compact notifications as they are read, so consumers
+     * using it see no difference. Consumers reading notification documents some other way must
+     * understand the {@code pathDictionary}, {@code compactEntityData}, and {@code
+     * compactRemovedEntityData} fields.
+     */
+    public void writeCompactNotifications() {
+        inserter.writeCompactlyWith(new CompactNotificationEncoder(jsonNodeFactory));
+    }
+
+    /**
+     * Writes notifications to the given sink instead of inserting them through the {@link
+     * Mediator}. Notifications already queued, held, or spooled are written to it as well.
+     */
+    public void writeNotificationsTo(NotificationSink sink) {
+        if (sink == null) {
+            throw new NullPointerException("sink");
+        }
+
+        inserter.writeTo(sink);
+    }
+
+    /**
+     * Opts in to writing notifications straight to the mongo collection lightblue stores the
+     * notification entity in, with unordered bulk inserts, bypassing the {@link Mediator}. See
+     * {@link DatastoreNotificationSink} for what that skips.
+     *
+     * <p>The collection is looked up through the {@link LightblueFactory} when first written to,
+     * and notifications fail to write if the entity is not stored in mongo.
+     */
+    public void writeNotificationsToDatastore() {
+        writeNotificationsTo(new DatastoreNotificationSink(
+                new MongoNotificationCollection(lightblueFactorySupplier())));
+    }
+
+    /**
+     * Opts in to appending notifications to a {@link NotificationLog} on local disk instead of
+     * inserting them, for consumers to read with a {@link NotificationLogReader}. The log is
+     * closed by {@link #shutdown()}.
+     *
+     * @return The log now written to by this hook.
+     * @throws IllegalStateException if notifications were already written to a log
+     * @throws UncheckedIOException if the log directory could not be prepared
+     */
+    public NotificationLog writeNotificationsToLog(NotificationLog.Settings settings) {
+        synchronized (this) {
+            if (log != null) {
+                throw new IllegalStateException("Notifications are already written to: " + log);
+            }
+
+            try {
+                log = new NotificationLog(settings, objectMapper);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open notification log with " +
+                        "settings: " + settings, e);
+            }
+
+            writeNotificationsTo(log);
+
+            return log;
+        }
+    }
+
+    /**
+     * Opts in to processing documents in parallel: when a request has more than {@code
+     * batchSize} documents, they are split into batches of that many and all but the first are
+     * processed on the given executor. The client request thread processes the first batch and
+     * then waits for the rest.
+     *
+     * <p>Only projecting, comparing, and building notifications is done in parallel.
+     * Notifications are still written in document order, and if a document fails, notifications
+     * for the documents before it are written and none after, as when processing sequentially.
+     *
+     * <p>The executor is not shut down by the hook.
+     */
+    public void processDocumentsInParallel(Executor executor, int batchSize) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1 but was: " +
+                    batchSize);
+        }
+
+        this.parallelism = new Parallelism(executor, batchSize);
+    }
+
+    /**
+     * Reports timings of each stage of processing, counts of notifications made, skipped, and
+     * failed, and notification sizes, per entity, to the given metrics. For example, to {@link
+     * JmxNotificationHookMetrics}. Replaces any metrics previously reported to.
+     */
+    public void reportMetricsTo(NotificationHookMetrics metrics) {
+        if (metrics == null) {
+            throw new NullPointerException("metrics");
+        }
+
+        this.metrics = metrics;
+        inserter.reportMetricsTo(metrics);
+    }
+
+    /**
+     * Writes any notifications still held for debouncing or queued for asynchronous writing, and
+     * any outstanding summaries of rate limited notifications, stops replaying spooled
+     * notifications, and closes the notification log if there is one. Notifications made after
+     * this are written synchronously.
+     */
+    public void shutdown() {
+        rateLimiters.shutdown();
+
+        NotificationDebouncer debouncer = this.debouncer;
+        if (debouncer != null) {
+            debouncer.shutdown();
+        }
+
+        AsyncNotificationWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.shutdown();
+        }
+
+        NotificationSpool spool = this.spool;
+        if (spool != null) {
+            spool.close();
+        }
+
+        NotificationLog log = this.log;
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Projectors and other derived configuration are cached per entity version; this exposes
+     * that cache's statistics.
+     */
+    public CompiledConfigurationCache getCompiledConfigurationCache() {
+        return compiledConfigurations;
+    }
+
+    /**
+     * Opts in to {@link #warmUp(int) warming up} on a background thread as soon as lightblue
+     * provides its {@link LightblueFactory}, or right away if it already has. The hook is usable
+     * meanwhile; documents processed before an entity is warmed up just pay for it themselves.
+     *
+     * @throws IllegalStateException if warming up on startup was already enabled
+     */
+    public void warmUpOnStartup(int syntheticDiffs) {
+        if (syntheticDiffs < 0) {
+            throw new IllegalArgumentException("syntheticDiffs must not be negative but was: " +
+                    syntheticDiffs);
+        }
+
+        synchronized (this) {
+            if (warmUpOnStartupDiffs != null) {
+                throw new IllegalStateException("Warming up on startup already enabled.");
+            }
+
+            warmUpOnStartupDiffs = syntheticDiffs;
+
+            if (lightblueFactory != null) {
+                startWarmUp(syntheticDiffs);
+            }
+        }
+    }
+
+    /**
+     * {@link #warmUp(Metadata, int) Warms up} every entity in the metadata of the {@link
+     * LightblueFactory} lightblue provided.
+     *
+     * @throws IllegalStateException if no LightblueFactory was provided
+     * @throws Exception if metadata could not be read from the factory
+     */
+    public List<String> warmUp(int syntheticDiffs) throws Exception {
+        return warmUp(lightblueFactorySupplier().get().getMetadata(), syntheticDiffs);
+    }
+
+    /**
+     * Does ahead of time what the first documents of each entity would otherwise pay for, which
+     * after a deploy shows up as slow writes until every entity was seen.
+     *
+     * <p>For the default version of each active entity whose metadata configures this hook, its
+     * configuration is compiled and cached, including the projections and comparator, and a
+     * made-up update of the entity is then processed {@code syntheticDiffs} times: through
+     * projection, diffing, and building a notification, so those are loaded and compiled by the
+     * JIT before real documents arrive. Requests on any thread for that entity version with an
+     * equal configuration then use the cached compilation, along with any projectors built while
+     * warming up. Nothing is written, rate limited, or reported to metrics. The {@link Mediator}
+     * is also looked up, if it is to come from the {@link LightblueFactory}.
+     *
+     * <p>Entities which fail to warm up are logged and skipped.
+     *
+     * @return Names of the entities warmed up.
+     */
+    public List<String> warmUp(Metadata metadata, int syntheticDiffs) {
+        if (syntheticDiffs < 0) {
+            throw new IllegalArgumentException("syntheticDiffs must not be negative but was: " +
+                    syntheticDiffs);
+        }
+
+        long start = System.nanoTime();
+        boolean mediatorFromFactory;
+
+        synchronized (this) {
+            mediatorFromFactory = mediator == null && lightblueFactory != null;
+        }
+
+        if (mediatorFromFactory) {
+            try {
+                tryGetMediator();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to look up mediator while warming up", e);
+            }
+        }
+
+        List<String> warmedUp = new ArrayList<>();
+
+        for (String entityName : metadata.getEntityNames(MetadataStatus.ACTIVE)) {
+            try {
+                if (warmUp(metadata, entityName, syntheticDiffs)) {
+                    warmedUp.add(entityName);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to warm up notification hook for entity " + entityName, e);
+            }
+        }
+
+        LOGGER.info("Warmed up notification hook {} for {} entities in {}ms: {}", name,
+                warmedUp.size(), (System.nanoTime() - start) / 1000000, warmedUp);
+
+        return warmedUp;
+    }
+
+    /**
+     * @return Whether the entity configures this hook.
+     */
+    private boolean warmUp(Metadata metadata, String entityName, int syntheticDiffs) {
+        EntityInfo info = metadata.getEntityInfo(entityName);
+
+        if (info == null || info.getHooks() == null) {
+            return false;
+        }
+
+        for (Hook hook : info.getHooks().getHooks()) {
+            if (!name.equals(hook.getName())) {
+                continue;
+            }
+
+            HookConfiguration hookConfiguration = hook.getConfiguration();
+
+            if (hookConfiguration == null) {
+                hookConfiguration = NotificationHookConfiguration.watchingEverythingAndIncludingNothing();
+            } else if (!(hookConfiguration instanceof NotificationHookConfiguration)) {
+                throw new IllegalArgumentException("Expected instance of " +
+                        "NotificationHookConfiguration but got: " + hookConfiguration);
+            }
+
+            EntityMetadata entityMetadata =
+                    metadata.getEntityMetadata(entityName, info.getDefaultVersion());
+            CompiledConfiguration compiled = compiledConfigurations.get(entityMetadata,
+                    (NotificationHookConfiguration) hookConfiguration);
+            HookDoc hookDoc = WarmUpDocs.update(entityMetadata, compiled.identityPaths(),
+                    jsonNodeFactory);
+
+            for (int i = 0; i < syntheticDiffs; i++) {
+                HookResult result =
+                        processSingleHookDoc(compiled, hookDoc, NotificationHookMetrics.NONE);
+
+                if (result.hasException()) {
+                    throw new IllegalStateException("Synthetic update failed", result.exception);
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private void startWarmUp(final int syntheticDiffs) {
+        warmUpStarted = true;
+
+        Thread warmUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmUp(syntheticDiffs);
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to warm up notification hook " + name, e);
+                }
+            }
+        }, "notification-hook-warm-up-" + name);
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
     @Override
     public void processHook(EntityMetadata entityMetadata,
                             HookConfiguration hookConfiguration,
@@ -102,72 +509,147 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
         }
 
         NotificationHookConfiguration config = (NotificationHookConfiguration) hookConfiguration;
-        Mediator mediator = tryGetMediator();
 
-        Projection watchProjection=addArrayIdentities(config.watchProjection(),entityMetadata);
-        Projector watchProjector = Projector.getInstance(watchProjection, entityMetadata);
-        Projector includeProjector = Projector.getInstance(config.includeProjection(), entityMetadata);
-        
+        CompiledConfiguration compiled = compiledConfigurations.get(entityMetadata, config);
+        AsyncNotificationWriter asyncWriter = this.asyncWriter;
+        NotificationDebouncer debouncer = this.debouncer;
+        NotificationHookMetrics metrics = this.metrics;
+        String entityName = entityMetadata.getName();
+        @Nullable NotificationRateLimiter rateLimiter =
+                rateLimiters.forEntity(entityName, config.rateLimit());
+
+        if (config.isCoalescedByIdentity()) {
+            hookDocs = HookDocCoalescer.coalesce(hookDocs, compiled.identityPaths());
+        }
+
+        List<NotificationEntity> pending = new ArrayList<>();
+        @Nullable List<HookResult> processedInParallel =
+                processInParallel(compiled, hookDocs, metrics);
+        Iterator<HookDoc> hookDocsItr = hookDocs.iterator();
+
+        for (int i = 0; hookDocsItr.hasNext(); i++) {
+            HookDoc hookDoc = hookDocsItr.next();
+            HookResult result = processedInParallel == null
+                    ? processSingleHookDoc(compiled, hookDoc, metrics)
+                    : processedInParallel.get(i);
 
-        for (HookDoc hookDoc : hookDocs) {
-            HookResult result = processSingleHookDoc(entityMetadata,
-                                                     watchProjector,
-                                                     includeProjector,
-                                                     config.isArrayOrderingSignificant(),
-                                                     hookDoc,
-                                                     mediator);
-            
-            // TODO: batch
             if(result.hasException()) {
+                metrics.recordOutcome(entityName, NotificationHookMetrics.Outcome.FAILED, 1);
+                // Notifications for documents before this one are still written, as they would be
+                // if each were inserted as soon as it was made.
+                inserter.insert(pending);
                 throw new NotificationProcessingError(result.exception);
-            } else if (result.hasErrorsOrDataErrors()) {                
-                throw new NotificationInsertErrorsException(result.entity, result.errors,
-                                                            result.dataErrors);
+            } else if (result.hasNotification()) {
+                if (rateLimiter != null && !rateLimiter.admit(result.entity)) {
+                    metrics.recordOutcome(entityName, NotificationHookMetrics.Outcome.SUPPRESSED, 1);
+                    continue;
+                }
+
+                metrics.recordOutcome(entityName, NotificationHookMetrics.Outcome.GENERATED, 1);
+                metrics.recordPayloadSize(entityName, result.entity.getEntityData().size() +
+                        result.entity.getRemovedEntityData().size());
+
+                if (debouncer != null &&
+                        debouncer.submit(result.entity, compiled.identityPaths().size(),
+                                compiled.configuration().payloadBudget())) {
+                    continue;
+                }
+
+                if (asyncWriter != null && asyncWriter.submit(result.entity)) {
+                    continue;
+                }
+
+                pending.add(result.entity);
+
+                if (pending.size() >= config.insertBatchSize()) {
+                    inserter.insert(pending);
+                    pending.clear();
+                }
+            } else {
+                metrics.recordOutcome(entityName, NotificationHookMetrics.Outcome.ABORTED, 1);
             }
         }
+
+        inserter.insert(pending);
     }
 
-    private boolean isProjected(Path field,Projection p) {
-        switch(p.getFieldInclusion(field)) {
-        case explicit_inclusion:
-        case implicit_inclusion:return true;
-        default: return false;
+    /**
+     * @return Results for each of the docs, in order, or null if they should be processed
+     * sequentially instead.
+     */
+    @Nullable
+    private List<HookResult> processInParallel(final CompiledConfiguration compiled,
+            List<HookDoc> hookDocs, final NotificationHookMetrics metrics) {
+        Parallelism parallelism = this.parallelism;
+
+        if (parallelism == null || hookDocs.size() <= parallelism.batchSize) {
+            return null;
         }
-    }
 
-    private Projection addArrayIdentities(Projection p,EntityMetadata md) {
-        // If an array is included in the projection, make sure its identity is also included
-        Map<Path,List<Path>> arrayIdentities=md.getEntitySchema().getArrayIdentities();
-        List<Projection> addFields=new ArrayList<>();
-        for(Map.Entry<Path,List<Path>> entry:arrayIdentities.entrySet()) {
-            Path array=entry.getKey();
-            List<Path> identities=new ArrayList<>();
-            for(Path x:entry.getValue())
-                identities.add(new Path(array,new Path(Path.ANYPATH,x)));
-            
-            if(isProjected(array,p)) {
-                for(Path id:identities) {
-                    if(!isProjected(id,p)) {
-                        addFields.add(new FieldProjection(id,true,true));
-                    }
+        List<HookDoc> docs = new ArrayList<>(hookDocs);
+        List<FutureTask<List<HookResult>>> batches = new ArrayList<>();
+
+        for (int start = parallelism.batchSize; start < docs.size(); start += parallelism.batchSize) {
+            final List<HookDoc> batch =
+                    docs.subList(start, Math.min(start + parallelism.batchSize, docs.size()));
+            FutureTask<List<HookResult>> task = new FutureTask<>(new Callable<List<HookResult>>() {
+                @Override
+                public List<HookResult> call() {
+                    return processBatch(compiled, batch, metrics);
                 }
+            });
+            batches.add(task);
+            parallelism.executor.execute(task);
+        }
+
+        List<HookResult> results = new ArrayList<>(docs.size());
+        results.addAll(processBatch(compiled, docs.subList(0, parallelism.batchSize), metrics));
+
+        try {
+            for (FutureTask<List<HookResult>> batch : batches) {
+                if (endsInException(results)) {
+                    // Results are only needed up to the first failure.
+                    break;
+                }
+                results.addAll(batch.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NotificationProcessingError(e);
+        } catch (ExecutionException e) {
+            throw new NotificationProcessingError(e);
+        } finally {
+            for (FutureTask<List<HookResult>> batch : batches) {
+                batch.cancel(false);
             }
         }
-        if(!addFields.isEmpty()) {
-            LOGGER.debug("Excluded array identities are added to projection:{}",addFields);
-            // Need to first add the original projection, then the included fields.
-            // This is order sensitive
-            return Projection.add(p,new ProjectionList(addFields));
-        } else
-            return p;
-    }
-    
-    private HookResult processSingleHookDoc(EntityMetadata metadata,
-                                            Projector watchProjector,
-                                            Projector includeProjector,
-                                            boolean arrayOrderingSignificant,
-                                            HookDoc hookDoc,
-                                            Mediator mediator) {
+
+        return results;
+    }
+
+    private static boolean endsInException(List<HookResult> results) {
+        return !results.isEmpty() && results.get(results.size() - 1).hasException();
+    }
+
+    private List<HookResult> processBatch(CompiledConfiguration compiled, List<HookDoc> batch,
+            NotificationHookMetrics metrics) {
+        List<HookResult> results = new ArrayList<>(batch.size());
+
+        for (HookDoc hookDoc : batch) {
+            HookResult result = processSingleHookDoc(compiled, hookDoc, metrics);
+            results.add(result);
+
+            if (result.hasException()) {
+                // Later documents' notifications would not be written anyway.
+                break;
+            }
+        }
+
+        return results;
+    }
+
+    private HookResult processSingleHookDoc(CompiledConfiguration compiled, HookDoc hookDoc,
+            NotificationHookMetrics metrics) {
         LOGGER.debug("Processing doc starts");
         JsonDoc postDoc = hookDoc.getPostDoc();
         JsonDoc preDoc = hookDoc.getPreDoc();
@@ -177,26 +659,33 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
             return HookResult.aborted();
         }
 
+        boolean arrayOrderingSignificant = compiled.configuration().isArrayOrderingSignificant();
+
         try {
-            DocComparator.Difference<JsonNode> diff=compareDocs(metadata,preDoc,postDoc,watchProjector);
+            // Most updates do not touch watched fields; avoid projecting and diffing for those.
+            if (preDoc != null &&
+                    !compiled.watchedFieldsPrecheck().mayDiffer(preDoc.getRoot(), postDoc.getRoot())) {
+                LOGGER.debug("No watched fields changed");
+                return HookResult.aborted();
+            }
+
+            // Others only reorder watched arrays, which needs no diff either if order does not
+            // matter.
+            if (preDoc != null && !arrayOrderingSignificant &&
+                    !compiled.watchedFieldsFingerprint().mayDifferIgnoringArrayOrder(
+                            preDoc.getRoot(), postDoc.getRoot())) {
+                LOGGER.debug("Watched fields only reordered");
+                return HookResult.aborted();
+            }
+
+            DocComparator.Difference<ProjectedNode> diff=compareDocs(compiled,preDoc,postDoc,metrics);
             if(!diff.same()) {
                 if(diff.getNumChangedFields()>0 || arrayOrderingSignificant) {                
                     LOGGER.debug("Watched fields changed, creating notification");
                     NotificationEntity notification =
-                        makeNotificationEntityWithIncludedFields(hookDoc, includeProjector, diff, arrayOrderingSignificant);
-                    
-                    EntityVersion notificationVersion = new EntityVersion(NotificationEntity.ENTITY_NAME,
-                                                                          NotificationEntity.ENTITY_VERSION);
-                    
-                    InsertionRequest newNotification = new InsertionRequest();
-                    newNotification.setClientId(notificationHookClientId);
-                    newNotification.setEntityVersion(notificationVersion);
-                    newNotification.setEntityData(objectMapper.valueToTree(notification));
-                    
-                    LOGGER.debug("Inserting notification");
-                    Response response = mediator.insert(newNotification);
-                    
-                    return new HookResult(notification, response.getErrors(), response.getDataErrors());
+                        makeNotificationEntityWithIncludedFields(hookDoc, compiled, diff, metrics);
+
+                    return HookResult.notification(notification);
                 }
             }
         } catch (Exception e) {
@@ -207,103 +696,143 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
     }
 
     /**
-     * Compares the pre- and post- documents after they are passed
-     * through the watchProjector, and returns the delta
+     * Compares the pre- and post- documents as the watch projection
+     * projects them, and returns the delta
      */
-    private DocComparator.Difference<JsonNode> compareDocs(EntityMetadata metadata,
+    private DocComparator.Difference<ProjectedNode> compareDocs(CompiledConfiguration compiled,
                                                            JsonDoc preDoc,
                                                            JsonDoc postDoc,
-                                                           Projector watchProjector)
+                                                           NotificationHookMetrics metrics)
         throws Exception {
-        JsonDoc watchedPostDoc = watchProjector.project(postDoc, jsonNodeFactory);
-        JsonDoc watchedPreDoc = preDoc == null
-            ? new JsonDoc(jsonNodeFactory.objectNode())
-            : watchProjector.project(preDoc, jsonNodeFactory);
+        String entityName = compiled.entityName();
+        long start = System.nanoTime();
+
+        ProjectedNode watchedPostDoc = compiled.watched(postDoc, jsonNodeFactory);
+        ProjectedNode watchedPreDoc = preDoc == null
+            ? ProjectedNode.of(jsonNodeFactory.objectNode())
+            : compiled.watched(preDoc, jsonNodeFactory);
+
+        long projected = System.nanoTime();
+        metrics.recordStage(entityName, NotificationHookMetrics.Stage.PROJECTION, projected - start);
         
         // Compute diff
-        JsonCompare cmp=metadata.getDocComparator();
+        ProjectedNodeComparator cmp=compiled.docComparator();
         LOGGER.debug("Array identities:{}",cmp.getArrayIdentities());
-        LOGGER.debug("Pre:{}, Post:{}",watchedPreDoc.getRoot(),watchedPostDoc.getRoot());
-        DocComparator.Difference<JsonNode> diff=cmp.
-            compareNodes(watchedPreDoc.getRoot(),watchedPostDoc.getRoot());
+        LOGGER.debug("Pre:{}, Post:{}",watchedPreDoc,watchedPostDoc);
+        DocComparator.Difference<ProjectedNode> diff=cmp.
+            compareNodes(watchedPreDoc,watchedPostDoc);
+        metrics.recordStage(entityName, NotificationHookMetrics.Stage.DIFF, System.nanoTime() - projected);
         LOGGER.debug("Diff: {}",diff);
         return diff;
     }
 
     private NotificationEntity makeNotificationEntityWithIncludedFields(HookDoc hookDoc,
-                                                                        Projector includeProjector,
-                                                                        DocComparator.Difference<JsonNode> diff,
-                                                                        boolean arrayOrderSignificant) {
+                                                                        CompiledConfiguration compiled,
+                                                                        DocComparator.Difference<ProjectedNode> diff,
+                                                                        NotificationHookMetrics metrics) {
+        long start = System.nanoTime();
+        boolean arrayOrderSignificant = compiled.configuration().isArrayOrderingSignificant();
+        NotificationHookConfiguration.PayloadBudget budget = compiled.configuration().payloadBudget();
         EntityMetadata metadata = hookDoc.getEntityMetadata();
         JsonDoc postDoc = hookDoc.getPostDoc();
 
-        List<PathAndValue> entityData=new ArrayList<>();
-        List<PathAndValue> removedEntityData = new ArrayList<>();
+        EntityDataAccumulator entityData = new EntityDataAccumulator();
+        EntityDataAccumulator removedEntityData = new EntityDataAccumulator();
         List<String> updatedPaths = new ArrayList<>();
         List<String> removedPaths = new ArrayList<>();
         boolean isInsert = hookDoc.getPreDoc() == null;
 
         // Add entity identities to entity data
-        for (Field identityField : metadata.getEntitySchema().getIdentityFields()) {
-            Path identityPath = identityField.getFullPath();
+        for (Path identityPath : compiled.identityPaths()) {
             String pathString = identityPath.toString();
             String valueString = postDoc.get(identityPath).asText(null);
             entityData.add(new PathAndValue(pathString, valueString));
         }
 
         // Add flattened include doc to entity data
-        JsonDoc includeDoc=includeProjector.project(postDoc,jsonNodeFactory);
-        flatten("", includeDoc.getRoot(), entityData);
+        long projectionStart = System.nanoTime();
+        ProjectedNode includeDoc=compiled.included(postDoc,jsonNodeFactory);
+        long projectionNanos = System.nanoTime() - projectionStart;
+        metrics.recordStage(metadata.getName(), NotificationHookMetrics.Stage.PROJECTION, projectionNanos);
+        PathStrings paths = compiled.pathStrings();
+        flatten(paths.root(), includeDoc, entityData);
+
+        // Once over budget, values are dropped anyway, so stop collecting them. Paths are still
+        // needed.
+        boolean overBudget = budget.isExceededBy(entityData.size(), entityData.estimatedBytes());
 
         // Add updates to entity data, removed entity data, updated paths, and removed paths
-        for(DocComparator.Delta<JsonNode> delta : diff.getDelta()) {
+        for(DocComparator.Delta<ProjectedNode> delta : diff.getDelta()) {
             if (delta instanceof DocComparator.Move && arrayOrderSignificant) {
-                JsonNode movedNode = ((DocComparator.Move<JsonNode>) delta).getMovedNode();
-                String newPath = delta.getField2().toString();
+                ProjectedNode movedNode = ((DocComparator.Move<ProjectedNode>) delta).getMovedNode();
+                PathStrings.Segment newPath = paths.of(delta.getField2());
 
-                updatedPaths.add(newPath);
-                flatten(newPath, movedNode, entityData);
+                updatedPaths.add(newPath.path());
+                if (!overBudget) {
+                    flatten(newPath, movedNode, entityData);
+                }
             } else if (delta instanceof DocComparator.Removal) {
-                JsonNode removedNode=((DocComparator.Removal<JsonNode>)delta).getRemovedNode();
-                String removedPath = delta.getField().toString();
+                ProjectedNode removedNode=((DocComparator.Removal<ProjectedNode>)delta).getRemovedNode();
+                PathStrings.Segment removedPath = paths.of(delta.getField());
 
-                if(removedNode.isContainerNode()) {
-                    removedPaths.add(removedPath);
-                    flatten(removedPath, removedNode, removedEntityData);
-                } else {
-                    removedEntityData.add(new PathAndValue(removedPath, removedNode.asText(null)));
+                if(removedNode.isContainer()) {
+                    removedPaths.add(removedPath.path());
+                    if (!overBudget) {
+                        flatten(removedPath, removedNode, removedEntityData);
+                    }
+                } else if (!overBudget) {
+                    removedEntityData.add(new PathAndValue(removedPath.path(), removedNode.value().asText(null)));
                 }
             } else if (delta instanceof DocComparator.Addition) {
-                JsonNode addedNode = ((DocComparator.Addition<JsonNode>) delta).getAddedNode();
-                String addedPath = delta.getField().toString();
+                ProjectedNode addedNode = ((DocComparator.Addition<ProjectedNode>) delta).getAddedNode();
+                PathStrings.Segment addedPath = paths.of(delta.getField());
+
+                updatedPaths.add(addedPath.path());
 
-                updatedPaths.add(addedPath);
+                if (overBudget) {
+                    continue;
+                }
 
-                if (addedNode.isContainerNode()) {
+                if (addedNode.isContainer()) {
                     flatten(addedPath, addedNode, entityData);
                 } else {
-                    entityData.add(new PathAndValue(addedPath, addedNode.asText(null)));
+                    entityData.add(new PathAndValue(addedPath.path(), addedNode.value().asText(null)));
                 }
             } else if (delta instanceof DocComparator.Modification) {
-                DocComparator.Modification<JsonNode> modification =
-                    (DocComparator.Modification<JsonNode>) delta;
-                String modifiedPath = delta.getField2().toString();
+                DocComparator.Modification<ProjectedNode> modification =
+                    (DocComparator.Modification<ProjectedNode>) delta;
+                String modifiedPath = paths.of(delta.getField2()).path();
 
-                String modifiedValue = modification.getModifiedNode().asText(null);
-                String unmodifiedValue = modification.getUnmodifiedNode().asText(null);
+                String modifiedValue = modification.getModifiedNode().value().asText(null);
+                String unmodifiedValue = modification.getUnmodifiedNode().value().asText(null);
 
                 updatedPaths.add(modifiedPath);
-                entityData.add(new PathAndValue(modifiedPath, modifiedValue));
-                removedEntityData.add(new PathAndValue(modifiedPath, unmodifiedValue));
+                if (!overBudget) {
+                    entityData.add(new PathAndValue(modifiedPath, modifiedValue));
+                    removedEntityData.add(new PathAndValue(modifiedPath, unmodifiedValue));
+                }
+            }
+
+            if (!overBudget) {
+                overBudget = budget.isExceededBy(entityData.size() + removedEntityData.size(),
+                        entityData.estimatedBytes() + removedEntityData.estimatedBytes() +
+                                estimateBytes(updatedPaths) + estimateBytes(removedPaths));
             }
         }
 
         // Now we have the pieces, construct the notification to serialize.
         NotificationEntity notificationEntity = new NotificationEntity();
-        notificationEntity.setUpdatedPaths(updatedPaths);
-        notificationEntity.setRemovedEntityData(removedEntityData);
-        notificationEntity.setRemovedPaths(removedPaths);
-        notificationEntity.setEntityData(entityData);
+
+        if (overBudget) {
+            LOGGER.debug("Notification over {}, degrading", budget);
+            degrade(notificationEntity, compiled.identityPaths().size(), budget, entityData,
+                    updatedPaths, removedPaths);
+        } else {
+            notificationEntity.setUpdatedPaths(updatedPaths);
+            notificationEntity.setRemovedEntityData(removedEntityData.toList());
+            notificationEntity.setRemovedPaths(removedPaths);
+            notificationEntity.setEntityData(entityData.toList());
+        }
 
         // TODO(ahenning): Support delete
         NotificationEntity.Operation operation = isInsert
@@ -316,31 +845,125 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
         notificationEntity.setClientRequestPrincipal(hookDoc.getWho());
         notificationEntity.setClientRequestDate(hookDoc.getWhen());
         notificationEntity.setStatus(NotificationEntity.Status.unprocessed);
-        
+
+        metrics.recordStage(metadata.getName(), NotificationHookMetrics.Stage.BUILD,
+                System.nanoTime() - start - projectionNanos);
+
         return notificationEntity;
     }
 
-    private void flatten(String prefix, JsonNode node, List<PathAndValue> entityData) {
-        if (node.size() == 0) {
-            return;
+    /**
+     * Fills in the notification's data, keeping only what the budget's degradation allows.
+     *
+     * @param entityData Starts with the entity's identities, which are always kept.
+     * @param identityFields The number of identities entity data starts with.
+     */
+    static void degrade(NotificationEntity notificationEntity,
+                                int identityFields,
+                                NotificationHookConfiguration.PayloadBudget budget,
+                                EntityDataAccumulator entityData,
+                                List<String> updatedPaths,
+                                List<String> removedPaths) {
+        List<PathAndValue> identities = new ArrayList<>(
+                entityData.toList().subList(0, identityFields));
+
+        boolean collapse = budget.degradation() ==
+                NotificationHookConfiguration.PayloadBudget.Degradation.COLLAPSE_PATHS;
+
+        if (!collapse) {
+            EntityDataAccumulator kept = new EntityDataAccumulator();
+            for (PathAndValue identity : identities) {
+                kept.add(identity);
+            }
+            collapse = budget.isExceededBy(kept.size(), kept.estimatedBytes() +
+                    estimateBytes(updatedPaths) + estimateBytes(removedPaths));
+        }
+
+        notificationEntity.setEntityData(identities);
+        notificationEntity.setRemovedEntityData(new ArrayList<PathAndValue>());
+        notificationEntity.setUpdatedPaths(collapse ? collapse(updatedPaths) : updatedPaths);
+        notificationEntity.setRemovedPaths(collapse ? collapse(removedPaths) : removedPaths);
+        notificationEntity.setTruncated(true);
+    }
+
+    /**
+     * @return The paths cut off before their first array index, without duplicates.
+     */
+    private static List<String> collapse(List<String> paths) {
+        Set<String> collapsed = new LinkedHashSet<>();
+
+        for (String path : paths) {
+            Path parsed = new Path(path);
+            int index = 0;
+            while (index < parsed.numSegments() && !parsed.isIndex(index)) {
+                index++;
+            }
+            collapsed.add(index == parsed.numSegments() ? path : parsed.prefix(index).toString());
+        }
+
+        return new ArrayList<>(collapsed);
+    }
+
+    /**
+     * Roughly how many characters the paths take up as a JSON array.
+     */
+    static long estimateBytes(List<String> paths) {
+        long bytes = 0;
+        for (String path : paths) {
+            bytes += path.length() + 3;
         }
+        return bytes;
+    }
 
-        JsonNodeCursor cursor = new JsonNodeCursor(Path.EMPTY, node);
+    /**
+     * Adds every value beneath the node to entity data, at its path under the prefix. The node
+     * itself is not added, even if it is a value.
+     */
+    private void flatten(PathStrings.Segment prefix, ProjectedNode node,
+            EntityDataAccumulator entityData) {
+        if (node.isObject()) {
+            Iterator<Map.Entry<String, ProjectedNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, ProjectedNode> field = fields.next();
+                flattenValue(prefix.child(field.getKey()), field.getValue(), entityData);
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                flattenValue(prefix.element(i), node.element(i), entityData);
+            }
+        }
+    }
 
-        while(cursor.next()) {
-            String p=cursor.getCurrentPath().toString();
-            JsonNode value=cursor.getCurrentNode();
+    private void flattenValue(PathStrings.Segment path, ProjectedNode node,
+            EntityDataAccumulator entityData) {
+        if (node.isContainer()) {
+            flatten(path, node, entityData);
+        } else {
+            entityData.addIfAbsent(new PathAndValue(path.path(), node.value().asText(null)));
+        }
+    }
 
-            if(value.isValueNode()) {
-                String path = prefix.isEmpty() ? p : (prefix + "." + p);
-                PathAndValue data = new PathAndValue(path, value.asText(null));
+    private Supplier<Mediator> mediatorSupplier() {
+        return new Supplier<Mediator>() {
+            @Override
+            public Mediator get() {
+                return tryGetMediator();
+            }
+        };
+    }
 
-                // TODO(ahenning): Consider using Set instead of List for entityData
-                if (!entityData.contains(data)) {
-                    entityData.add(data);
+    private Supplier<LightblueFactory> lightblueFactorySupplier() {
+        return new Supplier<LightblueFactory>() {
+            @Override
+            public LightblueFactory get() {
+                synchronized (NotificationHook.this) {
+                    if (lightblueFactory == null) {
+                        throw new IllegalStateException("No LightblueFactory provided!");
+                    }
+                    return lightblueFactory;
                 }
             }
-        }
+        };
     }
 
     // TODO(ahenning): This messiness can be removed if we can inject the lightblue factory in
@@ -366,35 +989,39 @@ public class NotificationHook implements CRUDHook, LightblueFactoryAware {
         return mediator;
     }
 
+    private static final class Parallelism {
+        final Executor executor;
+        final int batchSize;
+
+        Parallelism(Executor executor, int batchSize) {
+            this.executor = executor;
+            this.batchSize = batchSize;
+        }
+    }
+
     static class HookResult {
         final NotificationEntity entity;
-        final List<Error> errors;
-        final List<DataError> dataErrors;
         final Exception exception;
 
         static HookResult aborted() {
-            return new HookResult(null, Collections.<Error>emptyList(),
-                                  Collections.<DataError>emptyList(),null);
+            return new HookResult(null, null);
+        }
+
+        static HookResult notification(NotificationEntity entity) {
+            return new HookResult(entity, null);
         }
 
         static HookResult exception(Exception x) {
-            return new HookResult(null, Collections.<Error>emptyList(),
-                                  Collections.<DataError>emptyList(),x);
+            return new HookResult(null, x);
         }
 
-        HookResult(NotificationEntity entity, List<Error> errors, List<DataError> dataErrors, Exception exception) {
+        private HookResult(NotificationEntity entity, Exception exception) {
             this.entity = entity;
-            this.errors = errors;
-            this.dataErrors = dataErrors;
             this.exception = exception;
         }
 
-        HookResult(NotificationEntity entity, List<Error> errors, List<DataError> dataErrors) {
-            this(entity,errors,dataErrors,null);
-        }
-
-        boolean hasErrorsOrDataErrors() {
-            return !errors.isEmpty() || !dataErrors.isEmpty();
+        boolean hasNotification() {
+            return entity != null;
         }
 
         boolean hasException() {
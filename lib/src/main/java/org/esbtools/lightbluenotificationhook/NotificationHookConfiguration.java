@@ -24,6 +24,22 @@ import java.util.Objects;
  * thing changed in an array is the ordering of its elements, an event
  * is still generated. If false, array re-orderings are
  * ignored. Default is false.
+ *
+ * <p>insertBatchSize: The maximum number of notifications written with a single insert request.
+ * Notifications produced for all documents of one CRUD request are gathered and inserted in
+ * batches of at most this size. Default is 1, which inserts each notification on its own.
+ *
+ * <p>coalesceByIdentity: If true, documents of one CRUD request which have the same identity are
+ * treated as a single change, from the earliest pre-document to the latest post-document, and
+ * produce at most one notification. Default is false.
+ *
+ * <p>maxPayloadEntries, maxPayloadBytes, payloadDegradation: A {@link PayloadBudget} for each
+ * notification's entity data, and how to degrade notifications which would exceed it. Degraded
+ * notifications are marked truncated. Default is no budget.
+ *
+ * <p>samplingRatio, maxNotificationsPerSecond, notificationBurst, suppressedNotifications,
+ * summaryIntervalSeconds: A {@link RateLimit} on notifications for the entity, and what becomes
+ * of notifications it suppresses. Default is no limit.
  */
 public class NotificationHookConfiguration implements HookConfiguration {
     private static final Projection ALL_FIELDS = new FieldProjection(new Path("*"), true, true);
@@ -32,9 +48,17 @@ public class NotificationHookConfiguration implements HookConfiguration {
     private static final NotificationHookConfiguration WATCHING_EVERYTHING_INCLUDING_NOTHING
             = new NotificationHookConfiguration(ALL_FIELDS, NO_FIELDS, false);
 
+    static final int DEFAULT_INSERT_BATCH_SIZE = 1;
+
     private final Projection watchProjection;
     private final Projection includeProjection;
     private final boolean arrayOrderingSignificant;
+    private final int insertBatchSize;
+    private final boolean coalesceByIdentity;
+    private final PayloadBudget payloadBudget;
+    private final RateLimit rateLimit;
+
+    private volatile String structure;
 
     /**
      * @param watchProjection If null, defaults to watching all fields.
@@ -45,9 +69,36 @@ public class NotificationHookConfiguration implements HookConfiguration {
     public NotificationHookConfiguration(@Nullable Projection watchProjection,
                                          @Nullable Projection includeProjection,
                                          boolean arrayOrderingSignificant) {
+        this(watchProjection, includeProjection, arrayOrderingSignificant,
+                DEFAULT_INSERT_BATCH_SIZE, false, PayloadBudget.unlimited(),
+                RateLimit.unlimited());
+    }
+
+    private NotificationHookConfiguration(@Nullable Projection watchProjection,
+                                          @Nullable Projection includeProjection,
+                                          boolean arrayOrderingSignificant,
+                                          int insertBatchSize,
+                                          boolean coalesceByIdentity,
+                                          PayloadBudget payloadBudget,
+                                          RateLimit rateLimit) {
+        if (payloadBudget == null) {
+            throw new NullPointerException("payloadBudget");
+        }
+        if (rateLimit == null) {
+            throw new NullPointerException("rateLimit");
+        }
+        if (insertBatchSize < 1) {
+            throw new IllegalArgumentException("insertBatchSize must be at least 1 but was: " +
+                    insertBatchSize);
+        }
+
         this.watchProjection = watchProjection != null ? watchProjection : ALL_FIELDS;
         this.includeProjection = includeProjection != null ? includeProjection : NO_FIELDS;
         this.arrayOrderingSignificant = arrayOrderingSignificant;
+        this.insertBatchSize = insertBatchSize;
+        this.coalesceByIdentity = coalesceByIdentity;
+        this.payloadBudget = payloadBudget;
+        this.rateLimit = rateLimit;
     }
 
     public static NotificationHookConfiguration watchingEverythingAndIncludingNothing() {
@@ -63,10 +114,90 @@ public class NotificationHookConfiguration implements HookConfiguration {
         Projection watchProjection = parser.getProjection(parseMe, "watchProjection");
         Projection includeProjection = parser.getProjection(parseMe, "includeProjection");
         Object b=parser.getValueProperty(parseMe, "arrayOrderingSignificant");        
-        
+        Object batchSize = parser.getValueProperty(parseMe, "insertBatchSize");
+        Object coalesce = parser.getValueProperty(parseMe, "coalesceByIdentity");
+        Object maxEntries = parser.getValueProperty(parseMe, "maxPayloadEntries");
+        Object maxBytes = parser.getValueProperty(parseMe, "maxPayloadBytes");
+        Object degradation = parser.getValueProperty(parseMe, "payloadDegradation");
+
+        PayloadBudget payloadBudget = PayloadBudget.unlimited()
+                .withMaxEntries(maxEntries instanceof Number ? ((Number) maxEntries).intValue() : 0)
+                .withMaxBytes(maxBytes instanceof Number ? ((Number) maxBytes).longValue() : 0)
+                .withDegradation(degradation == null
+                        ? PayloadBudget.Degradation.DROP_VALUES
+                        : PayloadBudget.Degradation.valueOf(degradation.toString()));
+
+        Object samplingRatio = parser.getValueProperty(parseMe, "samplingRatio");
+        Object perSecond = parser.getValueProperty(parseMe, "maxNotificationsPerSecond");
+        Object burst = parser.getValueProperty(parseMe, "notificationBurst");
+        Object suppressed = parser.getValueProperty(parseMe, "suppressedNotifications");
+        Object summaryInterval = parser.getValueProperty(parseMe, "summaryIntervalSeconds");
+
+        RateLimit rateLimit = RateLimit.unlimited()
+                .withSamplingRatio(samplingRatio instanceof Number
+                        ? ((Number) samplingRatio).doubleValue()
+                        : 1)
+                .withMaxPerSecond(perSecond instanceof Number ? ((Number) perSecond).doubleValue() : 0)
+                .withBurst(burst instanceof Number
+                        ? ((Number) burst).intValue()
+                        : RateLimit.DEFAULT_BURST)
+                .withSuppression(suppressed == null
+                        ? RateLimit.Suppression.DROP
+                        : RateLimit.Suppression.valueOf(suppressed.toString()))
+                .withSummaryIntervalSeconds(summaryInterval instanceof Number
+                        ? ((Number) summaryInterval).intValue()
+                        : RateLimit.DEFAULT_SUMMARY_INTERVAL_SECONDS);
+
         return new NotificationHookConfiguration(watchProjection,
                                                  includeProjection,
-                                                 b instanceof Boolean? (Boolean)b:false );
+                                                 b instanceof Boolean? (Boolean)b:false,
+                                                 batchSize instanceof Number
+                                                         ? ((Number) batchSize).intValue()
+                                                         : DEFAULT_INSERT_BATCH_SIZE,
+                                                 coalesce instanceof Boolean && (Boolean) coalesce,
+                                                 payloadBudget,
+                                                 rateLimit);
+    }
+
+    /**
+     * @param insertBatchSize The maximum number of notifications to write per insert request.
+     * @return A copy of this configuration using the provided batch size.
+     */
+    public NotificationHookConfiguration withInsertBatchSize(int insertBatchSize) {
+        return new NotificationHookConfiguration(watchProjection, includeProjection,
+                arrayOrderingSignificant, insertBatchSize, coalesceByIdentity, payloadBudget,
+                rateLimit);
+    }
+
+    /**
+     * @param coalesceByIdentity Whether documents of one request with the same identity should
+     * produce at most one notification.
+     * @return A copy of this configuration using the provided setting.
+     */
+    public NotificationHookConfiguration withCoalesceByIdentity(boolean coalesceByIdentity) {
+        return new NotificationHookConfiguration(watchProjection, includeProjection,
+                arrayOrderingSignificant, insertBatchSize, coalesceByIdentity, payloadBudget,
+                rateLimit);
+    }
+
+    /**
+     * @param payloadBudget The budget for each notification's entity data.
+     * @return A copy of this configuration using the provided budget.
+     */
+    public NotificationHookConfiguration withPayloadBudget(PayloadBudget payloadBudget) {
+        return new NotificationHookConfiguration(watchProjection, includeProjection,
+                arrayOrderingSignificant, insertBatchSize, coalesceByIdentity, payloadBudget,
+                rateLimit);
+    }
+
+    /**
+     * @param rateLimit The limit on notifications for the entity.
+     * @return A copy of this configuration using the provided limit.
+     */
+    public NotificationHookConfiguration withRateLimit(RateLimit rateLimit) {
+        return new NotificationHookConfiguration(watchProjection, includeProjection,
+                arrayOrderingSignificant, insertBatchSize, coalesceByIdentity, payloadBudget,
+                rateLimit);
     }
     
     public Projection watchProjection() {
@@ -81,10 +212,83 @@ public class NotificationHookConfiguration implements HookConfiguration {
         return arrayOrderingSignificant;
     }
 
+    public int insertBatchSize() {
+        return insertBatchSize;
+    }
+
+    public boolean isCoalescedByIdentity() {
+        return coalesceByIdentity;
+    }
+
+    public PayloadBudget payloadBudget() {
+        return payloadBudget;
+    }
+
+    public RateLimit rateLimit() {
+        return rateLimit;
+    }
+
     public <T> void toMetadata(MetadataParser<T> parser, T writeMe) {
         parser.putProjection(writeMe, "watchProjection", watchProjection);
         parser.putProjection(writeMe, "includeProjection", includeProjection);
         parser.putValue(writeMe,"arrayOrderingSignificant", arrayOrderingSignificant);
+
+        if (insertBatchSize != DEFAULT_INSERT_BATCH_SIZE) {
+            parser.putValue(writeMe, "insertBatchSize", insertBatchSize);
+        }
+
+        if (coalesceByIdentity) {
+            parser.putValue(writeMe, "coalesceByIdentity", true);
+        }
+
+        if (payloadBudget.maxEntries() != 0) {
+            parser.putValue(writeMe, "maxPayloadEntries", payloadBudget.maxEntries());
+        }
+
+        if (payloadBudget.maxBytes() != 0) {
+            parser.putValue(writeMe, "maxPayloadBytes", payloadBudget.maxBytes());
+        }
+
+        if (payloadBudget.degradation() != PayloadBudget.Degradation.DROP_VALUES) {
+            parser.putValue(writeMe, "payloadDegradation", payloadBudget.degradation().name());
+        }
+
+        if (rateLimit.samplingRatio() != 1) {
+            parser.putValue(writeMe, "samplingRatio", rateLimit.samplingRatio());
+        }
+
+        if (rateLimit.maxPerSecond() != 0) {
+            parser.putValue(writeMe, "maxNotificationsPerSecond", rateLimit.maxPerSecond());
+        }
+
+        if (rateLimit.burst() != RateLimit.DEFAULT_BURST) {
+            parser.putValue(writeMe, "notificationBurst", rateLimit.burst());
+        }
+
+        if (rateLimit.suppression() != RateLimit.Suppression.DROP) {
+            parser.putValue(writeMe, "suppressedNotifications", rateLimit.suppression().name());
+        }
+
+        if (rateLimit.summaryIntervalSeconds() != RateLimit.DEFAULT_SUMMARY_INTERVAL_SECONDS) {
+            parser.putValue(writeMe, "summaryIntervalSeconds", rateLimit.summaryIntervalSeconds());
+        }
+    }
+
+    /**
+     * @return Equal for configurations which would behave the same, including configurations
+     * parsed separately from the same metadata, whose projections are not {@link #equals(Object)
+     * equal}.
+     */
+    String structure() {
+        String structure = this.structure;
+
+        // Racing threads compute the same value.
+        if (structure == null) {
+            structure = toString();
+            this.structure = structure;
+        }
+
+        return structure;
     }
 
     @Override
@@ -97,13 +301,18 @@ public class NotificationHookConfiguration implements HookConfiguration {
         }
         NotificationHookConfiguration that = (NotificationHookConfiguration) o;
         return arrayOrderingSignificant == that.arrayOrderingSignificant &&
+                insertBatchSize == that.insertBatchSize &&
+                coalesceByIdentity == that.coalesceByIdentity &&
+                Objects.equals(payloadBudget, that.payloadBudget) &&
+                Objects.equals(rateLimit, that.rateLimit) &&
                 Objects.equals(watchProjection, that.watchProjection) &&
                 Objects.equals(includeProjection, that.includeProjection);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(watchProjection, includeProjection, arrayOrderingSignificant);
+        return Objects.hash(watchProjection, includeProjection, arrayOrderingSignificant,
+                insertBatchSize, coalesceByIdentity, payloadBudget, rateLimit);
     }
 
     @Override
@@ -112,6 +321,278 @@ public class NotificationHookConfiguration implements HookConfiguration {
                 "watchProjection=" + watchProjection +
                 ", includeProjection=" + includeProjection +
                 ", arrayOrderingSignificant=" + arrayOrderingSignificant +
+                ", insertBatchSize=" + insertBatchSize +
+                ", coalesceByIdentity=" + coalesceByIdentity +
+                ", payloadBudget=" + payloadBudget +
+                ", rateLimit=" + rateLimit +
                 '}';
     }
+
+    /**
+     * Limits how much entity data a notification may carry, so a single change to a very large
+     * document cannot produce a notification too large to insert.
+     *
+     * <p>Size is estimated as entity data and removed entity data are collected, as the number of
+     * entries and roughly the number of characters they take up in JSON. A limit of 0 means no
+     * limit. Start from {@link #unlimited()}.
+     */
+    public static final class PayloadBudget {
+        private final int maxEntries;
+        private final long maxBytes;
+        private final Degradation degradation;
+
+        private static final PayloadBudget UNLIMITED =
+                new PayloadBudget(0, 0, Degradation.DROP_VALUES);
+
+        /**
+         * What is kept of a notification which would exceed the budget. Identities are always
+         * kept.
+         */
+        public enum Degradation {
+            /**
+             * Drop all other entity data and removed entity data, but keep updated and removed
+             * paths. If the paths alone are over budget, they are collapsed as with {@link
+             * #COLLAPSE_PATHS}.
+             */
+            DROP_VALUES,
+            /**
+             * Drop all other entity data and removed entity data, and cut updated and removed
+             * paths off before their first array index, so that for example {@code sites.3.city}
+             * becomes {@code sites}.
+             */
+            COLLAPSE_PATHS
+        }
+
+        private PayloadBudget(int maxEntries, long maxBytes, Degradation degradation) {
+            if (maxEntries < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("maxEntries and maxBytes must not be " +
+                        "negative but were: " + maxEntries + ", " + maxBytes);
+            }
+            if (degradation == null) {
+                throw new NullPointerException("degradation");
+            }
+
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.degradation = degradation;
+        }
+
+        public static PayloadBudget unlimited() {
+            return UNLIMITED;
+        }
+
+        public PayloadBudget withMaxEntries(int maxEntries) {
+            return new PayloadBudget(maxEntries, maxBytes, degradation);
+        }
+
+        public PayloadBudget withMaxBytes(long maxBytes) {
+            return new PayloadBudget(maxEntries, maxBytes, degradation);
+        }
+
+        public PayloadBudget withDegradation(Degradation degradation) {
+            return new PayloadBudget(maxEntries, maxBytes, degradation);
+        }
+
+        public int maxEntries() {
+            return maxEntries;
+        }
+
+        public long maxBytes() {
+            return maxBytes;
+        }
+
+        public Degradation degradation() {
+            return degradation;
+        }
+
+        boolean isUnlimited() {
+            return maxEntries == 0 && maxBytes == 0;
+        }
+
+        boolean isExceededBy(int entries, long bytes) {
+            return (maxEntries != 0 && entries > maxEntries) || (maxBytes != 0 && bytes > maxBytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            PayloadBudget that = (PayloadBudget) o;
+            return maxEntries == that.maxEntries &&
+                    maxBytes == that.maxBytes &&
+                    degradation == that.degradation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(maxEntries, maxBytes, degradation);
+        }
+
+        @Override
+        public String toString() {
+            return "PayloadBudget{" +
+                    "maxEntries=" + maxEntries +
+                    ", maxBytes=" + maxBytes +
+                    ", degradation=" + degradation +
+                    '}';
+        }
+    }
+
+    /**
+     * Limits how many notifications are made for an entity, so that bulk loads and migrations
+     * of one entity do not flood the notification collection.
+     *
+     * <p>Notifications are first sampled: only {@link #samplingRatio()} of them, at random, are
+     * kept. Those are then rate limited to {@link #maxPerSecond()} on average, with up to {@link
+     * #burst()} at once. Limits apply per hook and entity, across all request threads. What
+     * becomes of suppressed notifications is decided by {@link Suppression}.
+     *
+     * <p>Start from {@link #unlimited()}.
+     */
+    public static final class RateLimit {
+        private final double samplingRatio;
+        private final double maxPerSecond;
+        private final int burst;
+        private final Suppression suppression;
+        private final int summaryIntervalSeconds;
+
+        static final int DEFAULT_BURST = 1;
+        static final int DEFAULT_SUMMARY_INTERVAL_SECONDS = 60;
+
+        private static final RateLimit UNLIMITED = new RateLimit(1, 0, DEFAULT_BURST,
+                Suppression.DROP, DEFAULT_SUMMARY_INTERVAL_SECONDS);
+
+        public enum Suppression {
+            /** Suppressed notifications are only counted, in {@link NotificationHookMetrics}. */
+            DROP,
+            /**
+             * Suppressed notifications are also counted per entity, and every {@link
+             * #summaryIntervalSeconds()} during which any were suppressed, a summary
+             * notification is written in their place. A summary has no identities, is marked
+             * truncated, and has the count under the entity data path {@code
+             * suppressedNotifications}: consumers should treat any instance of the entity as
+             * possibly changed.
+             */
+            SUMMARIZE
+        }
+
+        private RateLimit(double samplingRatio, double maxPerSecond, int burst,
+                Suppression suppression, int summaryIntervalSeconds) {
+            if (!(samplingRatio > 0 && samplingRatio <= 1)) {
+                throw new IllegalArgumentException("samplingRatio must be greater than 0 and at " +
+                        "most 1 but was: " + samplingRatio);
+            }
+            if (!(maxPerSecond >= 0) || burst < 1 || summaryIntervalSeconds < 1) {
+                throw new IllegalArgumentException("maxPerSecond must not be negative, and " +
+                        "burst and summaryIntervalSeconds must be at least 1, but were: " +
+                        maxPerSecond + ", " + burst + ", " + summaryIntervalSeconds);
+            }
+            if (suppression == null) {
+                throw new NullPointerException("suppression");
+            }
+
+            this.samplingRatio = samplingRatio;
+            this.maxPerSecond = maxPerSecond;
+            this.burst = burst;
+            this.suppression = suppression;
+            this.summaryIntervalSeconds = summaryIntervalSeconds;
+        }
+
+        /**
+         * Every notification is kept. Once limited, bursts of 1, suppressed notifications are
+         * dropped, and summaries are written every 60 seconds if enabled.
+         */
+        public static RateLimit unlimited() {
+            return UNLIMITED;
+        }
+
+        public RateLimit withSamplingRatio(double samplingRatio) {
+            return new RateLimit(samplingRatio, maxPerSecond, burst, suppression,
+                    summaryIntervalSeconds);
+        }
+
+        /**
+         * @param maxPerSecond 0 for no rate limit.
+         */
+        public RateLimit withMaxPerSecond(double maxPerSecond) {
+            return new RateLimit(samplingRatio, maxPerSecond, burst, suppression,
+                    summaryIntervalSeconds);
+        }
+
+        public RateLimit withBurst(int burst) {
+            return new RateLimit(samplingRatio, maxPerSecond, burst, suppression,
+                    summaryIntervalSeconds);
+        }
+
+        public RateLimit withSuppression(Suppression suppression) {
+            return new RateLimit(samplingRatio, maxPerSecond, burst, suppression,
+                    summaryIntervalSeconds);
+        }
+
+        public RateLimit withSummaryIntervalSeconds(int summaryIntervalSeconds) {
+            return new RateLimit(samplingRatio, maxPerSecond, burst, suppression,
+                    summaryIntervalSeconds);
+        }
+
+        public double samplingRatio() {
+            return samplingRatio;
+        }
+
+        public double maxPerSecond() {
+            return maxPerSecond;
+        }
+
+        public int burst() {
+            return burst;
+        }
+
+        public Suppression suppression() {
+            return suppression;
+        }
+
+        public int summaryIntervalSeconds() {
+            return summaryIntervalSeconds;
+        }
+
+        boolean isUnlimited() {
+            return samplingRatio == 1 && maxPerSecond == 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RateLimit that = (RateLimit) o;
+            return Double.compare(samplingRatio, that.samplingRatio) == 0 &&
+                    Double.compare(maxPerSecond, that.maxPerSecond) == 0 &&
+                    burst == that.burst &&
+                    suppression == that.suppression &&
+                    summaryIntervalSeconds == that.summaryIntervalSeconds;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(samplingRatio, maxPerSecond, burst, suppression,
+                    summaryIntervalSeconds);
+        }
+
+        @Override
+        public String toString() {
+            return "RateLimit{" +
+                    "samplingRatio=" + samplingRatio +
+                    ", maxPerSecond=" + maxPerSecond +
+                    ", burst=" + burst +
+                    ", suppression=" + suppression +
+                    ", summaryIntervalSeconds=" + summaryIntervalSeconds +
+                    '}';
+        }
+    }
 }
@@ -7,6 +7,12 @@ import com.redhat.lightblue.metadata.parser.MetadataParser;
 
 /**
  * Entry-point for lightblue to the hook.
+ *
+ * <p>To configure the hook itself, such as to {@link NotificationHook#writeAsynchronously(
+ * AsyncNotificationWriter.Settings) write asynchronously}, to {@link
+ * NotificationHook#writeNotificationsToDatastore() write straight to the datastore}, or to {@link
+ * NotificationHook#warmUpOnStartup(int) warm up on startup}, extend this and override {@link
+ * #getCRUDHook()}.
  */
 public class NotificationHookConfigurationParser<T> implements HookConfigurationParser<T> {
     @Override
@@ -0,0 +1,75 @@
+package org.esbtools.lightbluenotificationhook;
+
+/**
+ * Receives measurements of the hook's work, per entity. Implementations are called on the hot
+ * path, from many threads at once, so must be thread-safe and should not allocate or block.
+ *
+ * <p>{@link JmxNotificationHookMetrics} publishes them as MBeans. Plug in an implementation with
+ * {@link NotificationHook#reportMetricsTo(NotificationHookMetrics)}.
+ */
+public interface NotificationHookMetrics {
+    /**
+     * Discards everything. The default.
+     */
+    NotificationHookMetrics NONE = new NotificationHookMetrics() {
+        @Override
+        public void recordStage(String entityName, Stage stage, long nanos) {
+        }
+
+        @Override
+        public void recordOutcome(String entityName, Outcome outcome, int count) {
+        }
+
+        @Override
+        public void recordPayloadSize(String entityName, int entries) {
+        }
+
+        @Override
+        public String toString() {
+            return "NotificationHookMetrics.NONE";
+        }
+    };
+
+    enum Stage {
+        /**
+         * Projecting documents down to watched fields (both documents, as one sample) or to
+         * included fields.
+         */
+        PROJECTION,
+        /** Comparing projected documents. */
+        DIFF,
+        /** Building a notification from the differences and included fields. */
+        BUILD,
+        /**
+         * Writing a batch of notifications to JSON. A batch written asynchronously may hold
+         * several entities' notifications; each entity is sampled once, for writing its own.
+         */
+        SERIALIZATION,
+        /**
+         * Inserting a batch of notifications. A batch holding several entities' notifications is
+         * inserted at once; each entity is sampled once, for its share of the time by number of
+         * notifications.
+         */
+        INSERT
+    }
+
+    enum Outcome {
+        /** A document was processed without making a notification; nothing watched changed. */
+        ABORTED,
+        /** A notification was made for a document. */
+        GENERATED,
+        /** A document could not be processed, or its notification could not be inserted. */
+        FAILED,
+        /** A notification was made for a document but suppressed by the entity's rate limit. */
+        SUPPRESSED
+    }
+
+    void recordStage(String entityName, Stage stage, long nanos);
+
+    void recordOutcome(String entityName, Outcome outcome, int count);
+
+    /**
+     * @param entries Number of entity data and removed entity data entries in a notification.
+     */
+    void recordPayloadSize(String entityName, int entries);
+}
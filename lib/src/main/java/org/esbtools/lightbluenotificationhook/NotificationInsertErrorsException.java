@@ -3,14 +3,74 @@ package org.esbtools.lightbluenotificationhook;
 import com.redhat.lightblue.DataError;
 import com.redhat.lightblue.util.Error;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class NotificationInsertErrorsException extends RuntimeException {
+    private final List<NotificationEntity> failedNotifications;
+    private final boolean unidentifiedFailures;
+
     public NotificationInsertErrorsException(NotificationEntity entity, Collection<Error> errors,
             Collection<DataError> dataErrors) {
         super("Errors inserting new notification: " + entity + "\n" +
                 "Data errors: " + dataErrors + "\n" +
                 "Errors: " + errors);
+        this.failedNotifications = Collections.singletonList(entity);
+        this.unidentifiedFailures = entity == null;
+    }
+
+    /**
+     * @param failures One per notification which could not be inserted, with the errors and data
+     * errors reported for it.
+     */
+    NotificationInsertErrorsException(List<InsertFailure> failures) {
+        super(describe(failures));
+
+        List<NotificationEntity> failed = new ArrayList<>();
+        boolean unidentified = false;
+
+        for (InsertFailure failure : failures) {
+            if (failure.entity == null) {
+                unidentified = true;
+            } else {
+                failed.add(failure.entity);
+            }
+        }
+
+        this.failedNotifications = Collections.unmodifiableList(failed);
+        this.unidentifiedFailures = unidentified;
+    }
+
+    /**
+     * @return The notifications known to have failed to insert.
+     */
+    public List<NotificationEntity> failedNotifications() {
+        return failedNotifications;
+    }
+
+    /**
+     * @return True if some errors could not be attributed to a particular notification, in which
+     * case more notifications may have failed than {@link #failedNotifications()} lists.
+     */
+    public boolean hasUnidentifiedFailures() {
+        return unidentifiedFailures;
+    }
+
+    private static String describe(List<InsertFailure> failures) {
+        StringBuilder message = new StringBuilder();
+
+        for (InsertFailure failure : failures) {
+            if (message.length() > 0) {
+                message.append("\n");
+            }
+
+            message.append("Errors inserting new notification: ").append(failure.entity).append("\n")
+                    .append("Data errors: ").append(failure.dataErrors).append("\n")
+                    .append("Errors: ").append(failure.errors);
+        }
+
+        return message.toString();
     }
 }
@@ -0,0 +1,274 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.util.Error;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inserts notifications into the notification entity through a {@link NotificationSink}.
+ */
+class NotificationInserter {
+    private final ObjectMapper objectMapper;
+    private final @Nullable NotificationEntityWriter writer;
+
+    private volatile NotificationSink sink;
+    private @Nullable volatile NotificationSpool spool;
+    private @Nullable volatile CompactNotificationEncoder compactEncoder;
+    private volatile NotificationHookMetrics metrics = NotificationHookMetrics.NONE;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationInserter.class);
+
+    /**
+     * @param writer Writes notifications to JSON directly. If null, notifications are written with
+     * the {@code objectMapper}.
+     */
+    NotificationInserter(ObjectMapper objectMapper, @Nullable NotificationEntityWriter writer,
+            NotificationSink sink) {
+        this.objectMapper = objectMapper;
+        this.writer = writer;
+        this.sink = sink;
+    }
+
+    /**
+     * Notifications are written to this sink from now on, including those already queued or
+     * spooled.
+     */
+    void writeTo(NotificationSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Notifications which fail to insert are appended to this spool instead of failing the write.
+     */
+    void spoolFailuresTo(@Nullable NotificationSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Notifications are written in compact form with this encoder. If null, they are written as
+     * is.
+     */
+    void writeCompactlyWith(@Nullable CompactNotificationEncoder compactEncoder) {
+        this.compactEncoder = compactEncoder;
+    }
+
+    void reportMetricsTo(NotificationHookMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes the notifications with a single write to the sink, or spools them if that fails and
+     * a spool is configured. Only the notifications which failed are spooled, unless some errors
+     * cannot be tied to a notification; then all of them are, even those which may have been
+     * written.
+     *
+     * @throws NotificationProcessingError if the insert could not be attempted and there is no
+     * spool
+     * @throws NotificationInsertErrorsException if the insert responded with errors or data
+     * errors and there is no spool
+     */
+    void insert(List<NotificationEntity> notifications) {
+        NotificationSpool spool = this.spool;
+
+        if (spool == null) {
+            insertOrThrow(notifications);
+            return;
+        }
+
+        try {
+            insertOrThrow(notifications);
+        } catch (NotificationInsertErrorsException e) {
+            LOGGER.warn("Spooling notifications which failed to insert", e);
+            spool.append(e.hasUnidentifiedFailures() ? notifications : e.failedNotifications());
+        } catch (NotificationProcessingError e) {
+            LOGGER.warn("Spooling notifications which failed to insert", e);
+            spool.append(notifications);
+        }
+    }
+
+    /**
+     * Writes the notifications with a single write to the sink.
+     *
+     * @throws NotificationProcessingError if the write could not be attempted
+     * @throws NotificationInsertErrorsException if the write failed with errors or data errors,
+     * describing them per notification
+     */
+    void insertOrThrow(List<NotificationEntity> notifications) {
+        if (notifications.isEmpty()) {
+            return;
+        }
+
+        NotificationHookMetrics metrics = this.metrics;
+        CompactNotificationEncoder compactEncoder = this.compactEncoder;
+        List<JsonNode> docs = new ArrayList<>(notifications.size());
+        String entityName = singleEntityNameOf(notifications);
+        NotificationSink.Result result;
+
+        try {
+            if (entityName != null) {
+                long start = System.nanoTime();
+                for (NotificationEntity notification : notifications) {
+                    docs.add(toDoc(notification, compactEncoder));
+                }
+
+                long serialized = System.nanoTime();
+                metrics.recordStage(entityName, NotificationHookMetrics.Stage.SERIALIZATION,
+                        serialized - start);
+
+                LOGGER.debug("Inserting {} notification(s)", docs.size());
+                result = sink.write(docs);
+
+                metrics.recordStage(entityName, NotificationHookMetrics.Stage.INSERT,
+                        System.nanoTime() - serialized);
+            } else {
+                result = insertMixedEntities(notifications, docs, compactEncoder, metrics);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error inserting notifications:"+e);
+            recordFailures(notifications, metrics);
+            throw new NotificationProcessingError(e);
+        }
+
+        if (result.isWritten()) {
+            return;
+        }
+
+        List<Error> errors = result.errors();
+        List<DataError> dataErrors = result.dataErrors();
+
+        List<InsertFailure> failures = new ArrayList<>();
+        List<DataError> unmatched = new ArrayList<>(dataErrors);
+
+        for (int i = 0; i < docs.size(); i++) {
+            List<DataError> docErrors = docs.size() == 1
+                    ? removeAll(unmatched)
+                    : removeDataErrorsForDoc(unmatched, docs.get(i));
+
+            if (!errors.isEmpty() || !docErrors.isEmpty()) {
+                failures.add(new InsertFailure(notifications.get(i), errors, docErrors));
+            }
+        }
+
+        if (!unmatched.isEmpty()) {
+            // The datastore may report data errors against a document it has since modified, so
+            // these cannot be tied to a particular notification.
+            failures.add(new InsertFailure(null, Collections.<Error>emptyList(), unmatched));
+        }
+
+        NotificationInsertErrorsException insertErrors = new NotificationInsertErrorsException(failures);
+        recordFailures(insertErrors.hasUnidentifiedFailures()
+                ? notifications
+                : insertErrors.failedNotifications(), metrics);
+
+        throw insertErrors;
+    }
+
+    /**
+     * Writes a batch holding several entities' notifications, as an asynchronous batch may.
+     * Each entity is charged for serializing its own notifications, and for its share of the
+     * insert by number of notifications.
+     */
+    private NotificationSink.Result insertMixedEntities(List<NotificationEntity> notifications,
+            List<JsonNode> docs, @Nullable CompactNotificationEncoder compactEncoder,
+            NotificationHookMetrics metrics) throws Exception {
+        // Per entity: serialization nanos, then number of notifications.
+        Map<String, long[]> byEntity = new LinkedHashMap<>();
+
+        for (NotificationEntity notification : notifications) {
+            long start = System.nanoTime();
+            docs.add(toDoc(notification, compactEncoder));
+
+            long[] entity = byEntity.get(notification.getEntityName());
+            if (entity == null) {
+                entity = new long[2];
+                byEntity.put(notification.getEntityName(), entity);
+            }
+            entity[0] += System.nanoTime() - start;
+            entity[1]++;
+        }
+
+        for (Map.Entry<String, long[]> entity : byEntity.entrySet()) {
+            metrics.recordStage(entity.getKey(), NotificationHookMetrics.Stage.SERIALIZATION,
+                    entity.getValue()[0]);
+        }
+
+        LOGGER.debug("Inserting {} notification(s)", docs.size());
+        long start = System.nanoTime();
+        NotificationSink.Result result = sink.write(docs);
+        long insertNanos = System.nanoTime() - start;
+
+        for (Map.Entry<String, long[]> entity : byEntity.entrySet()) {
+            metrics.recordStage(entity.getKey(), NotificationHookMetrics.Stage.INSERT,
+                    insertNanos * entity.getValue()[1] / notifications.size());
+        }
+
+        return result;
+    }
+
+    private JsonNode toDoc(NotificationEntity notification,
+            @Nullable CompactNotificationEncoder compactEncoder) {
+        JsonNode doc = writer == null
+                ? objectMapper.valueToTree(notification)
+                : writer.write(notification);
+        if (compactEncoder != null) {
+            compactEncoder.encode((ObjectNode) doc, notification);
+        }
+        return doc;
+    }
+
+    /**
+     * @return The entity name all the notifications share, or null if they do not.
+     */
+    @Nullable
+    private static String singleEntityNameOf(List<NotificationEntity> notifications) {
+        String entityName = notifications.get(0).getEntityName();
+        for (int i = 1; i < notifications.size(); i++) {
+            if (!entityName.equals(notifications.get(i).getEntityName())) {
+                return null;
+            }
+        }
+        return entityName;
+    }
+
+    private static void recordFailures(List<NotificationEntity> failed,
+            NotificationHookMetrics metrics) {
+        for (NotificationEntity notification : failed) {
+            metrics.recordOutcome(notification.getEntityName(),
+                    NotificationHookMetrics.Outcome.FAILED, 1);
+        }
+    }
+
+    private static List<DataError> removeAll(List<DataError> dataErrors) {
+        List<DataError> removed = new ArrayList<>(dataErrors);
+        dataErrors.clear();
+        return removed;
+    }
+
+    private static List<DataError> removeDataErrorsForDoc(List<DataError> dataErrors, JsonNode doc) {
+        List<DataError> found = new ArrayList<>();
+        Iterator<DataError> itr = dataErrors.iterator();
+
+        while (itr.hasNext()) {
+            DataError dataError = itr.next();
+            if (dataError.getEntityData() == doc || doc.equals(dataError.getEntityData())) {
+                found.add(dataError);
+                itr.remove();
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,447 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of notifications on local disk, for consumers which would rather tail a file
+ * than poll the notification entity. Read it with a {@link NotificationLogReader}, in this
+ * process or another.
+ *
+ * <p>Every notification is given the next offset, counting up from 0 across restarts, and is
+ * appended as JSON to the newest of a directory of segment files, each written through a
+ * memory-mapped {@link FileChannel}. Segments are named for the offset of their first record,
+ * and every record is framed as:
+ *
+ * <pre>
+ * int  length of JSON payload (0 where nothing is written yet, -1 where the log continues in
+ *      the next segment)
+ * int  CRC32 of the offset and payload
+ * long offset
+ * byte[length] payload
+ * </pre>
+ *
+ * <p>A new segment is started once the newest is full. Older segments are then deleted once
+ * all segments together take more than {@link Settings#retentionBytes()}, or once they were last
+ * written more than {@link Settings#retentionMillis()} ago. Retention is only applied when a
+ * segment is started, and when the log is opened.
+ *
+ * <p>Records are not forced to disk as they are written, only when their segment is full and
+ * when the log is closed, so a crash of the machine, though not of the process, can lose the
+ * most recent notifications. A newest segment left without any intact record is appended to
+ * from its start when the log is next opened.
+ *
+ * <p>Writing fails only when the disk does, for instance once it is full and a new segment
+ * cannot be started. The whole batch is then reported as failed, though the notifications
+ * written before the failure are already in the log, and stay there. Spooling such a batch with
+ * {@link NotificationHook#spoolFailedInserts} therefore writes those notifications again.
+ */
+public class NotificationLog implements NotificationSink {
+    private final Settings settings;
+    private final ObjectMapper objectMapper;
+
+    private @Nullable Segment active;
+    private long nextOffset;
+    private boolean closed;
+
+    static final String SEGMENT_PREFIX = "notifications-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final String CREATING_SUFFIX = ".creating";
+    static final int RECORD_HEADER_BYTES = 16;
+    static final int ROLLED = -1;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationLog.class);
+
+    NotificationLog(Settings settings, ObjectMapper objectMapper) throws IOException {
+        this.settings = settings;
+        this.objectMapper = objectMapper;
+
+        Files.createDirectories(settings.directory());
+        deleteAbandonedCreations();
+
+        List<Path> segments = segments(settings.directory());
+        if (!segments.isEmpty()) {
+            continueFrom(segments.get(segments.size() - 1));
+            LOGGER.info("Continuing notification log in {} at offset {}",
+                    settings.directory(), nextOffset);
+        }
+
+        applyRetention();
+    }
+
+    @Override
+    public synchronized Result write(List<JsonNode> notifications) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Notification log is closed: " + settings.directory());
+        }
+
+        for (JsonNode notification : notifications) {
+            byte[] payload = objectMapper.writeValueAsBytes(notification);
+
+            if (active == null || !active.hasRoomFor(payload.length)) {
+                roll(payload.length);
+            }
+
+            active.append(nextOffset++, payload);
+        }
+
+        return Result.written();
+    }
+
+    /**
+     * @return The offset the next notification will be written at.
+     */
+    public synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Ends the segment being appended to and forces it to disk. Notifications can no longer be
+     * written, but a new log using the same directory carries on from the next offset.
+     */
+    public synchronized void close() {
+        if (active != null) {
+            active.end();
+            active = null;
+        }
+        closed = true;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationLog{" +
+                "settings=" + settings +
+                '}';
+    }
+
+    private void roll(int payloadLength) throws IOException {
+        if (active != null) {
+            active.end();
+
+            // Only a segment left empty by a previous log and too small for the first payload is
+            // rolled empty. The next segment must not take its name, so its offset is skipped.
+            if (active.isEmpty()) {
+                LOGGER.warn("Skipping offset {}: notification of {} bytes does not fit empty " +
+                        "segment {}", nextOffset, payloadLength, active.path);
+                nextOffset++;
+            }
+        }
+
+        long size = Math.max(settings.segmentSizeBytes(),
+                (long) payloadLength + 2 * RECORD_HEADER_BYTES);
+        Path path = settings.directory().resolve(segmentName(nextOffset));
+        Path creating = path.resolveSibling(path.getFileName() + CREATING_SUFFIX);
+
+        // Readers only ever see segments mapped to their full size.
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(creating, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        Files.move(creating, path, StandardCopyOption.ATOMIC_MOVE);
+
+        active = new Segment(path, buffer);
+        applyRetention();
+    }
+
+    /**
+     * Carries on from the newest segment left behind by a previous log. If it has any intact
+     * records, it is ended after the last of them, so readers move on from it, and the offset
+     * following that record is next. Otherwise nothing was written to it, so it is cleared and
+     * appended to from its start: a new segment could only be named the same.
+     */
+    private void continueFrom(Path segment) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+
+        long baseOffset = baseOffset(segment);
+        nextOffset = baseOffset;
+        CRC32 crc = new CRC32();
+
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+
+            if (length <= 0 || length > buffer.remaining() - RECORD_HEADER_BYTES ||
+                    !isIntact(buffer, start, length, crc)) {
+                break;
+            }
+
+            nextOffset = buffer.getLong(start + 8) + 1;
+            buffer.position(start + RECORD_HEADER_BYTES + length);
+        }
+
+        if (nextOffset == baseOffset) {
+            // Whatever a crash left of records which were never intact must not be read later.
+            // The length at the start is cleared last, as it is written last when appending.
+            ByteBuffer cleared = buffer.duplicate();
+            cleared.position(Math.min(4, cleared.limit()));
+            byte[] zeros = new byte[8192];
+            while (cleared.hasRemaining()) {
+                cleared.put(zeros, 0, Math.min(zeros.length, cleared.remaining()));
+            }
+            if (buffer.capacity() >= 4) {
+                buffer.putInt(0, 0);
+            }
+            buffer.position(0);
+            active = new Segment(segment, buffer);
+            LOGGER.info("Reusing empty notification log segment {}", segment);
+            return;
+        }
+
+        if (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            buffer.putInt(buffer.position(), ROLLED);
+            buffer.force();
+        }
+    }
+
+    static boolean isIntact(ByteBuffer segment, int start, int length, CRC32 crc) {
+        ByteBuffer checked = segment.duplicate();
+        checked.limit(start + RECORD_HEADER_BYTES + length);
+        checked.position(start + 8);
+
+        crc.reset();
+        crc.update(checked);
+
+        return (int) crc.getValue() == segment.getInt(start + 4);
+    }
+
+    private void applyRetention() {
+        List<Path> segments = segments(settings.directory());
+        List<Long> sizes = new ArrayList<>(segments.size());
+        long totalBytes = 0;
+
+        for (Path segment : segments) {
+            long size = sizeOf(segment);
+            sizes.add(size);
+            totalBytes += size;
+        }
+
+        long expiredBefore = settings.retentionMillis() == 0
+                ? Long.MIN_VALUE
+                : System.currentTimeMillis() - settings.retentionMillis();
+
+        // The newest segment is always kept: it may be being appended to.
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Path segment = segments.get(i);
+            boolean overSize = settings.retentionBytes() != 0 &&
+                    totalBytes > settings.retentionBytes();
+
+            if (!overSize && lastModified(segment) >= expiredBefore) {
+                break;
+            }
+
+            try {
+                Files.delete(segment);
+                totalBytes -= sizes.get(i);
+                LOGGER.debug("Deleted notification log segment {}", segment);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete notification log segment " + segment, e);
+                return;
+            }
+        }
+    }
+
+    private void deleteAbandonedCreations() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(settings.directory(),
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + CREATING_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static long sizeOf(Path segment) {
+        try {
+            return Files.size(segment);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path segment) {
+        try {
+            return Files.getLastModifiedTime(segment).toMillis();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    static String segmentName(long baseOffset) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, baseOffset, SEGMENT_SUFFIX);
+    }
+
+    static long baseOffset(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return The segments of the log in the directory, oldest first.
+     */
+    static List<Path> segments(Path directory) {
+        List<Path> segments = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to list notification log segments in " +
+                    directory, e);
+        }
+
+        // Zero padded base offsets sort in the order they were written.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final CRC32 crc = new CRC32();
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        boolean isEmpty() {
+            return buffer.position() == 0;
+        }
+
+        boolean hasRoomFor(int payloadLength) {
+            // Leave room for the header ending the segment.
+            return buffer.remaining() >= payloadLength + 2 * RECORD_HEADER_BYTES;
+        }
+
+        void append(long offset, byte[] payload) {
+            int start = buffer.position();
+            // Write the length last, so readers never see a record before all of it is written.
+            buffer.position(start + 8);
+            buffer.putLong(offset);
+            buffer.put(payload);
+
+            ByteBuffer checked = buffer.duplicate();
+            checked.flip();
+            checked.position(start + 8);
+            crc.reset();
+            crc.update(checked);
+
+            buffer.putInt(start + 4, (int) crc.getValue());
+            buffer.putInt(start, payload.length);
+        }
+
+        void end() {
+            buffer.putInt(buffer.position(), ROLLED);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Immutable settings for a {@link NotificationLog}. Start from {@link #inDirectory(Path)}.
+     */
+    public static final class Settings {
+        private final Path directory;
+        private final long segmentSizeBytes;
+        private final long retentionBytes;
+        private final long retentionMillis;
+
+        private Settings(Path directory, long segmentSizeBytes, long retentionBytes,
+                long retentionMillis) {
+            if (directory == null) {
+                throw new NullPointerException("directory");
+            }
+            if (segmentSizeBytes < 1 || segmentSizeBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("segmentSizeBytes must be at least 1 and at " +
+                        "most " + Integer.MAX_VALUE + " but was: " + segmentSizeBytes);
+            }
+            if (retentionBytes < 0 || retentionMillis < 0) {
+                throw new IllegalArgumentException("retentionBytes and retentionMillis must " +
+                        "not be negative but were: " + retentionBytes + ", " + retentionMillis);
+            }
+
+            this.directory = directory;
+            this.segmentSizeBytes = segmentSizeBytes;
+            this.retentionBytes = retentionBytes;
+            this.retentionMillis = retentionMillis;
+        }
+
+        /**
+         * Logs to 64MiB segments in the given directory, keeping up to 1GiB of them for up to 7
+         * days.
+         */
+        public static Settings inDirectory(Path directory) {
+            return new Settings(directory, 64 * 1024 * 1024, 1024L * 1024 * 1024,
+                    TimeUnit.DAYS.toMillis(7));
+        }
+
+        public Settings withSegmentSizeBytes(long segmentSizeBytes) {
+            return new Settings(directory, segmentSizeBytes, retentionBytes, retentionMillis);
+        }
+
+        /**
+         * @param retentionBytes 0 to keep segments regardless of size.
+         */
+        public Settings withRetentionBytes(long retentionBytes) {
+            return new Settings(directory, segmentSizeBytes, retentionBytes, retentionMillis);
+        }
+
+        /**
+         * @param retentionMillis 0 to keep segments regardless of age.
+         */
+        public Settings withRetentionMillis(long retentionMillis) {
+            return new Settings(directory, segmentSizeBytes, retentionBytes, retentionMillis);
+        }
+
+        public Path directory() {
+            return directory;
+        }
+
+        public long segmentSizeBytes() {
+            return segmentSizeBytes;
+        }
+
+        public long retentionBytes() {
+            return retentionBytes;
+        }
+
+        public long retentionMillis() {
+            return retentionMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "directory=" + directory +
+                    ", segmentSizeBytes=" + segmentSizeBytes +
+                    ", retentionBytes=" + retentionBytes +
+                    ", retentionMillis=" + retentionMillis +
+                    '}';
+        }
+    }
+}
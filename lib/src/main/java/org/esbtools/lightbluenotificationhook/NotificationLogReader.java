@@ -0,0 +1,214 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a {@link NotificationLog} in order, from any offset, while it is being written.
+ *
+ * <p>Segments are memory-mapped read-only, and records are handed out as views of the mapping
+ * rather than copied. Keep the offset of the last record processed to resume from the one after
+ * it later.
+ *
+ * <p>If the segment holding the requested offset was already deleted by retention, reading
+ * starts at the oldest record left, and likewise if retention overtakes a slow reader, it skips
+ * ahead: compare {@link Record#offset()} to what was expected to notice. Not thread-safe.
+ */
+public class NotificationLogReader {
+    private final Path directory;
+    private final CRC32 crc = new CRC32();
+
+    private long nextOffset;
+    private @Nullable Path segment;
+    private @Nullable ByteBuffer buffer;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationLogReader.class);
+
+    /**
+     * @param directory The directory of the log, as in {@link NotificationLog.Settings#directory()}.
+     * @param fromOffset The offset of the first record to read.
+     */
+    public NotificationLogReader(Path directory, long fromOffset) {
+        if (directory == null) {
+            throw new NullPointerException("directory");
+        }
+        if (fromOffset < 0) {
+            throw new IllegalArgumentException("fromOffset must not be negative but was: " +
+                    fromOffset);
+        }
+
+        this.directory = directory;
+        this.nextOffset = fromOffset;
+    }
+
+    /**
+     * @return The next record, or null if there is none yet. Call again later to tail the log.
+     */
+    @Nullable
+    public Record next() throws IOException {
+        while (true) {
+            if (buffer == null && !open(segmentFor(nextOffset))) {
+                return null;
+            }
+
+            int start = buffer.position();
+            int length = buffer.remaining() >= NotificationLog.RECORD_HEADER_BYTES
+                    ? buffer.getInt(start)
+                    : NotificationLog.ROLLED;
+
+            if (length == 0) {
+                return null;
+            }
+
+            if (length == NotificationLog.ROLLED) {
+                if (!open(segmentAfter(segment))) {
+                    return null;
+                }
+                continue;
+            }
+
+            if (length < 0 || length > buffer.remaining() - NotificationLog.RECORD_HEADER_BYTES ||
+                    !NotificationLog.isIntact(buffer, start, length, crc)) {
+                LOGGER.error("Corrupt record in notification log segment {} at {}; skipping " +
+                        "to the next segment.", segment, start);
+                if (!open(segmentAfter(segment))) {
+                    return null;
+                }
+                continue;
+            }
+
+            long offset = buffer.getLong(start + 8);
+            buffer.position(start + NotificationLog.RECORD_HEADER_BYTES + length);
+
+            if (offset < nextOffset) {
+                continue;
+            }
+
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(buffer.position());
+            payload.position(start + NotificationLog.RECORD_HEADER_BYTES);
+
+            nextOffset = offset + 1;
+            return new Record(offset, payload.slice());
+        }
+    }
+
+    /**
+     * @return The offset of the record following the last one read, or the offset to read from
+     * if none were read yet.
+     */
+    public long nextOffset() {
+        return nextOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationLogReader{" +
+                "directory=" + directory +
+                ", nextOffset=" + nextOffset +
+                '}';
+    }
+
+    /**
+     * @return The segment which holds the offset, or if it was deleted, the oldest left.
+     */
+    @Nullable
+    private Path segmentFor(long offset) {
+        List<Path> segments = NotificationLog.segments(directory);
+        Path found = null;
+
+        for (Path candidate : segments) {
+            if (found != null && NotificationLog.baseOffset(candidate) > offset) {
+                break;
+            }
+            found = candidate;
+        }
+
+        return found;
+    }
+
+    @Nullable
+    private Path segmentAfter(Path current) {
+        long currentBase = NotificationLog.baseOffset(current);
+
+        for (Path candidate : NotificationLog.segments(directory)) {
+            if (NotificationLog.baseOffset(candidate) > currentBase) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Whether the segment could be read; if not, the current one is still read.
+     */
+    private boolean open(@Nullable Path next) throws IOException {
+        if (next == null) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(next, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed, or the segment is deleted.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            segment = next;
+            return true;
+        } catch (NoSuchFileException e) {
+            // Deleted by retention since it was listed; the next attempt finds what is left.
+            return false;
+        }
+    }
+
+    /**
+     * A notification as written to the log: JSON, possibly {@link
+     * NotificationHook#writeCompactNotifications() compact}.
+     */
+    public static final class Record {
+        private final long offset;
+        private final ByteBuffer payload;
+
+        Record(long offset, ByteBuffer payload) {
+            this.offset = offset;
+            this.payload = payload;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        /**
+         * @return A read-only view of the JSON in the mapped segment.
+         */
+        public ByteBuffer payload() {
+            return payload.duplicate();
+        }
+
+        /**
+         * Reads the notification straight from the mapped segment.
+         */
+        public NotificationEntity toNotification(ObjectMapper objectMapper) throws IOException {
+            return objectMapper.readValue(new ByteBufferBackedInputStream(payload()),
+                    NotificationEntity.class);
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" +
+                    "offset=" + offset +
+                    ", length=" + payload.remaining() +
+                    '}';
+        }
+    }
+}
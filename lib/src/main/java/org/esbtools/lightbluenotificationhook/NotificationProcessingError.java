@@ -4,4 +4,8 @@ public class NotificationProcessingError extends RuntimeException {
     public NotificationProcessingError(Exception cause) {
         super(cause);
     }
+
+    public NotificationProcessingError(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,142 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+import org.esbtools.lightbluenotificationhook.NotificationHookConfiguration.RateLimit;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies an entity's {@link RateLimit} to its notifications. Thread-safe and lock-free.
+ *
+ * <p>The token bucket is kept as the time at which it would next be full (the "theoretical
+ * arrival time" of the generic cell rate algorithm), so admitting a notification is a single
+ * compare-and-set, retried only when another thread admitted one at the same moment.
+ */
+class NotificationRateLimiter {
+    private final String entityName;
+    private final RateLimit rateLimit;
+    private final long intervalNanos;
+    private final long burstToleranceNanos;
+    private final AtomicLong theoreticalArrivalNanos;
+    private final AtomicLong suppressedSinceSummary = new AtomicLong();
+
+    private volatile @Nullable String lastSuppressedEntityVersion;
+    private volatile @Nullable ScheduledFuture<?> summarySchedule;
+
+    static final String SUPPRESSED_NOTIFICATIONS_PATH = "suppressedNotifications";
+
+    NotificationRateLimiter(String entityName, RateLimit rateLimit) {
+        this.entityName = entityName;
+        this.rateLimit = rateLimit;
+        this.intervalNanos = rateLimit.maxPerSecond() == 0
+                ? 0
+                : (long) Math.ceil(TimeUnit.SECONDS.toNanos(1) / rateLimit.maxPerSecond());
+        this.burstToleranceNanos = intervalNanos * (rateLimit.burst() - 1);
+        this.theoreticalArrivalNanos = new AtomicLong(System.nanoTime());
+    }
+
+    RateLimit rateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @return true if the notification should be written, false if it is suppressed. Suppressed
+     * notifications are counted toward the next summary if the entity's notifications are
+     * summarized.
+     */
+    boolean admit(NotificationEntity notification) {
+        if (isSampled() && tryAcquire(System.nanoTime())) {
+            return true;
+        }
+
+        if (rateLimit.suppression() == RateLimit.Suppression.SUMMARIZE) {
+            lastSuppressedEntityVersion = notification.getEntityVersion();
+            suppressedSinceSummary.incrementAndGet();
+        }
+
+        return false;
+    }
+
+    private boolean isSampled() {
+        return rateLimit.samplingRatio() == 1 ||
+                ThreadLocalRandom.current().nextDouble() < rateLimit.samplingRatio();
+    }
+
+    private boolean tryAcquire(long now) {
+        if (intervalNanos == 0) {
+            return true;
+        }
+
+        while (true) {
+            long arrival = theoreticalArrivalNanos.get();
+            // Compared by difference, as nanoTime may overflow.
+            long start = arrival - now > 0 ? arrival : now;
+
+            if (start - now > burstToleranceNanos) {
+                return false;
+            }
+
+            if (theoreticalArrivalNanos.compareAndSet(arrival, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    void summarizeOn(ScheduledFuture<?> summarySchedule) {
+        this.summarySchedule = summarySchedule;
+    }
+
+    /**
+     * Stops summaries from being written on a schedule. Any remaining should be drained.
+     */
+    void cancelSummaries() {
+        ScheduledFuture<?> summarySchedule = this.summarySchedule;
+        if (summarySchedule != null) {
+            summarySchedule.cancel(false);
+        }
+    }
+
+    /**
+     * @return A summary of notifications suppressed since the last summary, or null if none
+     * were.
+     */
+    @Nullable
+    NotificationEntity drainSummary(String principal) {
+        long suppressed = suppressedSinceSummary.getAndSet(0);
+
+        if (suppressed == 0) {
+            return null;
+        }
+
+        NotificationEntity summary = new NotificationEntity();
+        summary.setEntityName(entityName);
+        summary.setEntityVersion(lastSuppressedEntityVersion);
+        summary.setStatus(NotificationEntity.Status.unprocessed);
+        summary.setOperation(NotificationEntity.Operation.update);
+        summary.setClientRequestPrincipal(principal);
+        summary.setClientRequestDate(new Date());
+        summary.setEntityData(Collections.singletonList(
+                new PathAndValue(SUPPRESSED_NOTIFICATIONS_PATH, Long.toString(suppressed))));
+        summary.setUpdatedPaths(new ArrayList<String>());
+        summary.setRemovedEntityData(new ArrayList<PathAndValue>());
+        summary.setRemovedPaths(new ArrayList<String>());
+        summary.setTruncated(true);
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationRateLimiter{" +
+                "entityName='" + entityName + '\'' +
+                ", rateLimit=" + rateLimit +
+                ", suppressedSinceSummary=" + suppressedSinceSummary +
+                '}';
+    }
+}
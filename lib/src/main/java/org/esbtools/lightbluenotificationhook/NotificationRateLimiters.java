@@ -0,0 +1,138 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationHookConfiguration.RateLimit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hook's {@link NotificationRateLimiter}s, one per entity, and the background thread writing
+ * summaries of suppressed notifications for those which need them.
+ *
+ * <p>An entity's limiter is kept across requests, and across versions of its metadata, for as
+ * long as its {@link RateLimit} stays the same. If the limit changes, a fresh limiter replaces it
+ * and the old one's summary is written.
+ */
+class NotificationRateLimiters {
+    private final String principal;
+    private final NotificationInserter inserter;
+    private final ConcurrentMap<String, NotificationRateLimiter> limiters = new ConcurrentHashMap<>();
+
+    private @Nullable ScheduledExecutorService summaryScheduler;
+    private boolean shutdown;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationRateLimiters.class);
+
+    /**
+     * @param principal Summaries are written as if by this client.
+     */
+    NotificationRateLimiters(String principal, NotificationInserter inserter) {
+        this.principal = principal;
+        this.inserter = inserter;
+    }
+
+    /**
+     * @return The entity's limiter, or null if its notifications are not limited.
+     */
+    @Nullable
+    NotificationRateLimiter forEntity(String entityName, RateLimit rateLimit) {
+        NotificationRateLimiter limiter = limiters.get(entityName);
+
+        if (limiter != null && limiter.rateLimit().equals(rateLimit)) {
+            return limiter;
+        }
+
+        if (limiter == null && rateLimit.isUnlimited()) {
+            return null;
+        }
+
+        synchronized (this) {
+            NotificationRateLimiter current = limiters.get(entityName);
+
+            if (current != null && current.rateLimit().equals(rateLimit)) {
+                return current;
+            }
+
+            NotificationRateLimiter replacement = rateLimit.isUnlimited()
+                    ? null
+                    : new NotificationRateLimiter(entityName, rateLimit);
+
+            if (replacement == null) {
+                limiters.remove(entityName);
+            } else {
+                limiters.put(entityName, replacement);
+                if (rateLimit.suppression() == RateLimit.Suppression.SUMMARIZE && !shutdown) {
+                    scheduleSummaries(replacement);
+                }
+            }
+
+            if (current != null) {
+                current.cancelSummaries();
+                writeSummary(current);
+            }
+
+            return replacement;
+        }
+    }
+
+    private void scheduleSummaries(final NotificationRateLimiter limiter) {
+        if (summaryScheduler == null) {
+            summaryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "notification-summaries");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        long interval = limiter.rateLimit().summaryIntervalSeconds();
+        limiter.summarizeOn(summaryScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                writeSummary(limiter);
+            }
+        }, interval, interval, TimeUnit.SECONDS));
+    }
+
+    private void writeSummary(NotificationRateLimiter limiter) {
+        NotificationEntity summary = limiter.drainSummary(principal);
+
+        if (summary == null) {
+            return;
+        }
+
+        try {
+            inserter.insert(Collections.singletonList(summary));
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to write summary of suppressed notifications: " + summary, e);
+        }
+    }
+
+    /**
+     * Stops writing summaries on a schedule, and writes any outstanding on the calling thread.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+
+            if (summaryScheduler != null) {
+                summaryScheduler.shutdownNow();
+            }
+        }
+
+        for (NotificationRateLimiter limiter : limiters.values()) {
+            writeSummary(limiter);
+        }
+    }
+}
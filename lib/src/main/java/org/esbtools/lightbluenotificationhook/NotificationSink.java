@@ -0,0 +1,77 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.util.Error;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where the hook writes notification documents: by default, {@link MediatorNotificationSink
+ * through a Mediator} like any other client, or {@link DatastoreNotificationSink straight to the
+ * datastore}. See {@link NotificationHook#writeNotificationsTo(NotificationSink)}.
+ *
+ * <p>Sinks are shared by request threads and the hook's background writers, so must be
+ * thread-safe.
+ */
+public interface NotificationSink {
+    /**
+     * Writes documents of the {@link NotificationEntity notification entity}, in the form the
+     * hook made them, which may be {@link NotificationHook#writeCompactNotifications() compact}.
+     *
+     * @param notifications At least one notification document.
+     * @return Errors which failed the whole write, and data errors of the documents which failed
+     * to write, with the document they concern as their entity data.
+     * @throws Exception if the write could not be attempted
+     */
+    Result write(List<JsonNode> notifications) throws Exception;
+
+    final class Result {
+        private final List<Error> errors;
+        private final List<DataError> dataErrors;
+
+        private static final Result WRITTEN = new Result(Collections.<Error>emptyList(),
+                Collections.<DataError>emptyList());
+
+        public Result(List<Error> errors, List<DataError> dataErrors) {
+            if (errors == null) {
+                throw new NullPointerException("errors");
+            }
+            if (dataErrors == null) {
+                throw new NullPointerException("dataErrors");
+            }
+
+            this.errors = errors;
+            this.dataErrors = dataErrors;
+        }
+
+        /**
+         * All notifications were written.
+         */
+        public static Result written() {
+            return WRITTEN;
+        }
+
+        public List<Error> errors() {
+            return errors;
+        }
+
+        public List<DataError> dataErrors() {
+            return dataErrors;
+        }
+
+        public boolean isWritten() {
+            return errors.isEmpty() && dataErrors.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "errors=" + errors +
+                    ", dataErrors=" + dataErrors +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,626 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, local write-ahead spool for notifications which could not be inserted.
+ *
+ * <p>Notifications are appended as JSON to segment files in a directory, each written through a
+ * memory-mapped {@link FileChannel}. Every record is framed as:
+ *
+ * <pre>
+ * int  length of JSON payload (0 marks the end of a segment)
+ * int  CRC32 of the payload
+ * byte[length] payload
+ * </pre>
+ *
+ * <p>A background replayer periodically seals the segment being appended to and inserts the
+ * records of each sealed segment, oldest first. A segment is deleted once all of its records are
+ * inserted. Records the datastore rejects individually are moved to a new segment with a {@code
+ * .failed} extension, and replay carries on. If inserts fail as a whole, the segment is
+ * rewritten with only the records not yet inserted, and replay stops and is retried on the next
+ * run; after {@link Settings#maxReplayAttempts()} failed runs, the segment is renamed with a
+ * {@code .failed} extension. Set aside segments are left for manual inspection. Segment numbers
+ * are never reused, so they are never replaced.
+ *
+ * <p>Delivery is at least once, so a notification may be inserted twice. That happens if the
+ * process stops during replay, and if an insert fails with data errors which cannot be tied to
+ * particular notifications: the whole batch is then spooled, or its replay retried, including
+ * any notifications the datastore did store. Segments left behind by a previous process are
+ * replayed as well. A record whose CRC does not match, such as one torn by a crash, ends replay
+ * of its segment.
+ */
+public class NotificationSpool {
+    private final Settings settings;
+    private final ObjectMapper objectMapper;
+    private final NotificationInserter inserter;
+    private final ScheduledExecutorService replayer;
+    private final Object replayLock = new Object();
+    private final Map<Path, Integer> failedReplays = new HashMap<>();
+
+    private @Nullable Segment active;
+    private long nextSegmentNumber;
+
+    private static final String SEGMENT_PREFIX = "notifications-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String ACTIVE_SUFFIX = ".active";
+    private static final String FAILED_SUFFIX = ".failed";
+    private static final String REWRITE_SUFFIX = ".rewrite";
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationSpool.class);
+
+    NotificationSpool(Settings settings, ObjectMapper objectMapper, NotificationInserter inserter) throws IOException {
+        this.settings = settings;
+        this.objectMapper = objectMapper;
+        this.inserter = inserter;
+
+        Files.createDirectories(settings.directory());
+        sealAbandonedSegments();
+
+        List<Path> existing = sealedSegments();
+        if (!existing.isEmpty()) {
+            LOGGER.warn("Found {} spooled notification segment(s) in {} to replay",
+                    existing.size(), settings.directory());
+        }
+
+        // Numbers of set aside segments are never reused either, so they are never replaced.
+        nextSegmentNumber = lastSegmentNumber() + 1;
+
+        this.replayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "notification-spool-replayer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.replayer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unexpected error replaying spooled notifications", e);
+                }
+            }
+        }, settings.replayIntervalMillis(), settings.replayIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Durably appends the notifications to the spool, to be inserted later.
+     */
+    public synchronized void append(List<NotificationEntity> notifications) {
+        try {
+            for (NotificationEntity notification : notifications) {
+                byte[] payload = objectMapper.writeValueAsBytes(notification);
+
+                if (active == null || !active.hasRoomFor(payload.length)) {
+                    roll(payload.length);
+                }
+
+                active.append(payload);
+            }
+
+            if (active != null) {
+                active.force();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to spool notifications to " +
+                    settings.directory() + ": " + notifications, e);
+        }
+    }
+
+    /**
+     * Inserts spooled notifications, oldest first, until all are inserted or an insert fails as
+     * a whole. Notifications rejected individually are set aside.
+     *
+     * @return The number of notifications inserted.
+     */
+    public int replay() {
+        synchronized (replayLock) {
+            return replaySealedSegments();
+        }
+    }
+
+    private int replaySealedSegments() {
+        synchronized (this) {
+            if (active != null && active.records() > 0) {
+                seal();
+            }
+        }
+
+        int replayed = 0;
+
+        for (Path segment : sealedSegments()) {
+            List<NotificationEntity> notifications;
+
+            try {
+                notifications = read(segment);
+            } catch (IOException e) {
+                LOGGER.error("Unable to read spooled notifications from " + segment, e);
+                recordFailedReplay(segment);
+                return replayed;
+            }
+
+            List<NotificationEntity> rejected = new ArrayList<>();
+            int done = 0;
+
+            try {
+                while (done < notifications.size()) {
+                    List<NotificationEntity> batch = notifications.subList(done,
+                            Math.min(notifications.size(), done + settings.replayBatchSize()));
+
+                    try {
+                        inserter.insertOrThrow(batch);
+                    } catch (NotificationInsertErrorsException e) {
+                        if (e.hasUnidentifiedFailures()) {
+                            throw e;
+                        }
+                        // The rest of the batch was inserted; retrying these would not help.
+                        rejected.addAll(e.failedNotifications());
+                    }
+
+                    done += batch.size();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to replay spooled notifications from " + segment +
+                        "; will retry.", e);
+                setAsideRejected(rejected, segment);
+                keepOnly(segment, notifications.subList(done, notifications.size()), done);
+                recordFailedReplay(segment);
+                return replayed + done - rejected.size();
+            }
+
+            setAsideRejected(rejected, segment);
+
+            try {
+                Files.delete(segment);
+                failedReplays.remove(segment);
+            } catch (IOException e) {
+                LOGGER.error("Replayed spooled notifications but could not delete " + segment +
+                        "; they may be replayed again.", e);
+                return replayed + notifications.size() - rejected.size();
+            }
+
+            replayed += notifications.size() - rejected.size();
+        }
+
+        if (replayed > 0) {
+            LOGGER.info("Replayed {} spooled notification(s)", replayed);
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Stops replaying and releases the segment being appended to. Spooled notifications remain
+     * on disk to be replayed by the next spool using the same directory.
+     */
+    public synchronized void close() {
+        replayer.shutdownNow();
+
+        if (active != null && active.records() > 0) {
+            seal();
+        } else if (active != null) {
+            active.discard();
+            active = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationSpool{" +
+                "settings=" + settings +
+                '}';
+    }
+
+    /**
+     * Reads all intact records of a segment.
+     */
+    List<NotificationEntity> read(Path segment) throws IOException {
+        List<NotificationEntity> notifications = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+
+                if (length <= 0) {
+                    break;
+                }
+
+                if (length > buffer.remaining()) {
+                    LOGGER.error("Truncated record in spooled segment {}; ignoring the rest.",
+                            segment);
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+
+                crc.reset();
+                crc.update(payload, 0, length);
+
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.error("Checksum mismatch in spooled segment {}; ignoring the rest.",
+                            segment);
+                    break;
+                }
+
+                notifications.add(objectMapper.readValue(payload, NotificationEntity.class));
+            }
+        }
+
+        return notifications;
+    }
+
+    /**
+     * Writes notifications the datastore rejected to a new segment set aside for manual
+     * inspection, so they neither block replay of the rest nor take good records with them.
+     */
+    private void setAsideRejected(List<NotificationEntity> rejected, Path from) {
+        if (rejected.isEmpty()) {
+            return;
+        }
+
+        Path failed;
+        synchronized (this) {
+            failed = settings.directory().resolve(String.format("%s%020d%s%s", SEGMENT_PREFIX,
+                    nextSegmentNumber++, SEGMENT_SUFFIX, FAILED_SUFFIX));
+        }
+
+        try {
+            write(failed, rejected);
+            LOGGER.error("{} spooled notification(s) from {} were rejected; moved to {}",
+                    rejected.size(), from, failed);
+        } catch (IOException e) {
+            LOGGER.error("Unable to set aside rejected spooled notifications " + rejected, e);
+        }
+    }
+
+    /**
+     * Replaces the segment with only its records not yet replayed, so those already inserted are
+     * not inserted again when it is retried.
+     */
+    private void keepOnly(Path segment, List<NotificationEntity> remaining, int replayed) {
+        if (replayed == 0) {
+            return;
+        }
+
+        Path rewrite = segment.resolveSibling(segment.getFileName() + REWRITE_SUFFIX);
+
+        try {
+            Files.deleteIfExists(rewrite);
+            write(rewrite, remaining);
+            Files.move(rewrite, segment, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.error("Unable to remove replayed notifications from " + segment +
+                    "; they may be replayed again.", e);
+        }
+    }
+
+    /** Writes the notifications as a new sealed segment file at the path. */
+    private void write(Path path, List<NotificationEntity> notifications) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(notifications.size());
+        // Room for the zeroed header marking the end of the segment.
+        long size = RECORD_HEADER_BYTES;
+
+        for (NotificationEntity notification : notifications) {
+            byte[] payload = objectMapper.writeValueAsBytes(notification);
+            payloads.add(payload);
+            size += RECORD_HEADER_BYTES + payload.length;
+        }
+
+        Segment segment = new Segment(path, size);
+        for (byte[] payload : payloads) {
+            segment.append(payload);
+        }
+        segment.force();
+    }
+
+    private void roll(int payloadLength) throws IOException {
+        if (active != null) {
+            seal();
+        }
+
+        long size = Math.max(settings.segmentSizeBytes(),
+                (long) payloadLength + 2 * RECORD_HEADER_BYTES);
+        Path path = settings.directory().resolve(
+                String.format("%s%020d%s%s", SEGMENT_PREFIX, nextSegmentNumber++,
+                        SEGMENT_SUFFIX, ACTIVE_SUFFIX));
+
+        active = new Segment(path, size);
+    }
+
+    /** Makes the active segment visible to replay. */
+    private void seal() {
+        try {
+            active.force();
+            String name = active.path.getFileName().toString();
+            Files.move(active.path,
+                    active.path.resolveSibling(name.substring(0, name.length() - ACTIVE_SUFFIX.length())),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to seal spooled segment " + active.path, e);
+        } finally {
+            active = null;
+        }
+    }
+
+    /**
+     * Segments still being appended to when a previous process stopped are sealed as is; replay
+     * reads them up to their last intact record.
+     */
+    private void sealAbandonedSegments() throws IOException {
+        // The segment being rewritten is only replaced once its rewrite is complete.
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(settings.directory(),
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + REWRITE_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(settings.directory(),
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + ACTIVE_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                Files.move(file, file.resolveSibling(
+                        name.substring(0, name.length() - ACTIVE_SUFFIX.length())),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    private void recordFailedReplay(Path segment) {
+        Integer failures = failedReplays.get(segment);
+        failures = failures == null ? 1 : failures + 1;
+
+        if (failures < settings.maxReplayAttempts()) {
+            failedReplays.put(segment, failures);
+            return;
+        }
+
+        failedReplays.remove(segment);
+
+        try {
+            Path failed = setAside(segment);
+            LOGGER.error("Gave up replaying spooled notifications after {} attempts; moved to {}",
+                    failures, failed);
+        } catch (IOException e) {
+            LOGGER.error("Unable to set aside spooled segment " + segment, e);
+        }
+    }
+
+    /**
+     * Renames the segment with a {@code .failed} extension, adding a counter if a set aside
+     * segment of that name already exists, rather than replacing it.
+     */
+    private static Path setAside(Path segment) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Path failed = segment.resolveSibling(segment.getFileName() +
+                    (attempt == 0 ? "" : "." + attempt) + FAILED_SUFFIX);
+
+            try {
+                // Not an atomic move, which would replace an existing file; a rename within the
+                // directory is atomic regardless.
+                return Files.move(segment, failed);
+            } catch (FileAlreadyExistsException e) {
+                // Try the next name.
+            }
+        }
+    }
+
+    private List<Path> sealedSegments() {
+        List<Path> segments = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(settings.directory(),
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to list spooled segments in " +
+                    settings.directory(), e);
+        }
+
+        // Zero padded segment numbers sort in the order they were written.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return The highest number of any segment in the directory, whether sealed, active, or set
+     * aside, or -1 if there are none.
+     */
+    private long lastSegmentNumber() throws IOException {
+        long last = -1;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(settings.directory(),
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int end = name.indexOf(SEGMENT_SUFFIX, SEGMENT_PREFIX.length());
+
+                try {
+                    last = Math.max(last, Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), end)));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring unexpected file in spool directory: {}", file);
+                }
+            }
+        }
+
+        return last;
+    }
+
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final CRC32 crc = new CRC32();
+        int records;
+
+        Segment(Path path, long size) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            // The mapping stays valid after the channel is closed.
+            channel.close();
+        }
+
+        boolean hasRoomFor(int payloadLength) {
+            // Leave room for a zeroed header marking the end of the segment.
+            return buffer.remaining() >= payloadLength + 2 * RECORD_HEADER_BYTES;
+        }
+
+        void append(byte[] payload) {
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+
+            int start = buffer.position();
+            // Write the payload before the length, so a partially written record reads as the
+            // end of the segment or fails its checksum.
+            buffer.position(start + RECORD_HEADER_BYTES);
+            buffer.put(payload);
+            buffer.putInt(start + 4, (int) crc.getValue());
+            buffer.putInt(start, payload.length);
+
+            records++;
+        }
+
+        int records() {
+            return records;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void discard() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete empty spool segment " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Immutable settings for a {@link NotificationSpool}. Start from {@link #inDirectory(Path)}.
+     */
+    public static final class Settings {
+        private final Path directory;
+        private final long segmentSizeBytes;
+        private final long replayIntervalMillis;
+        private final int replayBatchSize;
+        private final int maxReplayAttempts;
+
+        private Settings(Path directory, long segmentSizeBytes, long replayIntervalMillis,
+                int replayBatchSize, int maxReplayAttempts) {
+            if (directory == null) {
+                throw new NullPointerException("directory");
+            }
+            if (segmentSizeBytes < 1 || replayIntervalMillis < 1 || replayBatchSize < 1 ||
+                    maxReplayAttempts < 1) {
+                throw new IllegalArgumentException("segmentSizeBytes, replayIntervalMillis, " +
+                        "replayBatchSize, and maxReplayAttempts must all be at least 1 but were: " +
+                        segmentSizeBytes + ", " + replayIntervalMillis + ", " + replayBatchSize +
+                        ", " + maxReplayAttempts);
+            }
+
+            this.directory = directory;
+            this.segmentSizeBytes = segmentSizeBytes;
+            this.replayIntervalMillis = replayIntervalMillis;
+            this.replayBatchSize = replayBatchSize;
+            this.maxReplayAttempts = maxReplayAttempts;
+        }
+
+        /**
+         * Spools to 16MiB segments in the given directory, replaying every 5 seconds in batches
+         * of 100, and giving up on a segment after 100 failed replays.
+         */
+        public static Settings inDirectory(Path directory) {
+            return new Settings(directory, 16 * 1024 * 1024, 5000, 100, 100);
+        }
+
+        public Settings withSegmentSizeBytes(long segmentSizeBytes) {
+            return new Settings(directory, segmentSizeBytes, replayIntervalMillis,
+                    replayBatchSize, maxReplayAttempts);
+        }
+
+        public Settings withReplayIntervalMillis(long replayIntervalMillis) {
+            return new Settings(directory, segmentSizeBytes, replayIntervalMillis,
+                    replayBatchSize, maxReplayAttempts);
+        }
+
+        public Settings withReplayBatchSize(int replayBatchSize) {
+            return new Settings(directory, segmentSizeBytes, replayIntervalMillis,
+                    replayBatchSize, maxReplayAttempts);
+        }
+
+        public Settings withMaxReplayAttempts(int maxReplayAttempts) {
+            return new Settings(directory, segmentSizeBytes, replayIntervalMillis,
+                    replayBatchSize, maxReplayAttempts);
+        }
+
+        public Path directory() {
+            return directory;
+        }
+
+        public long segmentSizeBytes() {
+            return segmentSizeBytes;
+        }
+
+        public long replayIntervalMillis() {
+            return replayIntervalMillis;
+        }
+
+        public int replayBatchSize() {
+            return replayBatchSize;
+        }
+
+        public int maxReplayAttempts() {
+            return maxReplayAttempts;
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "directory=" + directory +
+                    ", segmentSizeBytes=" + segmentSizeBytes +
+                    ", replayIntervalMillis=" + replayIntervalMillis +
+                    ", replayBatchSize=" + replayBatchSize +
+                    ", maxReplayAttempts=" + maxReplayAttempts +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.util.Path;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dotted path strings, as {@link Path#toString()} makes them, cached in a trie of their segments.
+ *
+ * <p>Notifications of the same entity name the same paths over and over, and each is found by
+ * walking one {@link Segment} per path segment instead of building the string again. The
+ * strings themselves are shared, so notifications built from them hold one copy of each.
+ *
+ * <p>Array indexes make for many distinct paths, so the trie stops growing after {@link
+ * #maxSegments} segments. Paths beyond that are still found the same way, but their segments
+ * are made as they are walked and their strings built only if asked for. Thread-safe.
+ */
+class PathStrings {
+    private final Segment root;
+    private final int maxSegments;
+    private final AtomicInteger segments = new AtomicInteger();
+
+    /** Strings of the array indexes most arrays stay within. */
+    private static final String[] INDEXES = new String[1024];
+
+    static {
+        for (int i = 0; i < INDEXES.length; i++) {
+            INDEXES[i] = Integer.toString(i);
+        }
+    }
+
+    PathStrings(int maxSegments) {
+        this.maxSegments = maxSegments;
+        this.root = new Segment(this, null, "", "");
+    }
+
+    /**
+     * The empty path, from which all others are found.
+     */
+    Segment root() {
+        return root;
+    }
+
+    Segment of(Path path) {
+        Segment segment = root;
+        for (int i = 0; i < path.numSegments(); i++) {
+            segment = segment.child(path.head(i));
+        }
+        return segment;
+    }
+
+    /**
+     * @return The number of segments cached.
+     */
+    int size() {
+        return segments.get();
+    }
+
+    static final class Segment {
+        private final @Nullable PathStrings cache;
+        private final @Nullable Segment parent;
+        private final String name;
+        private final @Nullable ConcurrentMap<String, Segment> children;
+        private @Nullable String path;
+
+        /**
+         * @param cache The cache to add children to, or null if this segment is not cached
+         * either.
+         */
+        private Segment(@Nullable PathStrings cache, @Nullable Segment parent, String name,
+                @Nullable String path) {
+            this.cache = cache;
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+            this.children = cache == null ? null : new ConcurrentHashMap<String, Segment>(4);
+        }
+
+        Segment child(String name) {
+            if (children == null) {
+                return new Segment(null, this, name, null);
+            }
+
+            Segment child = children.get(name);
+            if (child != null) {
+                return child;
+            }
+
+            if (cache.segments.incrementAndGet() > cache.maxSegments) {
+                cache.segments.decrementAndGet();
+                return new Segment(null, this, name, null);
+            }
+
+            child = new Segment(cache, this, name, join(path(), name));
+            Segment raced = children.putIfAbsent(name, child);
+
+            if (raced != null) {
+                cache.segments.decrementAndGet();
+                return raced;
+            }
+
+            return child;
+        }
+
+        Segment element(int index) {
+            return child(index < INDEXES.length ? INDEXES[index] : Integer.toString(index));
+        }
+
+        String path() {
+            if (path == null) {
+                // Only segments which are not cached get here; they are not shared by threads.
+                path = join(parent.path(), name);
+            }
+            return path;
+        }
+
+        private static String join(String prefix, String name) {
+            return prefix.isEmpty() ? name : prefix + "." + name;
+        }
+    }
+}
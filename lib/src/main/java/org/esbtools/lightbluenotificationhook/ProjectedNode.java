@@ -0,0 +1,264 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.eval.Projector;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only view of a document, or part of one, as a {@link Projector} would project it.
+ *
+ * <p>Projecting copies every included node into a new document. A view instead reads the
+ * original nodes in place, following a {@link WatchPathTrie} of the projection down alongside
+ * them and skipping what the projector would leave out: excluded fields, values neither included
+ * nor beneath an included field, and objects and arrays left with nothing in them. Array
+ * elements left out shift those after them down, as they do in a projected array.
+ *
+ * <p>Views are cheap to make and are made as they are walked. Only arrays remember anything,
+ * the indexes of the elements they keep, once asked. Views are not thread-safe, but the
+ * documents and trie they read are not changed.
+ */
+final class ProjectedNode {
+    private final JsonNode value;
+    private final @Nullable WatchPathTrie.Node node;
+    private @Nullable int[] elements;
+
+    private static final int[] NO_ELEMENTS = new int[0];
+
+    private ProjectedNode(JsonNode value, @Nullable WatchPathTrie.Node node) {
+        this.value = value;
+        this.node = node;
+    }
+
+    /**
+     * @param trie The compiled projection.
+     * @param root The root of the document to project. The projected root is an object even if
+     * the projection leaves nothing in it.
+     */
+    static ProjectedNode root(WatchPathTrie trie, JsonNode root) {
+        return new ProjectedNode(root, trie.root());
+    }
+
+    /**
+     * @return A view of a node which was already projected, or otherwise needs no filtering.
+     */
+    static ProjectedNode of(JsonNode value) {
+        return new ProjectedNode(value, null);
+    }
+
+    /**
+     * The original node. For objects and arrays, this includes what the projection leaves out.
+     */
+    JsonNode value() {
+        return value;
+    }
+
+    boolean isObject() {
+        return value.isObject();
+    }
+
+    boolean isArray() {
+        return value.isArray();
+    }
+
+    boolean isContainer() {
+        return value.isContainerNode();
+    }
+
+    /**
+     * @return The projected field, or null if the projection leaves it out or there is none.
+     */
+    @Nullable
+    ProjectedNode get(String name) {
+        JsonNode field = value.isObject() ? value.get(name) : null;
+
+        if (field == null) {
+            return null;
+        }
+
+        WatchPathTrie.Node child = childOf(name);
+        return isProjected(child, field) ? new ProjectedNode(field, child) : null;
+    }
+
+    /**
+     * @return The projected fields of an object, in document order.
+     */
+    Iterator<Map.Entry<String, ProjectedNode>> fields() {
+        return new FieldIterator(value.fields());
+    }
+
+    /**
+     * @return The number of projected elements of an array.
+     */
+    int size() {
+        return elements().length;
+    }
+
+    /**
+     * @param index An index into the projected array.
+     */
+    ProjectedNode element(int index) {
+        return new ProjectedNode(value.get(elements()[index]), childOf(Path.ANY));
+    }
+
+    /**
+     * @return A copy of the projected node, as the projector would have made it.
+     */
+    JsonNode toJsonNode(JsonNodeFactory jsonNodeFactory) {
+        if (isObject()) {
+            ObjectNode copy = jsonNodeFactory.objectNode();
+            Iterator<Map.Entry<String, ProjectedNode>> fields = fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, ProjectedNode> field = fields.next();
+                copy.set(field.getKey(), field.getValue().toJsonNode(jsonNodeFactory));
+            }
+            return copy;
+        }
+
+        if (isArray()) {
+            ArrayNode copy = jsonNodeFactory.arrayNode();
+            for (int i = 0; i < size(); i++) {
+                copy.add(element(i).toJsonNode(jsonNodeFactory));
+            }
+            return copy;
+        }
+
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return toJsonNode(JsonNodeFactory.instance).toString();
+    }
+
+    @Nullable
+    private WatchPathTrie.Node childOf(String name) {
+        return node == null ? null : node.child(name);
+    }
+
+    private int[] elements() {
+        if (elements != null) {
+            return elements;
+        }
+
+        int size = value.size();
+
+        if (node == null || size == 0) {
+            elements = size == 0 ? NO_ELEMENTS : allIndexes(size);
+            return elements;
+        }
+
+        WatchPathTrie.Node element = node.child(Path.ANY);
+        int[] projected = new int[size];
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (isProjected(element, value.get(i))) {
+                projected[count++] = i;
+            }
+        }
+
+        elements = count == size ? projected : Arrays.copyOf(projected, count);
+        return elements;
+    }
+
+    private static int[] allIndexes(int size) {
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+
+    /**
+     * Whether the projector would keep the value at the node, following what {@link
+     * Projector#project} does with each field it comes to.
+     */
+    private static boolean isProjected(@Nullable WatchPathTrie.Node node, JsonNode value) {
+        if (node == null) {
+            return true;
+        }
+
+        if (node.isExcluded()) {
+            return false;
+        }
+
+        if (value.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (isProjected(node.child(field.getKey()), field.getValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (value.isArray()) {
+            // An included array is kept if empty, but not if all of its elements are left out.
+            if (value.size() == 0) {
+                return node.isWatched();
+            }
+
+            WatchPathTrie.Node element = node.child(Path.ANY);
+            for (JsonNode elementValue : value) {
+                if (isProjected(element, elementValue)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return node.isWatched();
+    }
+
+    private final class FieldIterator implements Iterator<Map.Entry<String, ProjectedNode>> {
+        private final Iterator<Map.Entry<String, JsonNode>> fields;
+        private @Nullable Map.Entry<String, ProjectedNode> next;
+
+        FieldIterator(Iterator<Map.Entry<String, JsonNode>> fields) {
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                WatchPathTrie.Node child = childOf(field.getKey());
+
+                if (isProjected(child, field.getValue())) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(field.getKey(),
+                            new ProjectedNode(field.getValue(), child));
+                }
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, ProjectedNode> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, ProjectedNode> field = next;
+            next = null;
+            return field;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.util.DocComparator;
+import com.redhat.lightblue.util.JsonCompare;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ValueNode;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compares {@link ProjectedNode projected views} of documents exactly as {@link JsonCompare}
+ * compares the documents a projector would make of them, including array identities.
+ *
+ * <p>Like {@code JsonCompare}, it holds no state across comparisons once constructed, so may be
+ * shared by threads.
+ */
+class ProjectedNodeComparator
+        extends DocComparator<ProjectedNode, ValueNode, ProjectedNode, ProjectedNode> {
+
+    /**
+     * @param identities Comparator whose array identities to use, typically that of the entity's
+     * metadata.
+     */
+    ProjectedNodeComparator(JsonCompare identities) {
+        for (Map.Entry<Path, ArrayIdentityFields> identity :
+                identities.getArrayIdentities().entrySet()) {
+            addArrayIdentity(identity.getKey(), identity.getValue().getFields());
+        }
+    }
+
+    @Override
+    protected boolean isValue(ProjectedNode value) {
+        return value != null && value.value() instanceof ValueNode;
+    }
+
+    @Override
+    protected boolean isArray(ProjectedNode value) {
+        return value != null && value.isArray();
+    }
+
+    @Override
+    protected boolean isObject(ProjectedNode value) {
+        return value != null && value.isObject();
+    }
+
+    @Override
+    protected boolean isNull(ProjectedNode value) {
+        return value == null || value.value() instanceof NullNode;
+    }
+
+    @Override
+    protected ValueNode asValue(ProjectedNode value) {
+        return value == null ? null : (ValueNode) value.value();
+    }
+
+    @Override
+    protected ProjectedNode asArray(ProjectedNode value) {
+        return value;
+    }
+
+    @Override
+    protected ProjectedNode asObject(ProjectedNode value) {
+        return value;
+    }
+
+    @Override
+    protected boolean equals(ValueNode value1, ValueNode value2) {
+        if (value1.isNumber() && value2.isNumber()) {
+            return value1.asText().equals(value2.asText());
+        }
+        return value1.equals(value2);
+    }
+
+    @Override
+    protected Iterator<Map.Entry<String, ProjectedNode>> getFields(ProjectedNode node) {
+        return node.fields();
+    }
+
+    @Override
+    protected boolean hasField(ProjectedNode value, String field) {
+        return value.get(field) != null;
+    }
+
+    @Override
+    protected ProjectedNode getField(ProjectedNode value, String field) {
+        return value.get(field);
+    }
+
+    @Override
+    protected IdentityExtractor getArrayIdentityExtractorImpl(ArrayIdentityFields fields) {
+        final Path[] identityFields = fields.getFields();
+
+        return new IdentityExtractor<ProjectedNode>() {
+            @Override
+            public Object getIdentity(ProjectedNode element) {
+                ValueNode[] values = new ValueNode[identityFields.length];
+                for (int i = 0; i < identityFields.length; i++) {
+                    ProjectedNode value = get(element, identityFields[i]);
+                    values[i] = isValue(value) ? asValue(value) : null;
+                }
+                return new Identity(values);
+            }
+        };
+    }
+
+    @Override
+    protected ProjectedNode getElement(ProjectedNode value, int index) {
+        return value.element(index);
+    }
+
+    @Override
+    protected int size(ProjectedNode value) {
+        return value.size();
+    }
+
+    @Nullable
+    private static ProjectedNode get(ProjectedNode node, Path path) {
+        for (int i = 0; i < path.numSegments() && node != null; i++) {
+            if (path.isIndex(i)) {
+                int index = path.getIndex(i);
+                node = node.isArray() && index < node.size() ? node.element(index) : null;
+            } else {
+                node = node.get(path.head(i));
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Same as {@link DocComparator.DefaultIdentity}: missing identity fields, or ones which are
+     * not values, are never equal.
+     */
+    private final class Identity {
+        private final ValueNode[] values;
+        private final int hashCode;
+
+        Identity(ValueNode[] values) {
+            int hashCode = 0;
+            for (ValueNode value : values) {
+                if (value != null) {
+                    hashCode += value.hashCode();
+                }
+            }
+
+            this.values = values;
+            this.hashCode = hashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProjectedNodeComparator.Identity)) {
+                return false;
+            }
+
+            ValueNode[] other = ((Identity) o).values;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null || other[i] == null ||
+                        !ProjectedNodeComparator.this.equals(values[i], other[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.hooks.HookDoc;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.SimpleField;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import java.util.List;
+
+/**
+ * Made-up documents for {@link NotificationHook#warmUp(com.redhat.lightblue.metadata.Metadata,
+ * int) warming up} the hook before real documents arrive.
+ */
+final class WarmUpDocs {
+    static final String WHO = "notification-hook-warm-up";
+
+    private WarmUpDocs() {}
+
+    /**
+     * An update of every field outside of arrays except identities, so whatever is watched
+     * changes, and the diff and included fields are not empty. Values are text regardless of
+     * field type; they are only ever projected and compared.
+     */
+    static HookDoc update(EntityMetadata metadata, List<Path> identityPaths,
+            JsonNodeFactory jsonNodeFactory) {
+        JsonDoc preDoc = new JsonDoc(jsonNodeFactory.objectNode());
+        JsonDoc postDoc = new JsonDoc(jsonNodeFactory.objectNode());
+        FieldCursor cursor = metadata.getFieldCursor();
+
+        while (cursor.next()) {
+            Path path = cursor.getCurrentPath();
+
+            if (!(cursor.getCurrentNode() instanceof SimpleField) || path.nAnys() > 0) {
+                continue;
+            }
+
+            if (identityPaths.contains(path)) {
+                preDoc.modify(path, jsonNodeFactory.textNode(WHO), true);
+                postDoc.modify(path, jsonNodeFactory.textNode(WHO), true);
+            } else {
+                preDoc.modify(path, jsonNodeFactory.textNode("before"), true);
+                postDoc.modify(path, jsonNodeFactory.textNode("after"), true);
+            }
+        }
+
+        return new HookDoc(metadata, preDoc, postDoc, CRUDOperation.UPDATE, WHO);
+    }
+}
@@ -0,0 +1,214 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.eval.Projector;
+import com.redhat.lightblue.eval.QueryEvaluationContext;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.ProjectionList;
+import com.redhat.lightblue.util.MutablePath;
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A watch projection made of field projections, compiled into a trie of the field paths it can
+ * tell apart, so that whether a field is watched is found by walking one node per segment
+ * instead of evaluating the projection.
+ *
+ * <p>Each node has a child for every field name the projection's patterns name at that depth,
+ * and one more for any other field name or array index. Where no pattern reaches below a node,
+ * every field beneath it is watched or none is; such nodes have no children and say which, so
+ * whole subtrees can be compared or skipped at once.
+ *
+ * <p>Answers are those of the {@link Projector} for the projection, which is used to compile each
+ * node, so that the trie can stand in for it when projecting too (see {@link ProjectedNode}).
+ * Any projection can be compiled this way, not only watch projections. The trie is immutable once
+ * built.
+ */
+class WatchPathTrie {
+    private final Node root;
+
+    private WatchPathTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @return The trie, or null if the projection is not made only of field projections with
+     * absolute paths and no array indexes.
+     */
+    @Nullable
+    static WatchPathTrie compile(Projection projection, EntityMetadata metadata) {
+        List<Path> patterns = new ArrayList<>();
+
+        if (!collectPatterns(projection, patterns)) {
+            return null;
+        }
+
+        // Field projectors do not look at the document, only at paths.
+        Inclusions inclusions = new Inclusions(Projector.getInstance(projection, metadata));
+
+        return new WatchPathTrie(compile(inclusions, patterns, Path.EMPTY));
+    }
+
+    Node root() {
+        return root;
+    }
+
+    private static Node compile(Inclusions inclusions, List<Path> patterns, Path path) {
+        Projection.Inclusion inclusion = path.isEmpty()
+                ? Projection.Inclusion.undecided
+                : inclusions.of(path);
+        int depth = path.numSegments();
+
+        // Field names patterns use at this depth, among patterns which reach below this path.
+        Set<String> names = new LinkedHashSet<>();
+        boolean reachedBelow = false;
+
+        for (Path pattern : patterns) {
+            if (pattern.numSegments() > depth && path.matches(pattern.prefix(depth))) {
+                reachedBelow = true;
+                String name = pattern.head(depth);
+                if (!Path.ANY.equals(name)) {
+                    names.add(name);
+                }
+            }
+        }
+
+        if (!reachedBelow) {
+            // Every field beneath is decided by patterns no longer than this path, and so the
+            // same way; an array index stands in for any of them.
+            Node below = new Node(inclusions.of(new Path(path, Path.ANYPATH)), true,
+                    Collections.<String, Node>emptyMap(), null);
+            return new Node(inclusion, true, Collections.<String, Node>emptyMap(), below);
+        }
+
+        Map<String, Node> children = new HashMap<>();
+        for (String name : names) {
+            children.put(name, compile(inclusions, patterns, new Path(path, new Path(name))));
+        }
+
+        // An array index only matches "*" in a pattern, like any field name not in the
+        // children, so it stands in for all of those.
+        Node other = compile(inclusions, patterns, new Path(path, Path.ANYPATH));
+
+        return new Node(inclusion, false, children, other);
+    }
+
+    private static boolean collectPatterns(Projection projection, List<Path> patterns) {
+        if (projection instanceof FieldProjection) {
+            Path field = ((FieldProjection) projection).getField();
+            MutablePath pattern = new MutablePath();
+
+            for (int i = 0; i < field.numSegments(); i++) {
+                String segment = field.head(i);
+
+                // A pattern with an index would make one array element different from the others.
+                if (Path.PARENT.equals(segment) || Path.THIS.equals(segment) || field.isIndex(i)) {
+                    return false;
+                }
+
+                pattern.push(segment);
+            }
+
+            patterns.add(pattern.immutableCopy());
+            return true;
+        }
+
+        if (projection instanceof ProjectionList) {
+            for (Projection item : ((ProjectionList) projection).getItems()) {
+                if (!collectPatterns(item, patterns)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Asks a projector how it would project paths, the same way {@link Projector#project} does
+     * while walking a document.
+     */
+    private static final class Inclusions {
+        private final Projector projector;
+        private final QueryEvaluationContext context =
+                new QueryEvaluationContext(JsonNodeFactory.instance.objectNode());
+
+        Inclusions(Projector projector) {
+            this.projector = projector;
+        }
+
+        Projection.Inclusion of(Path path) {
+            return projector.project(path, context);
+        }
+    }
+
+    static final class Node {
+        private final Projection.Inclusion inclusion;
+        private final @Nullable Boolean allBelowWatched;
+        private final Map<String, Node> children;
+        private final @Nullable Node other;
+
+        /**
+         * @param uniform Whether every field beneath is projected the same way; that of {@code
+         * other}, or of this node if there is no other.
+         */
+        Node(Projection.Inclusion inclusion, boolean uniform, Map<String, Node> children,
+                @Nullable Node other) {
+            this.inclusion = inclusion;
+            this.children = children;
+            this.other = other;
+            this.allBelowWatched = uniform ? (other != null ? other : this).isWatched() : null;
+        }
+
+        /**
+         * Whether the field at this node is watched, or more generally, included by the
+         * projection.
+         */
+        boolean isWatched() {
+            return inclusion == Projection.Inclusion.explicit_inclusion ||
+                    inclusion == Projection.Inclusion.implicit_inclusion;
+        }
+
+        /**
+         * Whether the field at this node is excluded by the projection, as opposed to included or
+         * left undecided, in which case its contents are projected field by field.
+         */
+        boolean isExcluded() {
+            return inclusion == Projection.Inclusion.explicit_exclusion ||
+                    inclusion == Projection.Inclusion.implicit_exclusion;
+        }
+
+        /**
+         * @return true if every field beneath this node is watched, false if none are, or null if
+         * it depends on the field, in which case look at {@link #child(String)}.
+         */
+        @Nullable
+        Boolean allBelowWatched() {
+            return allBelowWatched;
+        }
+
+        /**
+         * @param name A field name, or {@link Path#ANY} for an array element.
+         */
+        Node child(String name) {
+            Node child = children.get(name);
+            if (child != null) {
+                return child;
+            }
+            // Fields beneath a uniform subtree are projected like the subtree.
+            return other != null ? other : this;
+        }
+    }
+}
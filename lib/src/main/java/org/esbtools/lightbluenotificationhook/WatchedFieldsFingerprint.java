@@ -0,0 +1,148 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Hashes the watched fields of a document into a 64 bit fingerprint which does not depend on
+ * the order of array elements, so that documents whose watched fields differ only by
+ * reordering can be recognized without projecting and diffing them.
+ *
+ * <p>The hash is structural, like a Merkle tree's: each watched value hashes its type and
+ * contents, each object sums the hashes of its fields mixed with their names, and each array
+ * sums the hashes of its elements. Sums make field and element order irrelevant while keeping
+ * duplicates apart. Fields are found by walking the same {@link WatchPathTrie} as {@link
+ * WatchedFieldsPrecheck}, and unwatched fields contribute nothing.
+ *
+ * <p>This is only useful when array ordering is not significant: then a difference made only of
+ * moved elements does not produce a notification, and equal fingerprints mean there is nothing
+ * else. Distinct documents share a fingerprint with negligible (about 2^-64) probability.
+ */
+class WatchedFieldsFingerprint {
+    private final @Nullable WatchPathTrie trie;
+
+    private static final long OBJECT = 0x9e3779b97f4a7c15L;
+    private static final long ARRAY = 0xc2b2ae3d27d4eb4fL;
+    private static final long FIELD = 0x165667b19e3779f9L;
+
+    WatchedFieldsFingerprint(@Nullable WatchPathTrie trie) {
+        this.trie = trie;
+    }
+
+    /**
+     * @return false if the watched fields of the two documents are the same up to the order of
+     * array elements, true if they are not or if this could not be determined cheaply.
+     */
+    boolean mayDifferIgnoringArrayOrder(JsonNode preRoot, JsonNode postRoot) {
+        if (trie == null) {
+            return true;
+        }
+
+        return of(trie.root(), preRoot) != of(trie.root(), postRoot);
+    }
+
+    private static long of(WatchPathTrie.Node node, JsonNode value) {
+        Boolean allBelowWatched = node.allBelowWatched();
+
+        if (Boolean.TRUE.equals(allBelowWatched) && node.isWatched()) {
+            return hash(value);
+        }
+
+        long contents = 0;
+
+        if (value.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                long fieldHash = allBelowWatched != null
+                        ? (allBelowWatched ? hash(field.getValue()) : 0)
+                        : of(node.child(field.getKey()), field.getValue());
+
+                if (fieldHash != 0) {
+                    contents += field(field.getKey(), fieldHash);
+                }
+            }
+        } else if (value.isArray()) {
+            for (JsonNode element : value) {
+                long elementHash = allBelowWatched != null
+                        ? (allBelowWatched ? hash(element) : 0)
+                        : of(node.child(Path.ANY), element);
+
+                if (elementHash != 0) {
+                    contents += mix(elementHash);
+                }
+            }
+        } else if (node.isWatched()) {
+            return hash(value);
+        }
+
+        // A watched field is there or not regardless of its contents, as with the precheck.
+        return node.isWatched() ? mix(typeOf(value) + contents) : contents;
+    }
+
+    /**
+     * Hashes a value every field of which is watched.
+     */
+    private static long hash(JsonNode value) {
+        long contents = 0;
+
+        if (value.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                contents += field(field.getKey(), hash(field.getValue()));
+            }
+        } else if (value.isArray()) {
+            for (JsonNode element : value) {
+                contents += mix(hash(element));
+            }
+        } else if (!value.isNull()) {
+            contents = hash(value.asText());
+        }
+
+        return mix(typeOf(value) + contents);
+    }
+
+    private static long typeOf(JsonNode value) {
+        if (value.isObject()) {
+            return OBJECT;
+        }
+        if (value.isArray()) {
+            return ARRAY;
+        }
+        // Numbers of different types are not equal, even if their text is.
+        long type = value.getNodeType().ordinal();
+        if (value.isNumber()) {
+            type = type * 31 + value.numberType().ordinal() + 1;
+        }
+        return mix(type);
+    }
+
+    private static long field(String name, long valueHash) {
+        return mix(hash(name) * FIELD ^ valueHash);
+    }
+
+    /** 64 bit FNV-1a over the string's chars. */
+    private static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** The SplitMix64 finalizer. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,128 @@
+package org.esbtools.lightbluenotificationhook;
+
+import com.redhat.lightblue.util.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Walks the pre- and post- documents side by side, looking only at fields the watch projection
+ * includes, to tell cheaply whether projecting and diffing them could find any difference.
+ *
+ * <p>Nothing is copied: documents are read in place, following a {@link WatchPathTrie} of the
+ * watch projection down alongside them. Subtrees the trie says are entirely unwatched are
+ * skipped, and those entirely watched are compared with a single {@code equals}. The answer is
+ * conservative; {@link #mayDiffer(JsonNode, JsonNode)} only returns false if every watched field
+ * is the same in both documents, in which case the projected documents are equal too.
+ *
+ * <p>Only projections made of field projections are understood. Array projections include
+ * elements based on their contents or index, so for those every pair of documents "may differ"
+ * and the caller should always do the full comparison.
+ */
+class WatchedFieldsPrecheck {
+    private final @Nullable WatchPathTrie trie;
+
+    /**
+     * @param trie The compiled watch projection, or null if it could not be compiled.
+     */
+    WatchedFieldsPrecheck(@Nullable WatchPathTrie trie) {
+        this.trie = trie;
+    }
+
+    /**
+     * @return false if no watched field differs between the two documents, true if one does or
+     * if this could not be determined cheaply.
+     */
+    boolean mayDiffer(JsonNode preRoot, JsonNode postRoot) {
+        if (trie == null) {
+            return true;
+        }
+
+        return containerMayDiffer(trie.root(), preRoot, postRoot);
+    }
+
+    private boolean containerMayDiffer(WatchPathTrie.Node node, JsonNode pre, JsonNode post) {
+        Boolean allBelowWatched = node.allBelowWatched();
+
+        if (allBelowWatched != null) {
+            return allBelowWatched && !pre.equals(post);
+        }
+
+        if (pre.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> preFields = pre.fields();
+            Set<String> seen = new HashSet<>();
+
+            while (preFields.hasNext()) {
+                Map.Entry<String, JsonNode> preField = preFields.next();
+                String name = preField.getKey();
+                seen.add(name);
+
+                if (nodeMayDiffer(node.child(name), preField.getValue(), post.path(name))) {
+                    return true;
+                }
+            }
+
+            Iterator<Map.Entry<String, JsonNode>> postFields = post.fields();
+
+            while (postFields.hasNext()) {
+                Map.Entry<String, JsonNode> postField = postFields.next();
+                String name = postField.getKey();
+
+                if (!seen.contains(name) && anyWatched(node.child(name), postField.getValue())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // Array elements are all matched by the same projection paths.
+        WatchPathTrie.Node element = node.child(Path.ANY);
+        int size = Math.max(pre.size(), post.size());
+
+        for (int i = 0; i < size; i++) {
+            if (nodeMayDiffer(element, pre.path(i), post.path(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean nodeMayDiffer(WatchPathTrie.Node node, JsonNode pre, JsonNode post) {
+        if (pre.isContainerNode() && post.isContainerNode() &&
+                pre.getNodeType() == post.getNodeType()) {
+            return containerMayDiffer(node, pre, post);
+        }
+
+        if (pre.equals(post)) {
+            return false;
+        }
+
+        // A field was added, removed, or changed type or value. That only matters if it, or
+        // anything beneath it, is watched.
+        return anyWatched(node, pre) || anyWatched(node, post);
+    }
+
+    private boolean anyWatched(WatchPathTrie.Node node, JsonNode value) {
+        if (value.isMissingNode()) {
+            return false;
+        }
+
+        if (node.isWatched()) {
+            return true;
+        }
+
+        if (!value.isContainerNode()) {
+            return false;
+        }
+
+        return containerMayDiffer(node, value, MissingNode.getInstance());
+    }
+}
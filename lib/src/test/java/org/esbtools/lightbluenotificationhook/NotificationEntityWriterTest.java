@@ -0,0 +1,56 @@
+package org.esbtools.lightbluenotificationhook;
+
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+public class NotificationEntityWriterTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final NotificationEntityWriter writer =
+            new NotificationEntityWriter(JsonNodeFactory.withExactBigDecimals(true));
+
+    @Test
+    public void shouldWriteSameJsonAsObjectMapperForFullyPopulatedNotification() throws Exception {
+        NotificationEntity notification = new NotificationEntity();
+        notification.set_id("1");
+        notification.setEntityName("user");
+        notification.setEntityVersion("5.0.0");
+        notification.setStatus(NotificationEntity.Status.unprocessed);
+        notification.setOperation(NotificationEntity.Operation.update);
+        notification.setClientRequestPrincipal("me");
+        notification.setClientRequestDate(new Date(1466000000123L));
+        notification.setProcessingDate(new Date(0));
+        notification.setProcessedDate(new Date(-1));
+        notification.setEntityData(Arrays.asList(
+                new PathAndValue("_id", "123"),
+                new PathAndValue("personalInfo.company", "Réd \"Hat\""),
+                new PathAndValue("sites.0.notes", null)));
+        notification.setUpdatedPaths(Arrays.asList("personalInfo.company", null));
+        notification.setRemovedEntityData(Collections.singletonList(
+                new PathAndValue("sites.1.siteId", "2")));
+        notification.setRemovedPaths(Collections.singletonList("sites.1"));
+        notification.setTruncated(true);
+
+        assertWritesSameJsonAsObjectMapper(notification);
+    }
+
+    @Test
+    public void shouldWriteSameJsonAsObjectMapperForEmptyNotification() throws Exception {
+        assertWritesSameJsonAsObjectMapper(new NotificationEntity());
+    }
+
+    private void assertWritesSameJsonAsObjectMapper(NotificationEntity notification)
+            throws Exception {
+        String expected = objectMapper.writeValueAsString(objectMapper.valueToTree(notification));
+        String actual = objectMapper.writeValueAsString(writer.write(notification));
+
+        Assert.assertEquals(expected, actual);
+    }
+}
@@ -1,43 +1,75 @@
 package org.esbtools.lightbluenotificationhook;
 
+import org.esbtools.lightbluenotificationhook.NotificationEntity.PathAndValue;
+
 import com.redhat.lightblue.ClientIdentification;
+import com.redhat.lightblue.DataError;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.eval.Projector;
+import com.redhat.lightblue.eval.QueryEvaluationContext;
 import com.redhat.lightblue.hooks.HookDoc;
 import com.redhat.lightblue.mediator.Mediator;
 import com.redhat.lightblue.metadata.DataStore;
+import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Hook;
 import com.redhat.lightblue.metadata.HookConfiguration;
+import com.redhat.lightblue.metadata.Metadata;
+import com.redhat.lightblue.metadata.MetadataRole;
+import com.redhat.lightblue.metadata.MetadataStatus;
 import com.redhat.lightblue.metadata.PredefinedFields;
 import com.redhat.lightblue.metadata.TypeResolver;
+import com.redhat.lightblue.metadata.Version;
+import com.redhat.lightblue.metadata.VersionInfo;
 import com.redhat.lightblue.metadata.parser.DataStoreParser;
 import com.redhat.lightblue.metadata.parser.Extensions;
 import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
 import com.redhat.lightblue.metadata.parser.MetadataParser;
 import com.redhat.lightblue.metadata.types.DefaultTypes;
 import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonNodeCursor;
 import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.DBObject;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
 import com.google.common.truth.Truth;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NotificationHookTest extends AbstractJsonSchemaTest {
     public static class InsertCapturingMediator extends Mediator {
         public InsertionRequest capturedInsert;
+        public List<InsertionRequest> capturedInserts = new ArrayList<>();
         public Response response = new Response();
         
         public InsertCapturingMediator() {
@@ -46,10 +78,109 @@ public class NotificationHookTest extends AbstractJsonSchemaTest {
 
         public Response insert(InsertionRequest req) {
             this.capturedInsert = req;
+            this.capturedInserts.add(req);
             return response;
         }
     }
 
+    /** Holds up to a capacity of documents, failing those inserted past it. */
+    public static class InMemoryNotificationCollection implements DatastoreNotificationSink.Collection {
+        public final List<JsonNode> docs = new ArrayList<>();
+        private final int capacity;
+
+        public InMemoryNotificationCollection(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized Map<Integer, Error> insertUnordered(List<JsonNode> docs) {
+            Map<Integer, Error> failures = new HashMap<>();
+            for (int i = 0; i < docs.size(); i++) {
+                if (this.docs.size() < capacity) {
+                    this.docs.add(docs.get(i));
+                } else {
+                    failures.put(i, Error.get("insert", "mongo-crud:SaveError", "collection full"));
+                }
+            }
+            return failures;
+        }
+    }
+
+    /** Serves the given entities' metadata as their only, default versions. */
+    public static class InMemoryMetadata implements Metadata {
+        private final Map<String, EntityMetadata> entities = new LinkedHashMap<>();
+
+        public InMemoryMetadata(EntityMetadata... entities) {
+            for (EntityMetadata entity : entities) {
+                this.entities.put(entity.getName(), entity);
+            }
+        }
+
+        @Override
+        public EntityMetadata getEntityMetadata(String entityName, String version) {
+            return entities.get(entityName);
+        }
+
+        @Override
+        public EntityInfo getEntityInfo(String entityName) {
+            return entities.get(entityName).getEntityInfo();
+        }
+
+        @Override
+        public String[] getEntityNames(MetadataStatus... statuses) {
+            return entities.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public VersionInfo[] getEntityVersions(String entityName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response getDependencies(String entityName, String version) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response getAccess(String entityName, String version) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createNewMetadata(EntityMetadata md) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createNewSchema(EntityMetadata md) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void updateEntityInfo(EntityInfo ei) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setMetadataStatus(String entityName, String version,
+                MetadataStatus newStatus, String comment) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeEntity(String entityName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<MetadataRole, List<String>> getMappedRoles() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private InsertCapturingMediator insertCapturingMediator = new InsertCapturingMediator();
     private NotificationHook hook = new NotificationHook("testHook", insertCapturingMediator);
 
@@ -166,6 +297,101 @@ public class NotificationHookTest extends AbstractJsonSchemaTest {
         assertEntityDataValueEquals(ed,"sites.1.siteType","billing");
     }
 
+    @Test
+    public void shouldWriteCompactNotificationsWhichReadBackAsTheFullNotification() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+        JsonNode post = loadJsonNode("userdata.json");
+        JsonDoc.modify(post, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("blah"), true);
+        HookConfiguration cfg = new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"),
+                projection("[{'field':'login'},{'field':'sites.*.siteType'}]"),
+                false);
+        List<HookDoc> docs = Arrays.asList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(post), CRUDOperation.UPDATE, "me"));
+
+        hook.processHook(md, cfg, docs);
+        JsonNode full = insertCapturingMediator.capturedInsert.getEntityData();
+
+        hook.writeCompactNotifications();
+        hook.processHook(md, cfg, docs);
+        JsonNode compact = insertCapturingMediator.capturedInsert.getEntityData();
+
+        Assert.assertFalse(compact.has("entityData"));
+        Truth.assertThat(Iterables.transform(compact.get("pathDictionary"), toTextValue()))
+                .containsExactly("_id", "iduid", "login", "sites.*.siteType", "personalInfo.company")
+                .inOrder();
+        Assert.assertEquals("[1]", compact.get("compactEntityData").get(4).get("indexes").toString());
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        NotificationEntity readFull = objectMapper.treeToValue(full, NotificationEntity.class);
+        NotificationEntity readCompact = objectMapper.treeToValue(compact, NotificationEntity.class);
+        readCompact.setClientRequestDate(readFull.getClientRequestDate());
+
+        Assert.assertEquals(readFull, readCompact);
+        Assert.assertEquals("billing", readCompact.getEntityDataForField("sites.1.siteType"));
+    }
+
+    @Test
+    public void shouldDropValuesButKeepIdentitiesAndPathsOfNotificationsOverPayloadBudget() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+        JsonNode post = loadJsonNode("userdata.json");
+        JsonDoc.modify(post, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("blah"), true);
+        JsonDoc.modify(post, new Path("personalInfo.title"), JsonNodeFactory.instance.textNode("Manager"), true);
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                .withPayloadBudget(NotificationHookConfiguration.PayloadBudget.unlimited()
+                        .withMaxEntries(4));
+
+        hook.processHook(md, cfg, Arrays.asList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(post), CRUDOperation.UPDATE, "me")));
+
+        JsonNode notification = insertCapturingMediator.capturedInsert.getEntityData();
+        Assert.assertTrue(notification.get("truncated").asBoolean());
+        Truth.assertThat(Iterables.transform(notification.get("entityData"), new Function<JsonNode, String>() {
+            @Override
+            public String apply(JsonNode pathAndValue) {
+                return pathAndValue.get("path").asText();
+            }
+        })).containsExactly("_id", "iduid").inOrder();
+        Assert.assertEquals(0, notification.get("removedEntityData").size());
+        Truth.assertThat(Iterables.transform(notification.get("updatedPaths"), toTextValue()))
+                .containsExactly("personalInfo.company", "personalInfo.title");
+    }
+
+    @Test
+    public void shouldCollapsePathsToArraysOfNotificationsOverPayloadBudgetWhenConfigured() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+        JsonNode post = loadJsonNode("userdata.json");
+        JsonDoc.modify(post, new Path("sites.1"), null, true);
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                .withPayloadBudget(NotificationHookConfiguration.PayloadBudget.unlimited()
+                        .withMaxBytes(200)
+                        .withDegradation(NotificationHookConfiguration.PayloadBudget.Degradation.COLLAPSE_PATHS));
+
+        hook.processHook(md, cfg, Arrays.asList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(post), CRUDOperation.UPDATE, "me")));
+
+        JsonNode notification = insertCapturingMediator.capturedInsert.getEntityData();
+        Assert.assertTrue(notification.get("truncated").asBoolean());
+        Assert.assertEquals(2, notification.get("entityData").size());
+        Truth.assertThat(Iterables.transform(notification.get("removedPaths"), toTextValue()))
+                .containsExactly("sites");
+    }
+
+    @Test
+    public void shouldNotMarkNotificationsWithinPayloadBudgetAsTruncated() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                .withPayloadBudget(NotificationHookConfiguration.PayloadBudget.unlimited()
+                        .withMaxEntries(100));
+
+        hook.processHook(md, cfg, insertsOfUsers("1"));
+
+        Assert.assertFalse(insertCapturingMediator.capturedInsert.getEntityData().has("truncated"));
+    }
+
     @Test
     public void shouldNotCreateNotificationForFindOperations() throws Exception {
         EntityMetadata md = getMd("usermd.json");
@@ -222,6 +448,148 @@ public class NotificationHookTest extends AbstractJsonSchemaTest {
         Assert.assertNull(insertCapturingMediator.capturedInsert);
     }
 
+    @Test
+    public void shouldOnlyCreateNotificationWhenWatchedFieldWithinArrayElementChanges() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+
+        HookConfiguration cfg = new NotificationHookConfiguration(
+                projection("{'field':'sites.*.streetAddress.city'}"),
+                null,
+                false);
+
+        JsonNode unwatchedChange = loadJsonNode("userdata.json");
+        JsonDoc.modify(unwatchedChange, new Path("sites.1.notes"), JsonNodeFactory.instance.textNode("blah"), true);
+        JsonDoc.modify(unwatchedChange, new Path("sites.1.streetAddress.state"), null, true);
+
+        hook.processHook(md, cfg, Collections.singletonList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(unwatchedChange), CRUDOperation.UPDATE, "me")));
+
+        Assert.assertNull(insertCapturingMediator.capturedInsert);
+
+        JsonNode watchedRemoval = loadJsonNode("userdata.json");
+        JsonDoc.modify(watchedRemoval, new Path("sites.1.streetAddress.city"), null, true);
+
+        hook.processHook(md, cfg, Collections.singletonList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(watchedRemoval), CRUDOperation.UPDATE, "me")));
+
+        Assert.assertNotNull(insertCapturingMediator.capturedInsert);
+        JsonNode data = insertCapturingMediator.capturedInsert.getEntityData();
+        assertEntityDataValueEquals((ArrayNode) data.get("removedEntityData"), "sites.1.streetAddress.city", "Chapel Hill");
+    }
+
+    @Test
+    public void shouldOnlyCreateNotificationWhenWatchedArrayChangesOtherThanByReorderingIfOrderNotSignificant() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+
+        HookConfiguration cfg = new NotificationHookConfiguration(
+                projection("{'field':'sites.*.streetAddress.city'}"),
+                null,
+                false);
+
+        JsonNode reordered = loadJsonNode("userdata.json");
+        ArrayNode reorderedSites = (ArrayNode) reordered.get("sites");
+        reorderedSites.add(reorderedSites.remove(0));
+
+        hook.processHook(md, cfg, Collections.singletonList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(reordered), CRUDOperation.UPDATE, "me")));
+
+        Assert.assertNull(insertCapturingMediator.capturedInsert);
+
+        // Same cities in the array, but no longer at the same sites.
+        JsonNode swapped = loadJsonNode("userdata.json");
+        JsonDoc.modify(swapped, new Path("sites.0.streetAddress.city"), JsonNodeFactory.instance.textNode("Chapel Hill"), true);
+        JsonDoc.modify(swapped, new Path("sites.1.streetAddress.city"), JsonNodeFactory.instance.textNode("Denver"), true);
+
+        hook.processHook(md, cfg, Collections.singletonList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(swapped), CRUDOperation.UPDATE, "me")));
+
+        Assert.assertNotNull(insertCapturingMediator.capturedInsert);
+        JsonNode data = insertCapturingMediator.capturedInsert.getEntityData();
+        assertEntityDataValueEquals((ArrayNode) data.get("entityData"), "sites.0.streetAddress.city", "Chapel Hill");
+    }
+
+    @Test
+    public void shouldCompileWatchProjectionsIntoTriesWhichAgreeWithTheProjectorOnEveryField() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode data = loadJsonNode("userdata.json");
+        QueryEvaluationContext context = new QueryEvaluationContext(data);
+
+        for (Projection watchProjection : fieldProjections()) {
+            WatchPathTrie trie = WatchPathTrie.compile(watchProjection, md);
+            Projector projector = Projector.getInstance(watchProjection, md);
+            JsonNodeCursor cursor = new JsonNodeCursor(Path.EMPTY, data);
+
+            while (cursor.next()) {
+                Path field = cursor.getCurrentPath();
+                WatchPathTrie.Node node = trie.root();
+                Boolean allBelowWatched = null;
+
+                for (int i = 0; i < field.numSegments() && allBelowWatched == null; i++) {
+                    allBelowWatched = node.allBelowWatched();
+                    node = node.child(field.isIndex(i) ? Path.ANY : field.head(i));
+                }
+
+                boolean trieWatched = allBelowWatched != null ? allBelowWatched : node.isWatched();
+                Projection.Inclusion inclusion = projector.project(field, context);
+                boolean projectorWatched = inclusion == Projection.Inclusion.explicit_inclusion ||
+                        inclusion == Projection.Inclusion.implicit_inclusion;
+
+                Assert.assertEquals(watchProjection + " watches " + field, projectorWatched, trieWatched);
+            }
+        }
+    }
+
+    @Test
+    public void shouldShareCachedPathStringsUpToLimitAndBuildTheRest() throws Exception {
+        PathStrings paths = new PathStrings(3);
+
+        String cached = paths.of(new Path("sites.0.siteId")).path();
+        Assert.assertEquals("sites.0.siteId", cached);
+        Assert.assertSame(cached, paths.root().child("sites").element(0).child("siteId").path());
+        Assert.assertEquals(3, paths.size());
+
+        String uncached = paths.of(new Path("sites.1.siteId")).path();
+        Assert.assertEquals("sites.1.siteId", uncached);
+        Assert.assertNotSame(uncached, paths.of(new Path("sites.1.siteId")).path());
+        Assert.assertEquals(3, paths.size());
+    }
+
+    @Test
+    public void shouldNotCompileProjectionsWhichTreatArrayElementsDifferently() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+
+        Assert.assertNull(WatchPathTrie.compile(projection("{'field':'sites.1.siteType'}"), md));
+        Assert.assertNull(WatchPathTrie.compile(
+                projection("{'field':'sites','range':[0,1],'project':{'field':'siteType'}}"), md));
+    }
+
+    @Test
+    public void shouldViewDocumentsExactlyAsTheProjectorProjectsThem() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode data = loadJsonNode("userdata.json");
+
+        // Fields the projector drops or keeps depending on what is left in them.
+        JsonNode sparse = loadJsonNode("userdata.json");
+        JsonDoc.modify(sparse, new Path("sites.0.streetAddress"), JsonNodeFactory.instance.objectNode(), true);
+        JsonDoc.modify(sparse, new Path("sites.1.usages"), JsonNodeFactory.instance.arrayNode(), true);
+        JsonDoc.modify(sparse, new Path("sites.1.notes"), JsonNodeFactory.instance.nullNode(), true);
+        JsonDoc.modify(sparse, new Path("personalInfo.company"), JsonNodeFactory.instance.nullNode(), true);
+
+        for (Projection projection : fieldProjections()) {
+            WatchPathTrie trie = WatchPathTrie.compile(projection, md);
+            Projector projector = Projector.getInstance(projection, md);
+
+            for (JsonNode doc : Arrays.asList(data, sparse)) {
+                JsonNode projected = projector.project(new JsonDoc(doc), JsonNodeFactory.instance).getRoot();
+                JsonNode viewed = ProjectedNode.root(trie, doc).toJsonNode(JsonNodeFactory.instance);
+
+                Assert.assertEquals(projection.toString(), projected, viewed);
+            }
+        }
+    }
+
     @Test
     public void shouldNotCreateNotificationForInsertWhichDoesNotIncludeAnyWatchedFields() throws Exception {
         EntityMetadata md = getMd("usermd.json");
@@ -473,6 +841,43 @@ public class NotificationHookTest extends AbstractJsonSchemaTest {
                 "sites.0.streetAddress.city", "Denver");
     }
 
+    @Test
+    public void shouldLookUpNotificationFieldsByPathOnceDeserialized() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+        JsonNode post = loadJsonNode("userdata.json");
+        JsonDoc.modify(post, new Path("sites.0.streetAddress.city"),
+                JsonNodeFactory.instance.textNode("new city"), true);
+        JsonDoc.modify(post, new Path("sites.1"), null, true);
+
+        HookConfiguration cfg = new NotificationHookConfiguration(
+                projection("{'field':'sites','recursive':1}"),
+                null,
+                false);
+
+        hook.processHook(md, cfg, Collections.singletonList(
+                new HookDoc(md, new JsonDoc(pre), new JsonDoc(post), CRUDOperation.UPDATE, "me")));
+
+        NotificationEntity notification = new ObjectMapper().treeToValue(
+                insertCapturingMediator.capturedInsert.getEntityData(), NotificationEntity.class);
+
+        Assert.assertEquals("new city", notification.getEntityDataForField("sites.0.streetAddress.city"));
+        Assert.assertEquals("Denver", notification.getRemovedEntityDataForField("sites.0.streetAddress.city"));
+        Assert.assertTrue(notification.hasRemovedEntityDataForField("sites.1.siteId"));
+        Assert.assertFalse(notification.hasEntityDataForField("sites.1.siteId"));
+        Assert.assertTrue(notification.isPathUpdated("sites.0.streetAddress.city"));
+        Assert.assertTrue(notification.isPathRemoved("sites.1"));
+        Assert.assertFalse(notification.isPathRemoved("sites.0"));
+
+        notification.getEntityData().add(new NotificationEntity.PathAndValue("added", "later"));
+
+        Assert.assertEquals("later", notification.getEntityDataForField("added"));
+
+        notification.setEntityData(Collections.<NotificationEntity.PathAndValue>emptyList());
+
+        Assert.assertFalse(notification.hasEntityDataForField("sites.0.streetAddress.city"));
+    }
+
     @Test
     public void shouldCaptureNullsAsNull() throws Exception {
         EntityMetadata md = getMd("usermd.json");
@@ -496,6 +901,952 @@ public class NotificationHookTest extends AbstractJsonSchemaTest {
         assertEntityDataValueEquals((ArrayNode) data.get("entityData"), "personalInfo.company", null);
     }
 
+    @Test
+    public void shouldInsertOneNotificationPerRequestByDefault() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+
+        hook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                insertsOfUsers("1", "2", "3"));
+
+        Assert.assertEquals(3, insertCapturingMediator.capturedInserts.size());
+        for (InsertionRequest insert : insertCapturingMediator.capturedInserts) {
+            Assert.assertTrue(insert.getEntityData().isObject());
+        }
+    }
+
+    @Test
+    public void shouldBatchNotificationInsertsUpToConfiguredBatchSize() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+
+        NotificationHookConfiguration cfg = NotificationHookConfiguration
+                .watchingEverythingAndIncludingNothing()
+                .withInsertBatchSize(2);
+
+        hook.processHook(md, cfg, insertsOfUsers("1", "2", "3"));
+
+        List<InsertionRequest> inserts = insertCapturingMediator.capturedInserts;
+        Assert.assertEquals(2, inserts.size());
+        Assert.assertEquals(2, inserts.get(0).getEntityData().size());
+        assertEntityDataValueEquals((ArrayNode) inserts.get(0).getEntityData().get(0).get("entityData"), "_id", "1");
+        assertEntityDataValueEquals((ArrayNode) inserts.get(0).getEntityData().get(1).get("entityData"), "_id", "2");
+        assertEntityDataValueEquals((ArrayNode) inserts.get(1).getEntityData().get("entityData"), "_id", "3");
+    }
+
+    @Test
+    public void shouldReportDataErrorsPerNotificationInBatch() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+
+        NotificationHookConfiguration cfg = NotificationHookConfiguration
+                .watchingEverythingAndIncludingNothing()
+                .withInsertBatchSize(10);
+
+        Mediator failingMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                Response response = new Response();
+                response.getDataErrors().add(new DataError(req.getEntityData().get(1),
+                        Collections.singletonList(Error.get("invalid"))));
+                return response;
+            }
+        };
+
+        try {
+            new NotificationHook("testHook", failingMediator)
+                    .processHook(md, cfg, insertsOfUsers("1", "2", "3"));
+            Assert.fail("Expected NotificationInsertErrorsException");
+        } catch (NotificationInsertErrorsException e) {
+            Truth.assertThat(e.getMessage()).contains("invalid");
+            Truth.assertThat(e.getMessage()).contains("path='_id', value='2'");
+            Truth.assertThat(e.getMessage()).doesNotContain("path='_id', value='1'");
+            Truth.assertThat(e.getMessage()).doesNotContain("path='_id', value='3'");
+        }
+    }
+
+    @Test
+    public void shouldBulkWriteNotificationsToDatastoreSinkInsteadOfMediatorReportingEachFailure()
+            throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        InMemoryNotificationCollection collection = new InMemoryNotificationCollection(2);
+        hook.writeNotificationsTo(new DatastoreNotificationSink(collection));
+
+        NotificationHookConfiguration cfg = NotificationHookConfiguration
+                .watchingEverythingAndIncludingNothing()
+                .withInsertBatchSize(10);
+
+        try {
+            hook.processHook(md, cfg, insertsOfUsers("1", "2", "3"));
+            Assert.fail("Expected NotificationInsertErrorsException");
+        } catch (NotificationInsertErrorsException e) {
+            Truth.assertThat(e.getMessage()).contains("collection full");
+            Truth.assertThat(e.getMessage()).contains("path='_id', value='3'");
+            Truth.assertThat(e.getMessage()).doesNotContain("path='_id', value='1'");
+            Truth.assertThat(e.getMessage()).doesNotContain("path='_id', value='2'");
+        }
+
+        Assert.assertTrue(insertCapturingMediator.capturedInserts.isEmpty());
+        Assert.assertEquals(2, collection.docs.size());
+        assertEntityDataValueEquals((ArrayNode) collection.docs.get(0).get("entityData"), "_id", "1");
+        assertEntityDataValueEquals((ArrayNode) collection.docs.get(1).get("entityData"), "_id", "2");
+    }
+
+    @Test
+    public void shouldTranslateNotificationsForDatastoreWithPredefinedFieldsMediatorWouldSet()
+            throws Exception {
+        EntityMetadata notificationMd = getNotificationMd();
+        InMemoryNotificationCollection collection = new InMemoryNotificationCollection(1);
+        hook.writeNotificationsTo(new DatastoreNotificationSink(collection));
+
+        hook.processHook(getMd("usermd.json"),
+                NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                insertsOfUsers("1"));
+
+        JsonNode notification = collection.docs.get(0);
+        DBObject bson = MongoNotificationCollection.toBson(notification, notificationMd,
+                MongoNotificationCollection.translatorFor(notificationMd, JsonNodeFactory.instance),
+                JsonNodeFactory.instance);
+
+        Assert.assertEquals("notification", bson.get("objectType"));
+        Assert.assertEquals((long) notification.get("entityData").size(),
+                ((Number) bson.get("entityData#")).longValue());
+        Assert.assertEquals(0L, ((Number) bson.get("removedEntityData#")).longValue());
+        Assert.assertEquals("user", bson.get("entityName"));
+        Assert.assertNull("Notification reported on failure should be left as is",
+                notification.get("objectType"));
+    }
+
+    @Test
+    public void shouldInsertNotificationsInDocumentOrderWhenProcessingInParallel() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        hook.processDocumentsInParallel(executor, 2);
+
+        try {
+            hook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                    insertsOfUsers("1", "2", "3", "4", "5", "6", "7"));
+        } finally {
+            executor.shutdown();
+        }
+
+        List<InsertionRequest> inserts = insertCapturingMediator.capturedInserts;
+        Assert.assertEquals(7, inserts.size());
+        for (int i = 0; i < inserts.size(); i++) {
+            assertEntityDataValueEquals((ArrayNode) inserts.get(i).getEntityData().get("entityData"),
+                    "_id", Integer.toString(i + 1));
+        }
+    }
+
+    @Test
+    public void shouldCoalesceDocumentsWithSameIdentityIntoOneNotificationWhenConfigured() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode original = loadJsonNode("userdata.json");
+        JsonNode firstSave = loadJsonNode("userdata.json");
+        JsonDoc.modify(firstSave, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("first"), true);
+        JsonNode secondSave = loadJsonNode("userdata.json");
+        JsonDoc.modify(secondSave, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("second"), true);
+        JsonDoc.modify(secondSave, new Path("personalInfo.title"), JsonNodeFactory.instance.textNode("Manager"), true);
+
+        List<HookDoc> docs = new ArrayList<>();
+        docs.add(new HookDoc(md, new JsonDoc(original), new JsonDoc(firstSave), CRUDOperation.UPDATE, "me"));
+        docs.addAll(insertsOfUsers("other"));
+        docs.add(new HookDoc(md, new JsonDoc(firstSave), new JsonDoc(secondSave), CRUDOperation.UPDATE, "me"));
+
+        hook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                .withCoalesceByIdentity(true), docs);
+
+        List<InsertionRequest> inserts = insertCapturingMediator.capturedInserts;
+        Assert.assertEquals(2, inserts.size());
+        assertEntityDataValueEquals((ArrayNode) inserts.get(0).getEntityData().get("entityData"), "_id", "other");
+
+        JsonNode coalesced = inserts.get(1).getEntityData();
+        Assert.assertEquals("update", coalesced.get("operation").asText());
+        assertEntityDataValueEquals((ArrayNode) coalesced.get("entityData"), "personalInfo.company", "second");
+        assertEntityDataValueEquals((ArrayNode) coalesced.get("removedEntityData"), "personalInfo.company", "Red Hat");
+        Truth.assertThat(Iterables.transform(coalesced.get("updatedPaths"), toTextValue()))
+                .containsExactly("personalInfo.company", "personalInfo.title");
+    }
+
+    @Test
+    public void shouldMergeNotificationsForSameEntityWithinDebounceWindowAndWriteThemByShutdown() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing();
+        JsonNode original = loadJsonNode("userdata.json");
+        JsonNode firstSave = loadJsonNode("userdata.json");
+        JsonDoc.modify(firstSave, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("first"), true);
+        JsonNode secondSave = loadJsonNode("userdata.json");
+        JsonDoc.modify(secondSave, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("second"), true);
+        JsonDoc.modify(secondSave, new Path("personalInfo.title"), JsonNodeFactory.instance.textNode("Manager"), true);
+
+        NotificationDebouncer debouncer = hook.debounce(NotificationDebouncer.Settings.defaults()
+                .withWindowMillis(60000)
+                .withMaximumPending(1));
+
+        hook.processHook(md, cfg, Arrays.asList(
+                new HookDoc(md, new JsonDoc(original), new JsonDoc(firstSave), CRUDOperation.UPDATE, "me")));
+        hook.processHook(md, cfg, Arrays.asList(
+                new HookDoc(md, new JsonDoc(firstSave), new JsonDoc(secondSave), CRUDOperation.UPDATE, "me")));
+        // Beyond the maximum pending, so written straight away.
+        hook.processHook(md, cfg, insertsOfUsers("other"));
+
+        List<InsertionRequest> inserts = insertCapturingMediator.capturedInserts;
+        Assert.assertEquals(1, debouncer.pending());
+        Assert.assertEquals(1, inserts.size());
+        assertEntityDataValueEquals((ArrayNode) inserts.get(0).getEntityData().get("entityData"), "_id", "other");
+
+        hook.shutdown();
+
+        Assert.assertEquals(0, debouncer.pending());
+        Assert.assertEquals(2, inserts.size());
+        JsonNode merged = inserts.get(1).getEntityData();
+        Assert.assertEquals("update", merged.get("operation").asText());
+        assertEntityDataValueEquals((ArrayNode) merged.get("entityData"), "personalInfo.company", "second");
+        assertEntityDataValueEquals((ArrayNode) merged.get("removedEntityData"), "personalInfo.company", "Red Hat");
+        Truth.assertThat(Iterables.transform(merged.get("updatedPaths"), toTextValue()))
+                .containsExactly("personalInfo.company", "personalInfo.title");
+    }
+
+    @Test
+    public void shouldNotKeepValuesRemovedByLaterNotificationWhenMerging() {
+        NotificationEntity earlier = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1"), new PathAndValue("title", "Manager")),
+                Arrays.asList(new PathAndValue("title", "Engineer")),
+                Arrays.asList("title"), Collections.<String>emptyList());
+        NotificationEntity later = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1")),
+                Arrays.asList(new PathAndValue("title", "Manager")),
+                Collections.<String>emptyList(), Arrays.asList("title"));
+
+        NotificationEntity merged = NotificationDebouncer.merge(earlier, later, 1,
+                NotificationHookConfiguration.PayloadBudget.unlimited());
+
+        Truth.assertThat(merged.getEntityData()).containsExactly(new PathAndValue("_id", "1"));
+        Truth.assertThat(merged.getRemovedEntityData()).containsExactly(new PathAndValue("title", "Engineer"));
+        Truth.assertThat(merged.getRemovedPaths()).containsExactly("title");
+    }
+
+    @Test
+    public void shouldNotKeepRemovedValuesAddedBackByLaterNotificationWhenMerging() {
+        NotificationEntity earlier = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1")),
+                Arrays.asList(new PathAndValue("title", "Engineer")),
+                Collections.<String>emptyList(), Arrays.asList("title"));
+        NotificationEntity later = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1"), new PathAndValue("title", "Engineer")),
+                Collections.<PathAndValue>emptyList(),
+                Arrays.asList("title"), Collections.<String>emptyList());
+
+        NotificationEntity merged = NotificationDebouncer.merge(earlier, later, 1,
+                NotificationHookConfiguration.PayloadBudget.unlimited());
+
+        Truth.assertThat(merged.getEntityData())
+                .containsExactly(new PathAndValue("_id", "1"), new PathAndValue("title", "Engineer"));
+        Truth.assertThat(merged.getRemovedEntityData()).isEmpty();
+        Truth.assertThat(merged.getRemovedPaths()).isEmpty();
+    }
+
+    @Test
+    public void shouldNotHaveRemovedDataWhenMergingIntoInsert() {
+        NotificationEntity earlier = notification(NotificationEntity.Operation.insert,
+                Arrays.asList(new PathAndValue("_id", "1"), new PathAndValue("title", "Engineer")),
+                Collections.<PathAndValue>emptyList(),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        NotificationEntity later = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1"), new PathAndValue("title", "Manager")),
+                Arrays.asList(new PathAndValue("title", "Engineer")),
+                Arrays.asList("title"), Collections.<String>emptyList());
+
+        NotificationEntity merged = NotificationDebouncer.merge(earlier, later, 1,
+                NotificationHookConfiguration.PayloadBudget.unlimited());
+
+        Assert.assertEquals(NotificationEntity.Operation.insert, merged.getOperation());
+        Truth.assertThat(merged.getEntityData())
+                .containsExactly(new PathAndValue("_id", "1"), new PathAndValue("title", "Manager"));
+        Truth.assertThat(merged.getRemovedEntityData()).isEmpty();
+    }
+
+    @Test
+    public void shouldDegradeMergedNotificationOverPayloadBudget() {
+        NotificationEntity earlier = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1"), new PathAndValue("title", "Manager")),
+                Arrays.asList(new PathAndValue("title", "Engineer")),
+                Arrays.asList("title"), Collections.<String>emptyList());
+        NotificationEntity later = notification(NotificationEntity.Operation.update,
+                Arrays.asList(new PathAndValue("_id", "1"), new PathAndValue("company", "Red Hat")),
+                Arrays.asList(new PathAndValue("company", "IBM")),
+                Arrays.asList("company"), Collections.<String>emptyList());
+
+        NotificationEntity merged = NotificationDebouncer.merge(earlier, later, 1,
+                NotificationHookConfiguration.PayloadBudget.unlimited().withMaxEntries(4));
+
+        Assert.assertEquals(Boolean.TRUE, merged.getTruncated());
+        Truth.assertThat(merged.getEntityData()).containsExactly(new PathAndValue("_id", "1"));
+        Truth.assertThat(merged.getRemovedEntityData()).isEmpty();
+        Truth.assertThat(merged.getUpdatedPaths()).containsExactly("title", "company");
+    }
+
+    @Test
+    public void shouldDropNotificationsBeyondEntityRateLimitBurst() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                .withRateLimit(NotificationHookConfiguration.RateLimit.unlimited()
+                        .withMaxPerSecond(0.001)
+                        .withBurst(2));
+
+        hook.processHook(md, cfg, insertsOfUsers("1", "2", "3"));
+        hook.processHook(md, cfg, insertsOfUsers("4"));
+        hook.shutdown();
+
+        List<InsertionRequest> inserts = insertCapturingMediator.capturedInserts;
+        Assert.assertEquals(2, inserts.size());
+        assertEntityDataValueEquals((ArrayNode) inserts.get(0).getEntityData().get("entityData"), "_id", "1");
+        assertEntityDataValueEquals((ArrayNode) inserts.get(1).getEntityData().get("entityData"), "_id", "2");
+    }
+
+    @Test
+    public void shouldWriteSummaryOfNotificationsSuppressedByEntityRateLimitWhenConfigured() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                .withRateLimit(NotificationHookConfiguration.RateLimit.unlimited()
+                        .withMaxPerSecond(0.001)
+                        .withSuppression(NotificationHookConfiguration.RateLimit.Suppression.SUMMARIZE));
+
+        hook.processHook(md, cfg, insertsOfUsers("1", "2", "3", "4"));
+        hook.shutdown();
+
+        List<InsertionRequest> inserts = insertCapturingMediator.capturedInserts;
+        Assert.assertEquals(2, inserts.size());
+        assertEntityDataValueEquals((ArrayNode) inserts.get(0).getEntityData().get("entityData"), "_id", "1");
+
+        JsonNode summary = inserts.get(1).getEntityData();
+        Assert.assertEquals("user", summary.get("entityName").asText());
+        Assert.assertEquals("testHook", summary.get("clientRequestPrincipal").asText());
+        Assert.assertTrue(summary.get("truncated").asBoolean());
+        Assert.assertEquals(1, summary.get("entityData").size());
+        assertEntityDataValueEquals((ArrayNode) summary.get("entityData"), "suppressedNotifications", "3");
+    }
+
+    @Test
+    public void shouldReuseCompiledConfigurationForSameEntityVersionAndConfiguration() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing();
+
+        hook.processHook(md, cfg, insertsOfUsers("1"));
+        hook.processHook(md, cfg, insertsOfUsers("2"));
+
+        CompiledConfigurationCache cache = hook.getCompiledConfigurationCache();
+        Assert.assertEquals(1, cache.misses());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldReuseCompiledConfigurationForSeparatelyParsedEqualConfigurations() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+
+        hook.processHook(md, new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"), null, false), insertsOfUsers("1"));
+        hook.processHook(md, new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"), null, false), insertsOfUsers("2"));
+        hook.processHook(md, new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"), null, true), insertsOfUsers("3"));
+
+        CompiledConfigurationCache cache = hook.getCompiledConfigurationCache();
+        Assert.assertEquals(2, cache.misses());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void shouldEvictCompiledConfigurationWhenNewEntityVersionIsSeen() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        EntityMetadata newMd = getMd("usermd.json");
+        newMd.getEntitySchema().setVersion(new Version("5.10.0", null, null));
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing();
+
+        hook.processHook(md, cfg, insertsOfUsers("1"));
+        hook.processHook(newMd, cfg, insertsOfUsers("2"));
+
+        CompiledConfigurationCache cache = hook.getCompiledConfigurationCache();
+        Assert.assertEquals(2, cache.misses());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldKeepCompiledConfigurationForNewerEntityVersionWhenOlderIsSeen() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        EntityMetadata newMd = getMd("usermd.json");
+        newMd.getEntitySchema().setVersion(new Version("5.10.0", null, null));
+        EntityMetadata snapshotMd = getMd("usermd.json");
+        snapshotMd.getEntitySchema().setVersion(new Version("5.10.0-SNAPSHOT", null, null));
+        HookConfiguration cfg = NotificationHookConfiguration.watchingEverythingAndIncludingNothing();
+
+        hook.processHook(newMd, cfg, insertsOfUsers("1"));
+        hook.processHook(md, cfg, insertsOfUsers("2"));
+        hook.processHook(snapshotMd, cfg, insertsOfUsers("3"));
+        hook.processHook(newMd, cfg, insertsOfUsers("4"));
+
+        CompiledConfigurationCache cache = hook.getCompiledConfigurationCache();
+        Assert.assertEquals(3, cache.misses());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void shouldWarmUpOnlyEntitiesConfiguringHookWithoutWritingNotifications() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        EntityMetadata otherMd = new EntityMetadata(new EntityInfo("other"), md.getEntitySchema());
+        HookConfiguration cfg = new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"), null, false);
+        Hook notificationHook = new Hook("testHook");
+        notificationHook.setConfiguration(cfg);
+        md.getEntityInfo().getHooks().setHooks(Arrays.asList(notificationHook));
+
+        List<String> warmedUp = hook.warmUp(new InMemoryMetadata(md, otherMd), 100);
+
+        Assert.assertEquals(Arrays.asList("user"), warmedUp);
+        Assert.assertTrue(insertCapturingMediator.capturedInserts.isEmpty());
+
+        // As lightblue would, with metadata and configuration parsed separately, on another thread.
+        final EntityMetadata requestMd = getMd("usermd.json");
+        final HookConfiguration requestCfg = new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"), null, false);
+        final List<HookDoc> hookDocs = insertsOfUsers("1");
+        Thread request = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hook.processHook(requestMd, requestCfg, hookDocs);
+            }
+        });
+        request.start();
+        request.join();
+
+        CompiledConfigurationCache cache = hook.getCompiledConfigurationCache();
+        Assert.assertEquals(1, cache.misses());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(1, insertCapturingMediator.capturedInserts.size());
+    }
+
+    @Test
+    public void shouldWriteQueuedNotificationsAsynchronouslyByShutdown() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        final List<JsonNode> inserted = Collections.synchronizedList(new ArrayList<JsonNode>());
+        Mediator mediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                for (JsonNode notification : req.getEntityData().isArray()
+                        ? req.getEntityData()
+                        : Collections.singletonList(req.getEntityData())) {
+                    inserted.add(notification);
+                }
+                return new Response();
+            }
+        };
+        NotificationHook asyncHook = new NotificationHook("testHook", mediator);
+        asyncHook.writeAsynchronously(AsyncNotificationWriter.Settings.defaults()
+                .withBatchSize(2)
+                .withBackPressure(AsyncNotificationWriter.BackPressure.BLOCK));
+
+        asyncHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                insertsOfUsers("1", "2", "3"));
+        asyncHook.shutdown();
+
+        Assert.assertEquals(3, inserted.size());
+    }
+
+    @Test
+    public void shouldWriteNotificationOfClientRequestBlockedOnFullQueueWhenShutDown() throws Exception {
+        final EntityMetadata md = getMd("usermd.json");
+        final CountDownLatch insertsBlocked = new CountDownLatch(1);
+        final List<JsonNode> inserted = Collections.synchronizedList(new ArrayList<JsonNode>());
+        Mediator blockingMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                try {
+                    insertsBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (JsonNode notification : req.getEntityData().isArray()
+                        ? req.getEntityData()
+                        : Collections.singletonList(req.getEntityData())) {
+                    inserted.add(notification);
+                }
+                return new Response();
+            }
+        };
+        final NotificationHook asyncHook = new NotificationHook("testHook", blockingMediator);
+        asyncHook.writeAsynchronously(AsyncNotificationWriter.Settings.defaults()
+                .withCapacity(1)
+                .withFlusherThreads(1)
+                .withBatchSize(1)
+                .withShutdownTimeoutMillis(100)
+                .withBackPressure(AsyncNotificationWriter.BackPressure.BLOCK));
+
+        // One notification in flight and one queued.
+        asyncHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                insertsOfUsers("1", "2"));
+
+        final List<HookDoc> blockedDocs = insertsOfUsers("3");
+        Thread blockedRequest = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                asyncHook.processHook(md,
+                        NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                        blockedDocs);
+            }
+        });
+        blockedRequest.start();
+        Thread shutdown = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                asyncHook.shutdown();
+            }
+        });
+        shutdown.start();
+
+        Thread.sleep(300);
+        insertsBlocked.countDown();
+        blockedRequest.join(10000);
+        shutdown.join(10000);
+
+        Assert.assertFalse(blockedRequest.isAlive());
+        Assert.assertFalse(shutdown.isAlive());
+        Assert.assertEquals(3, inserted.size());
+    }
+
+    @Test(expected = NotificationProcessingError.class)
+    public void shouldFailClientRequestWhenNotificationQueueIsFullAndBackPressureIsFail() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        final CountDownLatch insertsBlocked = new CountDownLatch(1);
+        Mediator blockingMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                try {
+                    insertsBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new Response();
+            }
+        };
+        NotificationHook asyncHook = new NotificationHook("testHook", blockingMediator);
+        asyncHook.writeAsynchronously(AsyncNotificationWriter.Settings.defaults()
+                .withCapacity(1)
+                .withFlusherThreads(1)
+                .withBatchSize(1)
+                .withBackPressure(AsyncNotificationWriter.BackPressure.FAIL));
+
+        try {
+            // At most one notification can be in flight and one queued.
+            asyncHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                    insertsOfUsers("1", "2", "3"));
+        } finally {
+            insertsBlocked.countDown();
+            asyncHook.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldSpoolNotificationsWhichFailToInsertAndReplayThemOnceInsertsSucceed() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        final AtomicBoolean datastoreAvailable = new AtomicBoolean(false);
+        final List<InsertionRequest> inserted = new ArrayList<>();
+        Mediator flakyMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                if (!datastoreAvailable.get()) {
+                    throw new IllegalStateException("datastore unavailable");
+                }
+                inserted.add(req);
+                return new Response();
+            }
+        };
+        NotificationHook spoolingHook = new NotificationHook("testHook", flakyMediator);
+        NotificationSpool spool = spoolingHook.spoolFailedInserts(NotificationSpool.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withSegmentSizeBytes(4096)
+                .withReplayIntervalMillis(Long.MAX_VALUE));
+
+        try {
+            spoolingHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                    insertsOfUsers("1", "2", "3"));
+
+            Assert.assertEquals(0, spool.replay());
+
+            datastoreAvailable.set(true);
+
+            Assert.assertEquals(3, spool.replay());
+            Assert.assertEquals(3, inserted.size());
+            assertEntityDataValueEquals((ArrayNode) inserted.get(2).getEntityData().get("entityData"), "_id", "3");
+            Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+        } finally {
+            spoolingHook.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldResumeSpoolReplayAfterLastInsertedBatchInsteadOfReinsertingIt() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        final AtomicBoolean datastoreAvailable = new AtomicBoolean(false);
+        final AtomicInteger replayInserts = new AtomicInteger();
+        final List<InsertionRequest> inserted = new ArrayList<>();
+        Mediator flakyMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                // Fails as a whole while unavailable, and once more on the second replayed batch.
+                if (!datastoreAvailable.get() || replayInserts.incrementAndGet() == 2) {
+                    throw new IllegalStateException("datastore unavailable");
+                }
+                inserted.add(req);
+                return new Response();
+            }
+        };
+        NotificationHook spoolingHook = new NotificationHook("testHook", flakyMediator);
+        NotificationSpool spool = spoolingHook.spoolFailedInserts(NotificationSpool.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withReplayIntervalMillis(Long.MAX_VALUE)
+                .withReplayBatchSize(1));
+
+        try {
+            spoolingHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                    insertsOfUsers("1", "2", "3"));
+
+            datastoreAvailable.set(true);
+
+            Assert.assertEquals(1, spool.replay());
+            Assert.assertEquals(2, spool.replay());
+            Assert.assertEquals(3, inserted.size());
+            for (int i = 0; i < 3; i++) {
+                assertEntityDataValueEquals((ArrayNode) inserted.get(i).getEntityData().get("entityData"),
+                        "_id", String.valueOf(i + 1));
+            }
+            Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+        } finally {
+            spoolingHook.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldSetAsideOnlyRejectedSpooledNotificationsAndKeepReplaying() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        final AtomicBoolean datastoreAvailable = new AtomicBoolean(false);
+        final List<JsonNode> inserted = new ArrayList<>();
+        Mediator rejectingMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                if (!datastoreAvailable.get()) {
+                    throw new IllegalStateException("datastore unavailable");
+                }
+                Response response = new Response();
+                for (JsonNode notification : req.getEntityData().isArray()
+                        ? req.getEntityData()
+                        : Collections.singletonList(req.getEntityData())) {
+                    if (notification.toString().contains("{\"path\":\"_id\",\"value\":\"2\"}")) {
+                        response.getDataErrors().add(new DataError(notification,
+                                Arrays.asList(Error.get("crud:Invalid"))));
+                    } else {
+                        inserted.add(notification);
+                    }
+                }
+                return response;
+            }
+        };
+        NotificationHook spoolingHook = new NotificationHook("testHook", rejectingMediator);
+        NotificationSpool spool = spoolingHook.spoolFailedInserts(NotificationSpool.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withSegmentSizeBytes(4096)
+                .withReplayIntervalMillis(Long.MAX_VALUE)
+                .withReplayBatchSize(10)
+                .withMaxReplayAttempts(100));
+
+        try {
+            spoolingHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing()
+                    .withInsertBatchSize(10), insertsOfUsers("1", "2", "3"));
+            spoolingHook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                    insertsOfUsers("4"));
+
+            datastoreAvailable.set(true);
+
+            Assert.assertEquals(3, spool.replay());
+            Assert.assertEquals(3, inserted.size());
+
+            String[] left = temporaryFolder.getRoot().list();
+            Assert.assertEquals(1, left.length);
+            Truth.assertThat(left[0]).endsWith(".spool.failed");
+
+            List<NotificationEntity> setAside = spool.read(temporaryFolder.getRoot().toPath().resolve(left[0]));
+            Assert.assertEquals(1, setAside.size());
+            Assert.assertEquals("2", setAside.get(0).getEntityData().get(0).getValue());
+        } finally {
+            spoolingHook.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldNeverReplaceSegmentsSetAsideByEarlierSpools() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        Mediator unavailableMediator = new InsertCapturingMediator() {
+            @Override
+            public Response insert(InsertionRequest req) {
+                throw new IllegalStateException("datastore unavailable");
+            }
+        };
+        NotificationSpool.Settings settings = NotificationSpool.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withSegmentSizeBytes(4096)
+                .withReplayIntervalMillis(Long.MAX_VALUE)
+                .withMaxReplayAttempts(1);
+
+        for (String id : Arrays.asList("1", "2")) {
+            // Each spool starts with only set aside segments left by the one before.
+            NotificationHook spoolingHook = new NotificationHook("testHook", unavailableMediator);
+            NotificationSpool spool = spoolingHook.spoolFailedInserts(settings);
+
+            try {
+                spoolingHook.processHook(md,
+                        NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                        insertsOfUsers(id));
+                Assert.assertEquals(0, spool.replay());
+            } finally {
+                spoolingHook.shutdown();
+            }
+        }
+
+        String[] setAside = temporaryFolder.getRoot().list();
+        Arrays.sort(setAside);
+
+        Assert.assertEquals(Arrays.asList(
+                "notifications-00000000000000000000.spool.failed",
+                "notifications-00000000000000000001.spool.failed"), Arrays.asList(setAside));
+
+        NotificationSpool reader = new NotificationSpool(settings, new ObjectMapper(),
+                new NotificationInserter(new ObjectMapper(), null, null));
+        try {
+            for (int i = 0; i < setAside.length; i++) {
+                List<NotificationEntity> notifications = reader.read(
+                        temporaryFolder.getRoot().toPath().resolve(setAside[i]));
+                Assert.assertEquals(String.valueOf(i + 1),
+                        notifications.get(0).getEntityData().get(0).getValue());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void shouldAppendNotificationsToLogReadableFromAnyOffsetAcrossRestarts() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        ObjectMapper objectMapper = new ObjectMapper();
+        NotificationLog.Settings settings = NotificationLog.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withSegmentSizeBytes(1024);
+
+        hook.writeNotificationsToLog(settings);
+        hook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                insertsOfUsers("1", "2", "3", "4", "5"));
+
+        NotificationLogReader fromStart = new NotificationLogReader(settings.directory(), 0);
+        for (int i = 0; i < 5; i++) {
+            NotificationLogReader.Record record = fromStart.next();
+            Assert.assertEquals(i, record.offset());
+            Assert.assertEquals(Integer.toString(i + 1),
+                    record.toNotification(objectMapper).getEntityDataForField("_id"));
+        }
+        Assert.assertNull(fromStart.next());
+
+        NotificationLogReader resumed = new NotificationLogReader(settings.directory(), 3);
+        Assert.assertEquals(3, resumed.next().offset());
+        Assert.assertEquals(4, resumed.next().offset());
+        Assert.assertNull(resumed.next());
+
+        hook.shutdown();
+
+        NotificationHook restarted = new NotificationHook("testHook", insertCapturingMediator);
+        restarted.writeNotificationsToLog(settings);
+        try {
+            restarted.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                    insertsOfUsers("6"));
+        } finally {
+            restarted.shutdown();
+        }
+
+        NotificationLogReader.Record afterRestart = fromStart.next();
+        Assert.assertEquals(5, afterRestart.offset());
+        Assert.assertEquals("6", afterRestart.toNotification(objectMapper).getEntityDataForField("_id"));
+        Assert.assertNull(fromStart.next());
+        Assert.assertTrue(insertCapturingMediator.capturedInserts.isEmpty());
+    }
+
+    @Test
+    public void shouldReuseEmptyLogSegmentLeftByCrashOnRestart() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        NotificationLog.Settings settings = NotificationLog.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withSegmentSizeBytes(1024);
+
+        hook.writeNotificationsToLog(settings);
+        hook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                insertsOfUsers("1", "2"));
+        hook.shutdown();
+
+        // As if the process died right after starting a segment, before its first record was whole.
+        byte[] torn = new byte[8192];
+        Arrays.fill(torn, NotificationLog.RECORD_HEADER_BYTES, torn.length, (byte) 0x7f);
+        Files.write(settings.directory().resolve(NotificationLog.segmentName(2)), torn);
+
+        NotificationLogReader reader = new NotificationLogReader(settings.directory(), 0);
+        Assert.assertEquals(0, reader.next().offset());
+        Assert.assertEquals(1, reader.next().offset());
+        Assert.assertNull(reader.next());
+
+        NotificationHook restarted = new NotificationHook("testHook", insertCapturingMediator);
+        NotificationLog log = restarted.writeNotificationsToLog(settings);
+        try {
+            for (int i = 3; i <= 10; i++) {
+                restarted.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                        insertsOfUsers(Integer.toString(i)));
+            }
+        } finally {
+            restarted.shutdown();
+        }
+
+        Assert.assertEquals(10, log.nextOffset());
+        Truth.assertThat(NotificationLog.segments(settings.directory()).size()).isGreaterThan(2);
+        for (long expected = 2; expected < 10; expected++) {
+            Assert.assertEquals(expected, reader.next().offset());
+        }
+        Assert.assertNull(reader.next());
+    }
+
+    @Test
+    public void shouldDeleteOldestLogSegmentsOverRetentionAndReadFromOldestLeft() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        NotificationLog.Settings settings = NotificationLog.Settings
+                .inDirectory(temporaryFolder.getRoot().toPath())
+                .withSegmentSizeBytes(1024)
+                .withRetentionBytes(2048);
+
+        NotificationLog log = hook.writeNotificationsToLog(settings);
+        try {
+            for (int i = 0; i < 20; i++) {
+                hook.processHook(md, NotificationHookConfiguration.watchingEverythingAndIncludingNothing(),
+                        insertsOfUsers(Integer.toString(i)));
+            }
+        } finally {
+            hook.shutdown();
+        }
+
+        Assert.assertEquals(20, log.nextOffset());
+        Truth.assertThat(temporaryFolder.getRoot().list().length).isAtMost(2);
+
+        NotificationLogReader reader = new NotificationLogReader(settings.directory(), 0);
+        NotificationLogReader.Record oldest = reader.next();
+        Truth.assertThat(oldest.offset()).isGreaterThan(0L);
+
+        long expected = oldest.offset() + 1;
+        for (NotificationLogReader.Record record = reader.next(); record != null; record = reader.next()) {
+            Assert.assertEquals(expected++, record.offset());
+        }
+        Assert.assertEquals(20, expected);
+    }
+
+    @Test
+    public void shouldReportMetricsPerEntityOverJmx() throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        JsonNode pre = loadJsonNode("userdata.json");
+        JsonNode post = loadJsonNode("userdata.json");
+        JsonDoc.modify(post, new Path("personalInfo.company"), JsonNodeFactory.instance.textNode("blah"), true);
+
+        HookConfiguration cfg = new NotificationHookConfiguration(
+                projection("{'field':'personalInfo','recursive':1}"),
+                null,
+                false);
+
+        JmxNotificationHookMetrics metrics = new JmxNotificationHookMetrics("metricsTestHook");
+        hook.reportMetricsTo(metrics);
+
+        try {
+            hook.processHook(md, cfg, Arrays.asList(
+                    new HookDoc(md, new JsonDoc(pre), new JsonDoc(post), CRUDOperation.UPDATE, "me"),
+                    new HookDoc(md, new JsonDoc(pre), new JsonDoc(pre), CRUDOperation.UPDATE, "me")));
+
+            JmxNotificationHookMetrics.EntityMetricsMXBean userMetrics = metrics.forEntity("user");
+            Assert.assertEquals(1, userMetrics.getGeneratedNotifications());
+            Assert.assertEquals(1, userMetrics.getAbortedNotifications());
+            Assert.assertEquals(0, userMetrics.getFailedNotifications());
+            Assert.assertEquals(1, userMetrics.getDiffNanos().getCount());
+            Assert.assertEquals(1, userMetrics.getInsertNanos().getCount());
+            // The two ids and the new company, plus the old company in removed entity data
+            Assert.assertEquals(4, userMetrics.getPayloadSize().getMax());
+
+            CompositeData insertNanos = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(metrics.objectNameFor("user"), "InsertNanos");
+            Assert.assertEquals(1L, insertNanos.get("count"));
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+    @Test
+    public void shouldReportStageMetricsForEachEntityInBatch() throws Exception {
+        NotificationEntity user = notification(NotificationEntity.Operation.insert,
+                Arrays.asList(new PathAndValue("_id", "1")), Collections.<PathAndValue>emptyList(),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        NotificationEntity other = notification(NotificationEntity.Operation.insert,
+                Arrays.asList(new PathAndValue("_id", "2")), Collections.<PathAndValue>emptyList(),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        other.setEntityName("other");
+        NotificationInserter inserter = new NotificationInserter(new ObjectMapper(), null,
+                new NotificationSink() {
+                    @Override
+                    public Result write(List<JsonNode> notifications) {
+                        return Result.written();
+                    }
+                });
+
+        JmxNotificationHookMetrics metrics = new JmxNotificationHookMetrics("batchMetricsTestHook");
+        inserter.reportMetricsTo(metrics);
+
+        try {
+            inserter.insert(Arrays.asList(user, other, user));
+
+            for (String entityName : Arrays.asList("user", "other")) {
+                JmxNotificationHookMetrics.EntityMetricsMXBean entityMetrics = metrics.forEntity(entityName);
+                Assert.assertEquals(1, entityMetrics.getSerializationNanos().getCount());
+                Assert.assertEquals(1, entityMetrics.getInsertNanos().getCount());
+            }
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+    private List<HookDoc> insertsOfUsers(String... ids) throws Exception {
+        EntityMetadata md = getMd("usermd.json");
+        List<HookDoc> docs = new ArrayList<>();
+
+        for (String id : ids) {
+            JsonNode data = loadJsonNode("userdata.json");
+            JsonDoc.modify(data, new Path("_id"), JsonNodeFactory.instance.textNode(id), true);
+            docs.add(new HookDoc(md, null, new JsonDoc(data), CRUDOperation.INSERT, "me"));
+        }
+
+        return docs;
+    }
+
+    private static NotificationEntity notification(NotificationEntity.Operation operation,
+            List<PathAndValue> entityData, List<PathAndValue> removedEntityData,
+            List<String> updatedPaths, List<String> removedPaths) {
+        NotificationEntity notification = new NotificationEntity();
+        notification.setEntityName("user");
+        notification.setEntityVersion("1.0.0");
+        notification.setOperation(operation);
+        notification.setStatus(NotificationEntity.Status.unprocessed);
+        notification.setEntityData(entityData);
+        notification.setRemovedEntityData(removedEntityData);
+        notification.setUpdatedPaths(updatedPaths);
+        notification.setRemovedPaths(removedPaths);
+        return notification;
+    }
+
     private void assertEntityDataValueEquals(ArrayNode ed, String path, String value) {
         int n=ed.size();
         for(int i=0;i<n;i++) {
@@ -521,12 +1872,36 @@ public class NotificationHookTest extends AbstractJsonSchemaTest {
         }
     }
 
+    private List<Projection> fieldProjections() throws Exception {
+        return Arrays.asList(
+                projection("{'field':'*','include':true,'recursive':true}"),
+                projection("{'field':'personalInfo','recursive':1}"),
+                projection("{'field':'personalInfo'}"),
+                projection("{'field':'sites.*.streetAddress.city'}"),
+                projection("[{'field':'sites','recursive':1},{'field':'sites.*.notes','include':false}]"),
+                projection("[{'field':'*','recursive':1},{'field':'password','include':false,'recursive':1}]"),
+                projection("[{'field':'sites.*.siteType'},{'field':'personalInfo.*'}]"),
+                projection("[{'field':'sites.*.usages','recursive':1},{'field':'sites','include':false,'recursive':1}]"),
+                projection("{'field':'*','include':false}"));
+    }
+
     private Projection projection(String s) throws Exception {
         return Projection.fromJson(JsonUtils.json(s.replaceAll("\'","\"")));
     }
 
     public EntityMetadata getMd(String fname) throws Exception {
-        JsonNode node = loadJsonNode(fname);
+        return parseMd(loadJsonNode(fname));
+    }
+
+    /** The notification entity's metadata, as generated by the model, stored in mongo. */
+    private EntityMetadata getNotificationMd() throws Exception {
+        ObjectNode node = (ObjectNode) loadJsonNode("notification.json");
+        ((ObjectNode) node.get("entityInfo")).set("datastore",
+                JsonUtils.json("{\"backend\":\"mongo\"}"));
+        return parseMd(node);
+    }
+
+    private EntityMetadata parseMd(JsonNode node) throws Exception {
         Extensions<JsonNode> extensions = new Extensions<>();
         extensions.addDefaultExtensions();
         extensions.registerDataStoreParser("mongo", new FakeMongoDataStoreParser<JsonNode>());
@@ -1,6 +1,7 @@
 package org.esbtools.lightbluenotificationhook;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.redhat.lightblue.generator.Description;
 import com.redhat.lightblue.generator.EntityName;
 import com.redhat.lightblue.generator.Identity;
@@ -9,10 +10,16 @@ import com.redhat.lightblue.generator.Transient;
 import com.redhat.lightblue.generator.Version;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Serialization-friendly "data object" for an entity in the notification collection.
@@ -21,7 +28,10 @@ import java.util.Objects;
  * operation on an integrated entity on integrated fields.
  */
 @EntityName(NotificationEntity.ENTITY_NAME)
-@Version(value = "0.1.0", preferImplementationVersion = false, changelog = "Initial")
+@Version(value = "0.2.0", preferImplementationVersion = false,
+        changelog = "Adds optional compact encoding of entityData and removedEntityData: " +
+                "pathDictionary, compactEntityData, and compactRemovedEntityData. Adds optional " +
+                "truncated, set when entity data was dropped to fit a payload budget")
 public class NotificationEntity {
     public static final String ENTITY_NAME = "notification";
     public static final String ENTITY_VERSION = Version.FromAnnotation.onEntity(NotificationEntity.class);
@@ -43,6 +53,19 @@ public class NotificationEntity {
     private List<String> updatedPaths;
     private List<PathAndValue> removedEntityData;
     private List<String> removedPaths;
+    private @Nullable Boolean truncated;
+
+    // Compact encoding of entityData and removedEntityData. Only ever set while deserializing;
+    // expanded into the regular lists as soon as the dictionary and a list are both present.
+    private @Nullable List<String> pathDictionary;
+    private @Nullable List<CompactPathAndValue> compactEntityData;
+    private @Nullable List<CompactPathAndValue> compactRemovedEntityData;
+
+    // Lookup indexes, built on first use. Not part of the entity.
+    private transient @Nullable PathIndex entityDataIndex;
+    private transient @Nullable PathSet updatedPathsIndex;
+    private transient @Nullable PathIndex removedEntityDataIndex;
+    private transient @Nullable PathSet removedPathsIndex;
 
     private static final String LIGHTBLUE_DATE_FORMAT = "yyyyMMdd\'T\'HH:mm:ss.SSSZ";
 
@@ -88,6 +111,7 @@ public class NotificationEntity {
             "individual paths for each field in the object.")
     public void setEntityData(List<PathAndValue> data) {
         this.entityData=data;
+        this.entityDataIndex = null;
     }
 
     public Status getStatus() {
@@ -156,6 +180,7 @@ public class NotificationEntity {
             "included.")
     public void setUpdatedPaths(List<String> paths) {
         this.updatedPaths =paths;
+        this.updatedPathsIndex = null;
     }
 
     public List<String> getRemovedPaths() {
@@ -165,6 +190,7 @@ public class NotificationEntity {
     @Description("Lightblue paths to fields or array elements which were removed.")
     public void setRemovedPaths(List<String> paths) {
         this.removedPaths =paths;
+        this.removedPathsIndex = null;
     }
 
     public List<PathAndValue> getRemovedEntityData() {
@@ -176,27 +202,200 @@ public class NotificationEntity {
             "paths to primitive values. Objects are flattened.")
     public void setRemovedEntityData(List<PathAndValue> l) {
         this.removedEntityData=l;
+        this.removedEntityDataIndex = null;
     }
 
-    @Transient
-    public boolean hasEntityDataForField(String fieldPath) {
-        for (PathAndValue pathAndValue : entityData) {
-            if (Objects.equals(fieldPath, pathAndValue.getPath())) {
-                return true;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Boolean getTruncated() {
+        return truncated;
+    }
+
+    @Description("True if the notification was too large, so entity data and removed entity " +
+            "data were dropped except for identities. Updated and removed paths may also have " +
+            "been shortened to the array they are in. Absent otherwise.")
+    public void setTruncated(@Nullable Boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<String> getPathDictionary() {
+        return pathDictionary;
+    }
+
+    @Description("Used instead of entityData and removedEntityData paths by compact " +
+            "notifications. Each distinct path, with array indexes replaced by '*', appears once " +
+            "here and is referred to by its position from compactEntityData and " +
+            "compactRemovedEntityData.")
+    public void setPathDictionary(@Nullable List<String> pathDictionary) {
+        this.pathDictionary = pathDictionary;
+        expandCompactData();
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<CompactPathAndValue> getCompactEntityData() {
+        return compactEntityData;
+    }
+
+    @Description("entityData of a compact notification. When read, this is expanded into " +
+            "entityData.")
+    public void setCompactEntityData(@Nullable List<CompactPathAndValue> compactEntityData) {
+        this.compactEntityData = compactEntityData;
+        expandCompactData();
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<CompactPathAndValue> getCompactRemovedEntityData() {
+        return compactRemovedEntityData;
+    }
+
+    @Description("removedEntityData of a compact notification. When read, this is expanded " +
+            "into removedEntityData.")
+    public void setCompactRemovedEntityData(
+            @Nullable List<CompactPathAndValue> compactRemovedEntityData) {
+        this.compactRemovedEntityData = compactRemovedEntityData;
+        expandCompactData();
+    }
+
+    /**
+     * Compact entity data can arrive before or after the dictionary it refers to, so it is
+     * expanded once both are set. Afterwards the notification reads the same as one which was
+     * never compacted.
+     */
+    private void expandCompactData() {
+        if (pathDictionary == null) {
+            return;
+        }
+
+        if (compactEntityData != null) {
+            setEntityData(expand(compactEntityData, pathDictionary));
+            compactEntityData = null;
+        }
+
+        if (compactRemovedEntityData != null) {
+            setRemovedEntityData(expand(compactRemovedEntityData, pathDictionary));
+            compactRemovedEntityData = null;
+        }
+    }
+
+    private static List<PathAndValue> expand(List<CompactPathAndValue> compact,
+            List<String> dictionary) {
+        List<PathAndValue> expanded = new ArrayList<>(compact.size());
+
+        for (CompactPathAndValue pathAndValue : compact) {
+            String path = expandPath(dictionary.get(pathAndValue.getPath()),
+                    pathAndValue.getIndexes());
+            expanded.add(new PathAndValue(path, pathAndValue.getValue()));
+        }
+
+        return expanded;
+    }
+
+    /**
+     * Replaces each '*' segment of the path with the next of the indexes.
+     */
+    private static String expandPath(String path, @Nullable List<Integer> indexes) {
+        if (indexes == null || indexes.isEmpty()) {
+            return path;
+        }
+
+        StringBuilder expanded = new StringBuilder(path.length() + indexes.size() * 2);
+        int nextIndex = 0;
+        int segmentStart = 0;
+
+        while (segmentStart <= path.length()) {
+            int segmentEnd = path.indexOf('.', segmentStart);
+            if (segmentEnd == -1) {
+                segmentEnd = path.length();
             }
+
+            if (segmentStart > 0) {
+                expanded.append('.');
+            }
+
+            if (segmentEnd - segmentStart == 1 && path.charAt(segmentStart) == '*') {
+                expanded.append(indexes.get(nextIndex++));
+            } else {
+                expanded.append(path, segmentStart, segmentEnd);
+            }
+
+            segmentStart = segmentEnd + 1;
         }
-        return false;
+
+        return expanded.toString();
     }
 
+    /*
+     * Field lookups below are constant time. Each list is indexed on first lookup, and indexed
+     * again if it is replaced via its setter or if its size changes. Replacing elements of a list
+     * in place without changing its size is not detected; use the setter instead.
+     */
+
+    @Transient
+    public boolean hasEntityDataForField(String fieldPath) {
+        return entityDataIndex().contains(fieldPath);
+    }
+
+    /**
+     * @return The value of the first entity data entry for the field, which may be null.
+     * @throws NoSuchElementException if there is no entity data for the field.
+     */
     @Transient
     @Nullable
     public String getEntityDataForField(String fieldPath) {
-        for (PathAndValue pathAndValue : entityData) {
-            if (Objects.equals(fieldPath, pathAndValue.getPath())) {
-                return pathAndValue.getValue();
-            }
+        return entityDataIndex().get(fieldPath);
+    }
+
+    @Transient
+    public boolean hasRemovedEntityDataForField(String fieldPath) {
+        return removedEntityDataIndex().contains(fieldPath);
+    }
+
+    /**
+     * @return The value of the first removed entity data entry for the field, which may be null.
+     * @throws NoSuchElementException if there is no removed entity data for the field.
+     */
+    @Transient
+    @Nullable
+    public String getRemovedEntityDataForField(String fieldPath) {
+        return removedEntityDataIndex().get(fieldPath);
+    }
+
+    @Transient
+    public boolean isPathUpdated(String path) {
+        return updatedPathsIndex().contains(path);
+    }
+
+    @Transient
+    public boolean isPathRemoved(String path) {
+        return removedPathsIndex().contains(path);
+    }
+
+    private PathIndex entityDataIndex() {
+        if (entityDataIndex == null || !entityDataIndex.isOf(entityData)) {
+            entityDataIndex = PathIndex.ofPathAndValues(entityData);
+        }
+        return entityDataIndex;
+    }
+
+    private PathIndex removedEntityDataIndex() {
+        if (removedEntityDataIndex == null || !removedEntityDataIndex.isOf(removedEntityData)) {
+            removedEntityDataIndex = PathIndex.ofPathAndValues(removedEntityData);
+        }
+        return removedEntityDataIndex;
+    }
+
+    private PathSet updatedPathsIndex() {
+        if (updatedPathsIndex == null || !updatedPathsIndex.isOf(updatedPaths)) {
+            updatedPathsIndex = new PathSet(updatedPaths);
+        }
+        return updatedPathsIndex;
+    }
+
+    private PathSet removedPathsIndex() {
+        if (removedPathsIndex == null || !removedPathsIndex.isOf(removedPaths)) {
+            removedPathsIndex = new PathSet(removedPaths);
         }
-        throw new NoSuchElementException(fieldPath);
+        return removedPathsIndex;
     }
 
     @Override
@@ -216,14 +415,15 @@ public class NotificationEntity {
                 Objects.equals(entityData, that.entityData) &&
                 Objects.equals(updatedPaths, that.updatedPaths) &&
                 Objects.equals(removedEntityData, that.removedEntityData) &&
-                Objects.equals(removedPaths, that.removedPaths);
+                Objects.equals(removedPaths, that.removedPaths) &&
+                Objects.equals(truncated, that.truncated);
     }
 
     @Override
     public int hashCode() {
         return Objects.hash(_id, entityName, entityVersion, status, operation, clientRequestPrincipal,
                 clientRequestDate, processingDate, processedDate, entityData, updatedPaths,
-                removedEntityData, removedPaths);
+                removedEntityData, removedPaths, truncated);
     }
 
     @Override
@@ -242,6 +442,7 @@ public class NotificationEntity {
                 ", updatedPaths=" + updatedPaths +
                 ", removedEntityData=" + removedEntityData +
                 ", removedPaths=" + removedPaths +
+                ", truncated=" + truncated +
                 '}';
     }
 
@@ -258,6 +459,147 @@ public class NotificationEntity {
         failed
     }
 
+    /**
+     * An index of one of the entity's lists, remembering which list and at what size it was built
+     * from so staleness can be detected.
+     */
+    private abstract static class ListIndex {
+        private final @Nullable List<?> source;
+        private final int sourceSize;
+
+        ListIndex(@Nullable List<?> source) {
+            this.source = source;
+            this.sourceSize = source == null ? 0 : source.size();
+        }
+
+        boolean isOf(@Nullable List<?> list) {
+            return list == source && (list == null || list.size() == sourceSize);
+        }
+    }
+
+    /** Values by path for entity data or removed entity data. */
+    private static final class PathIndex extends ListIndex {
+        private final Map<String, String> valuesByPath;
+
+        private PathIndex(@Nullable List<PathAndValue> source, Map<String, String> valuesByPath) {
+            super(source);
+            this.valuesByPath = valuesByPath;
+        }
+
+        static PathIndex ofPathAndValues(@Nullable List<PathAndValue> pathAndValues) {
+            Map<String, String> valuesByPath = new HashMap<>();
+            if (pathAndValues != null) {
+                for (PathAndValue pathAndValue : pathAndValues) {
+                    if (!valuesByPath.containsKey(pathAndValue.getPath())) {
+                        valuesByPath.put(pathAndValue.getPath(), pathAndValue.getValue());
+                    }
+                }
+            }
+            return new PathIndex(pathAndValues, valuesByPath);
+        }
+
+        boolean contains(String path) {
+            return valuesByPath.containsKey(path);
+        }
+
+        @Nullable
+        String get(String path) {
+            if (!valuesByPath.containsKey(path)) {
+                throw new NoSuchElementException(path);
+            }
+            return valuesByPath.get(path);
+        }
+    }
+
+    /** The paths of updated paths or removed paths. */
+    private static final class PathSet extends ListIndex {
+        private final Set<String> paths;
+
+        private PathSet(@Nullable List<String> source) {
+            super(source);
+            this.paths = source == null
+                    ? Collections.<String>emptySet()
+                    : new HashSet<>(source);
+        }
+
+        boolean contains(String path) {
+            return paths.contains(path);
+        }
+    }
+
+    /**
+     * A {@link PathAndValue} whose path refers to an entry of the notification's path
+     * dictionary, with the array indexes that entry's '*'s stand for.
+     */
+    public static class CompactPathAndValue {
+        private Integer path;
+        private List<Integer> indexes;
+        private String value;
+
+        public CompactPathAndValue() {
+        }
+
+        public CompactPathAndValue(Integer path, @Nullable List<Integer> indexes, String value) {
+            this.path = path;
+            this.indexes = indexes;
+            this.value = value;
+        }
+
+        public Integer getPath() {
+            return path;
+        }
+
+        @Description("Position of this field's path in pathDictionary.")
+        @Required
+        public void setPath(Integer path) {
+            this.path = path;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public List<Integer> getIndexes() {
+            return indexes;
+        }
+
+        @Description("Array indexes to substitute, in order, for the '*' segments of the path. " +
+                "Absent if the path has none.")
+        public void setIndexes(@Nullable List<Integer> indexes) {
+            this.indexes = indexes;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Description("Value stored in this path as a String. Only primitive values are supported.")
+        public void setValue(@Nullable String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CompactPathAndValue that = (CompactPathAndValue) o;
+            return Objects.equals(path, that.path) &&
+                    Objects.equals(indexes, that.indexes) &&
+                    Objects.equals(value, that.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, indexes, value);
+        }
+
+        @Override
+        public String toString() {
+            return "CompactPathAndValue{" +
+                    "path=" + path +
+                    ", indexes=" + indexes +
+                    ", value='" + value + '\'' +
+                    '}';
+        }
+    }
+
     public static class PathAndValue {
         private String path;
         private String value;